@@ -61,6 +61,20 @@ public class AudioBreaker
         }
     }
 
+    public void testBackToBackTakes() {
+        mAudioRecorder.openSession(0);
+        for (int i = 0; i < TEST_ITERATIONS; i++) {
+            Log.d(TAG, "-------------------------------------------------");
+            Log.d(TAG, "testBackToBackTakes " + i);
+            mAudioRecorder.startRecording();
+            randomSleep(5, 50);
+            mAudioRecorder.stopRecording();
+            mAudioBuffer.resetIdx();
+            mAudioRecorder.read(mAudioBuffer);
+        }
+        mAudioRecorder.closeSession();
+    }
+
     public void testCreateAndDestroy() {
         for (int i = 0; i < TEST_ITERATIONS; i++) {
             Log.d(TAG, "-------------------------------------------------");
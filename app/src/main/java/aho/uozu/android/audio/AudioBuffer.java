@@ -1,29 +1,108 @@
 package aho.uozu.android.audio;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
 
 /**
- * Single channel 16-bit audio sample buffer
+ * Single channel 16-bit audio sample buffer.
+ *
+ * Samples are held either in one array allocated up front, in fixed
+ * size segments taken from a {@link SegmentPool} as the buffer fills, or
+ * in a direct native-order ByteBuffer outside the Java heap.
+ * A segmented buffer only holds memory for the samples written to it,
+ * so its capacity can be generous. A direct buffer can be handed to
+ * AudioTrack and FileChannel as it is, via {@link #getByteBuffer()}.
+ * Use the bulk read and segment methods rather than {@link #getBuffer()},
+ * which only works for array buffers. The segment methods don't work for
+ * direct buffers; check {@link #isDirect()}.
  */
 public class AudioBuffer {
 
-    /** audio sample storage */
-    private final short[] mBuffer;
+    /** "YKBF", little-endian */
+    private static final int SNAPSHOT_MAGIC = 0x46424b59;
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int SNAPSHOT_HEADER_LEN = 20;
+    /** Byte order of snapshot headers, and of samples packed from arrays */
+    private static final ByteOrder SNAPSHOT_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    /** Source of segments, or null if backed by a single array */
+    private final SegmentPool mPool;
+    private final int mSegmentSamples;
+
+    /**
+     * audio sample storage, or null if direct. Segments past the
+     * read/write idx may be null.
+     */
+    private final short[][] mSegments;
+
+    /** Direct storage, or null */
+    private final ByteBuffer mDirect;
+    /** Samples view of mDirect. Only absolute gets and puts are used. */
+    private final ShortBuffer mDirectSamples;
+
+    private final int mCapacity;
 
     /** current read/write idx */
     private int mIdx;
 
     /** Creates new AudioBuffer with the given sample capacity */
     public AudioBuffer(int sample_capacity) {
-        mBuffer = new short[sample_capacity];
+        mPool = null;
+        mCapacity = sample_capacity;
+        mSegmentSamples = Math.max(sample_capacity, 1);
+        mSegments = new short[][] { new short[sample_capacity] };
+        mDirect = null;
+        mDirectSamples = null;
+        mIdx = 0;
+    }
+
+    /**
+     * Creates a new segmented AudioBuffer. No samples are allocated until
+     * they are written.
+     *
+     * @param sample_capacity maximum number of samples held
+     * @param pool where to take segments from, and return them to on
+     *             {@link #trim()}
+     */
+    public AudioBuffer(int sample_capacity, SegmentPool pool) {
+        mPool = pool;
+        mCapacity = sample_capacity;
+        mSegmentSamples = pool.getSegmentSamples();
+        mSegments = new short[(sample_capacity + mSegmentSamples - 1) / mSegmentSamples][];
+        mDirect = null;
+        mDirectSamples = null;
         mIdx = 0;
     }
 
+    private AudioBuffer(ByteBuffer direct) {
+        mPool = null;
+        mCapacity = direct.capacity() / 2;
+        mSegmentSamples = Math.max(mCapacity, 1);
+        mSegments = null;
+        mDirect = direct;
+        mDirectSamples = direct.asShortBuffer();
+        mIdx = 0;
+    }
+
+    /**
+     * Creates a new AudioBuffer backed by a direct, native-order
+     * ByteBuffer, outside the Java heap.
+     *
+     * @param sample_capacity maximum number of samples held
+     */
+    public static AudioBuffer allocateDirect(int sample_capacity) {
+        ByteBuffer direct = ByteBuffer.allocateDirect(sample_capacity * 2);
+        direct.order(ByteOrder.nativeOrder());
+        return new AudioBuffer(direct);
+    }
+
     /**
      * Reverses contents in buffer up to read/write index.
      *
@@ -33,15 +112,211 @@ public class AudioBuffer {
         short temp;
         for (int i = 0; i < mIdx / 2; i++) {
             int i_opposite = mIdx - 1 - i;
-            temp = mBuffer[i];
-            mBuffer[i] = mBuffer[i_opposite];
-            mBuffer[i_opposite] = temp;
+            temp = get(i);
+            set(i, get(i_opposite));
+            set(i_opposite, temp);
+        }
+    }
+
+    /**
+     * Copy samples into dst in reverse order, as if the buffer had been
+     * reversed up to the read/write index. The buffer is not modified.
+     *
+     * @param reverseIdx position in the reversed samples of the first
+     *                   sample to copy. Position 0 is the last sample
+     *                   before the read/write index.
+     * @param dst buffer to copy samples into
+     * @param off index in dst of the first sample to write
+     * @param len maximum number of samples to copy
+     * @return number of samples copied. Less than len if the start of
+     *         the buffer is reached.
+     */
+    public int readReverse(int reverseIdx, short[] dst, int off, int len) {
+        int count = Math.max(0, Math.min(len, mIdx - reverseIdx));
+        read(mIdx - reverseIdx - count, dst, off, count);
+        short temp;
+        for (int i = 0; i < count / 2; i++) {
+            temp = dst[off + i];
+            dst[off + i] = dst[off + count - 1 - i];
+            dst[off + count - 1 - i] = temp;
         }
+        return count;
     }
 
-    /** Get a reference to the internal storage. */
+    /**
+     * Copy samples before the read/write index into dst.
+     *
+     * @param srcIdx index of the first sample to copy
+     * @param dst buffer to copy samples into
+     * @param off index in dst of the first sample to write
+     * @param len maximum number of samples to copy
+     * @return number of samples copied. Less than len if the read/write
+     *         index is reached.
+     */
+    public int read(int srcIdx, short[] dst, int off, int len) {
+        int count = Math.max(0, Math.min(len, mIdx - srcIdx));
+        if (mDirect != null) {
+            // a view of our own, so reads from several threads don't collide
+            ShortBuffer view = mDirectSamples.duplicate();
+            view.position(srcIdx);
+            view.get(dst, off, count);
+            return count;
+        }
+        int done = 0;
+        while (done < count) {
+            int pos = srcIdx + done;
+            int segOff = pos % mSegmentSamples;
+            int n = Math.min(count - done, mSegmentSamples - segOff);
+            System.arraycopy(mSegments[pos / mSegmentSamples], segOff, dst, off + done, n);
+            done += n;
+        }
+        return count;
+    }
+
+    /**
+     * Append samples before the read/write index to another buffer.
+     *
+     * @param srcIdx index of the first sample to copy
+     * @param dst buffer to append samples to
+     * @param len maximum number of samples to copy
+     * @return number of samples copied. Less than len if the read/write
+     *         index or the end of dst is reached.
+     */
+    public int copyTo(int srcIdx, AudioBuffer dst, int len) {
+        int count = Math.max(0, Math.min(Math.min(len, mIdx - srcIdx), dst.remaining()));
+        if (mDirect != null && dst.mDirect != null) {
+            ShortBuffer src = mDirectSamples.duplicate();
+            src.position(srcIdx);
+            src.limit(srcIdx + count);
+            ShortBuffer view = dst.mDirectSamples.duplicate();
+            view.position(dst.mIdx);
+            view.put(src);
+            dst.mIdx += count;
+            return count;
+        }
+        int done = 0;
+        while (done < count) {
+            int n;
+            if (dst.mDirect != null) {
+                // from each of our segments in turn
+                int pos = srcIdx + done;
+                int segOff = pos % mSegmentSamples;
+                n = Math.min(count - done, mSegmentSamples - segOff);
+                dst.write(mSegments[pos / mSegmentSamples], segOff, n);
+            }
+            else {
+                n = Math.min(count - done, dst.getWriteSegmentRemaining());
+                read(srcIdx + done, dst.getWriteSegment(), dst.getWriteSegmentOffset(), n);
+                dst.incrementIdx(n);
+            }
+            done += n;
+        }
+        return count;
+    }
+
+    /**
+     * Get a reference to the internal storage.
+     *
+     * @throws UnsupportedOperationException if this is a segmented buffer
+     */
     public short[] getBuffer() {
-        return mBuffer;
+        if (mPool != null || mDirect != null)
+            throw new UnsupportedOperationException("Not an array buffer");
+        return mSegments[0];
+    }
+
+    /** Returns true if backed by a direct ByteBuffer */
+    public boolean isDirect() {
+        return mDirect != null;
+    }
+
+    /**
+     * Get a view of the samples before the read/write index, as native
+     * order 16 bit samples from position 0 to the limit. The view shares
+     * storage with this buffer, but has its own position and limit.
+     *
+     * @throws UnsupportedOperationException if not a direct buffer
+     */
+    public ByteBuffer getByteBuffer() {
+        ByteBuffer view = directView();
+        view.limit(mIdx * 2);
+        return view;
+    }
+
+    /**
+     * Get a view of the free space after the read/write index, for
+     * filling in place, for example with FileChannel.read. Advance the
+     * read/write index by the number of samples written with
+     * {@link #incrementIdx(int)}.
+     *
+     * @throws UnsupportedOperationException if not a direct buffer
+     */
+    public ByteBuffer getWriteByteBuffer() {
+        ByteBuffer view = directView();
+        view.position(mIdx * 2);
+        return view;
+    }
+
+    private ByteBuffer directView() {
+        if (mDirect == null)
+            throw new UnsupportedOperationException("Not a direct buffer");
+        ByteBuffer view = mDirect.duplicate();
+        view.order(mDirect.order());
+        return view;
+    }
+
+    /**
+     * Get the number of segments holding samples before the read/write
+     * index. An array buffer has one segment.
+     */
+    public int getSegmentCount() {
+        if (mDirect != null)
+            throw new UnsupportedOperationException("Direct buffer");
+        return (mIdx + mSegmentSamples - 1) / mSegmentSamples;
+    }
+
+    /**
+     * Get a reference to one segment of the internal storage, for reading
+     * without copying. Samples are in order across segments.
+     *
+     * @param i segment index, in [0, getSegmentCount())
+     */
+    public short[] getSegment(int i) {
+        if (mDirect != null)
+            throw new UnsupportedOperationException("Direct buffer");
+        return mSegments[i];
+    }
+
+    /** Get the number of samples before the read/write index in a segment */
+    public int getSegmentLength(int i) {
+        return Math.min(mSegmentSamples, mIdx - i * mSegmentSamples);
+    }
+
+    /**
+     * Get the segment holding the read/write index, for writing to in
+     * place. Write at {@link #getWriteSegmentOffset()}, at most
+     * {@link #getWriteSegmentRemaining()} samples, then advance the index
+     * with {@link #incrementIdx(int)}.
+     *
+     * @throws IllegalStateException if the buffer is full
+     * @throws UnsupportedOperationException if this is a direct buffer
+     */
+    public short[] getWriteSegment() {
+        if (mDirect != null)
+            throw new UnsupportedOperationException("Direct buffer");
+        if (isFull())
+            throw new IllegalStateException("Buffer is full");
+        return segmentFor(mIdx);
+    }
+
+    /** Get the index of the read/write index within its segment */
+    public int getWriteSegmentOffset() {
+        return mIdx % mSegmentSamples;
+    }
+
+    /** Get the space left in the segment holding the read/write index */
+    public int getWriteSegmentRemaining() {
+        return Math.min(mSegmentSamples - getWriteSegmentOffset(), remaining());
     }
 
     /** Get current read/write index */
@@ -51,12 +326,24 @@ public class AudioBuffer {
 
     /** Get the buffer's storage capacity / length */
     public int capacity() {
-        return mBuffer.length;
+        return mCapacity;
+    }
+
+    /** Get the number of samples of memory held by this buffer */
+    public int getAllocatedSamples() {
+        if (mDirect != null)
+            return mCapacity;
+        int n = 0;
+        for (short[] segment : mSegments) {
+            if (segment != null)
+                n += segment.length;
+        }
+        return n;
     }
 
     /** Returns true if the internal storage is full. */
     public boolean isFull() {
-        return mIdx == mBuffer.length;
+        return mIdx == mCapacity;
     }
 
     /**
@@ -68,10 +355,16 @@ public class AudioBuffer {
      * @param val positive value to increment by. If negative, idx is unchanged.
      */
     public void incrementIdx(int val) {
+        int idx = mIdx;
         if (val >= 0)
-            mIdx += val;
-        if (mIdx > mBuffer.length)
-            mIdx = mBuffer.length;
+            idx += val;
+        if (idx > mCapacity || idx < 0)
+            idx = mCapacity;
+        // skipped samples must be readable
+        for (int i = mIdx; i < idx && mSegments != null; i += mSegmentSamples - i % mSegmentSamples) {
+            segmentFor(i);
+        }
+        mIdx = idx;
     }
 
     /**
@@ -83,16 +376,56 @@ public class AudioBuffer {
      * @param len Number of shorts to write.
      */
     public void write(short[] buf, int len) {
+        write(buf, 0, len);
+    }
+
+    /**
+     * Write len samples from buf, starting at off, to this buffer.
+     *
+     * Buffer overflows are silently ignored - use getIdx() or isFull().
+     */
+    public void write(short[] buf, int off, int len) {
         int writeLen = Math.min(remaining(), len);
-        System.arraycopy(buf, 0, mBuffer, mIdx, writeLen);
-        mIdx += writeLen;
+        if (mDirect != null) {
+            ShortBuffer view = mDirectSamples.duplicate();
+            view.position(mIdx);
+            view.put(buf, off, writeLen);
+            mIdx += writeLen;
+            return;
+        }
+        int done = 0;
+        while (done < writeLen) {
+            int n = Math.min(writeLen - done, getWriteSegmentRemaining());
+            System.arraycopy(buf, off + done, getWriteSegment(), getWriteSegmentOffset(), n);
+            mIdx += n;
+            done += n;
+        }
     }
 
-    /** Reset read/write index to zero */
+    /**
+     * Reset read/write index to zero. Segments are kept for the next
+     * write; see {@link #trim()}.
+     */
     public void resetIdx() {
         mIdx = 0;
     }
 
+    /**
+     * Return segments after the read/write index to the pool, so memory
+     * held tracks the length of the audio. Has no effect on an array
+     * buffer. Must not be called while another thread reads the buffer.
+     */
+    public void trim() {
+        if (mPool == null)
+            return;
+        for (int i = getSegmentCount(); i < mSegments.length; i++) {
+            if (mSegments[i] != null) {
+                mPool.release(mSegments[i]);
+                mSegments[i] = null;
+            }
+        }
+    }
+
     /** Returns the space remaining in the buffer.
      *
      * Ie. buffer length - read/write index.
@@ -100,29 +433,147 @@ public class AudioBuffer {
      * @return Integer in range [0, capacity]
      */
     public int remaining() {
-        int rem = mBuffer.length - mIdx;
+        int rem = mCapacity - mIdx;
         if (rem < 0)
             rem = 0;
         return rem;
     }
 
+    private short get(int i) {
+        if (mDirect != null)
+            return mDirectSamples.get(i);
+        return mSegments[i / mSegmentSamples][i % mSegmentSamples];
+    }
+
+    private void set(int i, short value) {
+        if (mDirect != null)
+            mDirectSamples.put(i, value);
+        else
+            mSegments[i / mSegmentSamples][i % mSegmentSamples] = value;
+    }
+
+    /** Get the segment holding sample i, taking one from the pool if needed */
+    private short[] segmentFor(int i) {
+        int seg = i / mSegmentSamples;
+        if (mSegments[seg] == null)
+            mSegments[seg] = mPool.acquire();
+        return mSegments[seg];
+    }
+
+    /**
+     * Save the samples before the read/write index as a snapshot, in one
+     * gathering write of the header and sample data. A direct buffer's
+     * samples are written as they are; other buffers are packed into one
+     * byte buffer first.
+     *
+     * Snapshot layout: magic, version, byte order of the samples (0 for
+     * little-endian, 1 for big-endian), sample count, then a CRC32 of
+     * those four ints, all little-endian 32 bit, followed by the samples.
+     */
     public void saveToFile(File fp) throws IOException {
-        ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(fp));
-        oos.writeInt(mIdx);
-        for (int i = 0; i < mIdx; i++) {
-            oos.writeShort(mBuffer[i]);
+        ByteBuffer data;
+        if (mDirect != null) {
+            data = getByteBuffer();
+        }
+        else {
+            data = ByteBuffer.allocate(mIdx * 2).order(SNAPSHOT_ORDER);
+            ShortBuffer samples = data.asShortBuffer();
+            for (int i = 0; i < getSegmentCount(); i++) {
+                samples.put(mSegments[i], 0, getSegmentLength(i));
+            }
+        }
+        ByteBuffer header = snapshotHeader(data.order(), mIdx);
+        ByteBuffer[] parts = new ByteBuffer[] { header, data };
+
+        FileOutputStream out = new FileOutputStream(fp);
+        try {
+            FileChannel channel = out.getChannel();
+            while (header.hasRemaining() || data.hasRemaining()) {
+                channel.write(parts);
+            }
+        } finally {
+            out.close();
         }
-        oos.flush();
-        oos.close();
     }
 
+    /**
+     * Replace the contents of this buffer with a snapshot saved by
+     * {@link #saveToFile(File)}. The file is mapped and copied in bulk.
+     * If the snapshot holds more samples than fit, the rest are dropped.
+     *
+     * @throws IOException if the file can't be read or isn't a valid
+     *         snapshot. The buffer is unchanged in this case.
+     */
     public void loadFromFile(File fp) throws IOException {
-        ObjectInputStream ois = new ObjectInputStream(new FileInputStream(fp));
-        int num_samples_in_file = ois.readInt();
+        RandomAccessFile file = new RandomAccessFile(fp, "r");
+        ShortBuffer src;
+        try {
+            if (file.length() < SNAPSHOT_HEADER_LEN)
+                throw new IOException("Snapshot truncated");
+            ByteBuffer map = file.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                    0, file.length());
+            src = readSnapshot(map);
+        } finally {
+            file.close();
+        }
+
         // ensure not to overflow buffer, if saved sound is too big
-        mIdx = Math.min(num_samples_in_file, mBuffer.length);
-        for (int i = 0; i < mIdx; i++) {
-            mBuffer[i] = ois.readShort();
+        int len = Math.min(src.remaining(), mCapacity);
+        src.limit(src.position() + len);
+        mIdx = 0;
+        if (mDirect != null) {
+            ShortBuffer dst = mDirectSamples.duplicate();
+            dst.put(src);
+        }
+        else {
+            for (int i = 0; i < len; i += mSegmentSamples) {
+                src.get(segmentFor(i), 0, Math.min(mSegmentSamples, len - i));
+            }
         }
+        mIdx = len;
+        trim();
+    }
+
+    private static ByteBuffer snapshotHeader(ByteOrder order, int numSamples) {
+        ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER_LEN).order(SNAPSHOT_ORDER);
+        header.putInt(SNAPSHOT_MAGIC);
+        header.putInt(SNAPSHOT_VERSION);
+        header.putInt(order == ByteOrder.LITTLE_ENDIAN ? 0 : 1);
+        header.putInt(numSamples);
+        header.putInt(headerCrc(header.array()));
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Check a mapped snapshot's header, and get a view of its samples.
+     */
+    private static ShortBuffer readSnapshot(ByteBuffer map) throws IOException {
+        map.order(SNAPSHOT_ORDER);
+        byte[] header = new byte[SNAPSHOT_HEADER_LEN];
+        map.get(header);
+        if (map.getInt(0) != SNAPSHOT_MAGIC)
+            throw new IOException("Not a buffer snapshot");
+        if (map.getInt(4) != SNAPSHOT_VERSION)
+            throw new IOException("Unsupported snapshot version " + map.getInt(4));
+        if (map.getInt(16) != headerCrc(header))
+            throw new IOException("Snapshot header is corrupt");
+        int order = map.getInt(8);
+        int numSamples = map.getInt(12);
+        if (order < 0 || order > 1 || numSamples < 0
+                || map.remaining() / 2 < numSamples)
+            throw new IOException("Snapshot header is corrupt");
+
+        map.order(order == 0 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        ShortBuffer samples = map.slice().order(map.order()).asShortBuffer();
+        samples.limit(numSamples);
+        return samples;
+    }
+
+    /** CRC32 of the header fields before the checksum */
+    private static int headerCrc(byte[] header) {
+        CRC32 crc = new CRC32();
+        crc.update(header, 0, SNAPSHOT_HEADER_LEN - 4);
+        return (int) crc.getValue();
     }
 }
@@ -1,108 +1,217 @@
 package aho.uozu.android.audio;
 
-import android.media.AudioFormat;
-import android.media.AudioManager;
-import android.media.AudioTrack;
+import android.os.Process;
 import android.util.Log;
 
-import aho.uozu.android.audio.AudioBuffer;
+import java.nio.ByteBuffer;
 
+/**
+ * Plays audio clips through an {@link AudioSink}, by default a streaming
+ * AudioTrack.
+ *
+ * A feeder thread copies the clip to the track one short period at a
+ * time, so playback starts as soon as the first period is queued and the
+ * track's buffer only needs to hold a few periods, regardless of clip
+ * length. Starting a new clip or calling
+ * {@link #stop()} takes effect within one period.
+ */
 public class AudioPlayer {
     private final int mSampleRate;
-    private final int mBufferSizeSamples;
-    private final int mBufferSizeBytes;
-    private int mLastClipLengthSamples;
-    private AudioTrack mAudioTrack;
+    private final int mPeriodSamples;
+    private AudioSink mSink;
+    private final Thread mFeeder;
+
+    /** Guards the play request below */
+    private final Object mLock = new Object();
+    private AudioBuffer mClip;
+    private int mClipRateHz;
+    private boolean mClipReverse;
+    /** Incremented for every play or stop request */
+    private volatile int mRequestId;
+    private volatile boolean mReleased;
 
     private static final String TAG = "YakBox-AudioPlayer";
     private static final double PLAYBACK_RATE_MIN = 0.333;
     private static final double PLAYBACK_RATE_MAX = 3.0;
+    private static final int WRITE_PERIOD_MS = 10;
+    /** Track buffer size, in periods */
+    private static final int TRACK_PERIODS = 4;
+    private static final int RELEASE_TIMEOUT_MS = 500;
+
+    /** Writes requested clips to mSink */
+    private class Feeder implements Runnable {
+        private final short[] period = new short[mPeriodSamples];
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+            int handled = 0;
+            while (true) {
+                AudioBuffer clip;
+                int rateHz;
+                boolean reverse;
+                int id;
+                synchronized (mLock) {
+                    while (mRequestId == handled && !mReleased) {
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException e) {
+                            Log.d(TAG, "Feeder interrupted");
+                        }
+                    }
+                    if (mReleased)
+                        break;
+                    clip = mClip;
+                    rateHz = mClipRateHz;
+                    reverse = mClipReverse;
+                    id = handled = mRequestId;
+                }
+
+                // drop whatever is left of the last clip
+                mSink.flush();
+                if (clip != null) {
+                    feed(clip, rateHz, reverse, id);
+                }
+            }
+            Log.d(TAG, "Feeder done");
+        }
+
+        private void feed(AudioBuffer clip, int rateHz, boolean reverse, int id) {
+            Log.d(TAG, String.format("Playing sample at %d hz", rateHz));
+            mSink.setPlaybackRate(rateHz);
+            mSink.start();
+            int len = clip.getIdx();
+            // forward playback of a direct clip goes to the sink as it is
+            ByteBuffer view = clip.isDirect() && !reverse ? clip.getByteBuffer() : null;
+            int pos = 0;
+            while (pos < len && !isSuperseded(id)) {
+                int n = Math.min(mPeriodSamples, len - pos);
+                int result;
+                if (view != null) {
+                    view.limit((pos + n) * 2);
+                    view.position(pos * 2);
+                    result = mSink.write(view);
+                }
+                else {
+                    if (reverse) {
+                        clip.readReverse(pos, period, 0, n);
+                    }
+                    else {
+                        clip.read(pos, period, 0, n);
+                    }
+                    result = mSink.write(period, 0, n);
+                }
+                if (result < 0) {
+                    Log.e(TAG, "mSink.write error: " + result);
+                    break;
+                }
+                pos += result;
+            }
+            if (!isSuperseded(id)) {
+                // plays out the queued periods, then stops
+                mSink.stop();
+            }
+        }
+
+        private boolean isSuperseded(int id) {
+            return mRequestId != id || mReleased;
+        }
+    }
 
     /**
-     * Initialise a new AudioPlayer
+     * Initialise a new AudioPlayer, playing through the device speaker
      *
      * @param sample_rate Audio sample rate in Hertz
-     * @param buffer_size Audio buffer size in samples
      * @throws IllegalArgumentException if initialisation parameters are bad
      * @throws IllegalStateException If audio system initialisation fails.
      */
-    public AudioPlayer(int sample_rate, int buffer_size)
+    public AudioPlayer(int sample_rate)
             throws IllegalArgumentException, IllegalStateException {
-        this.mSampleRate = sample_rate;
-        this.mBufferSizeSamples = buffer_size;
-        // assume 16 bit samples
-        this.mBufferSizeBytes = buffer_size * 2;
-        this.mLastClipLengthSamples = 0;
-        this.mAudioTrack = initAudioTrack();
+        this(new AudioTrackSink(sample_rate,
+                TRACK_PERIODS * sample_rate * WRITE_PERIOD_MS / 1000));
+    }
+
+    /**
+     * Initialise a new AudioPlayer
+     *
+     * @param sink where to play audio. Released along with this player.
+     */
+    public AudioPlayer(AudioSink sink) {
+        this.mSampleRate = sink.getSampleRate();
+        this.mPeriodSamples = mSampleRate * WRITE_PERIOD_MS / 1000;
+        this.mSink = sink;
+        this.mFeeder = new Thread(new Feeder(), "AudioPlayer-feeder");
+        this.mFeeder.start();
     }
 
     /**
-     * Play an audio clip
-     * @param buf Audio buffer
+     * Play an audio clip. Any clip already playing is stopped.
+     * @param buf Audio buffer. Must not be written to during playback.
      * @param rate Playback rate
      */
     public void play(AudioBuffer buf, double rate) throws IllegalArgumentException {
+        play(buf, rate, false);
+    }
+
+    /**
+     * Play an audio clip backwards. The clip is read in reverse, so buf
+     * is left untouched.
+     * @param buf Audio buffer. Must not be written to during playback.
+     * @param rate Playback rate
+     */
+    public void playReverse(AudioBuffer buf, double rate) throws IllegalArgumentException {
+        play(buf, rate, true);
+    }
+
+    private void play(AudioBuffer buf, double rate, boolean reverse)
+            throws IllegalArgumentException {
         if (buf == null) throw new NullPointerException();
         if (rate < PLAYBACK_RATE_MIN || rate > PLAYBACK_RATE_MAX) {
             throw new IllegalArgumentException("playback rate out of bounds");
         }
         if (buf.getIdx() > 0) {
-            if (mAudioTrack.getPlayState() == AudioTrack.PLAYSTATE_PLAYING) {
-                mAudioTrack.stop();
-            }
-            // Clear mAudioTrack's internal buffer
-            // so the end of the last clip is not played.
-            if (buf.getIdx() < mLastClipLengthSamples) {
-                flush();
-            }
-            mLastClipLengthSamples = buf.getIdx();
-            int rate_hz = getPlaybackSamplingRate(rate);
-            Log.d(TAG, String.format("Playing sample at %d hz", rate_hz));
-            mAudioTrack.write(buf.getBuffer(), 0, buf.getIdx());
-            mAudioTrack.reloadStaticData();
-            mAudioTrack.setPlaybackRate(rate_hz);
-            mAudioTrack.play();
+            request(buf, getPlaybackSamplingRate(rate), reverse);
         }
     }
 
-    /**
-     * Clear mAudioTrack's internal buffer.
-     */
-    private void flush() {
-        short[] empty = new short[mBufferSizeSamples];
-        mAudioTrack.write(empty, 0, mBufferSizeSamples);
+    /** Stop playback. Has no effect if nothing is playing. */
+    public void stop() {
+        request(null, 0, false);
+    }
+
+    private void request(AudioBuffer clip, int rateHz, boolean reverse) {
+        synchronized (mLock) {
+            if (mReleased)
+                throw new IllegalStateException("AudioPlayer has been released");
+            mClip = clip;
+            mClipRateHz = rateHz;
+            mClipReverse = reverse;
+            mRequestId++;
+            mLock.notifyAll();
+        }
     }
 
     /**
      * Release internal resources.
      */
     public void release() {
-        if (mAudioTrack.getPlayState() == AudioTrack.PLAYSTATE_PLAYING) {
-            mAudioTrack.stop();
+        synchronized (mLock) {
+            if (mReleased)
+                return;
+            mReleased = true;
+            mLock.notifyAll();
+        }
+        // the feeder blocks for at most one track buffer
+        try {
+            mFeeder.join(RELEASE_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        mAudioTrack.release();
-        mAudioTrack = null;
+        mSink.release();
+        mSink = null;
     }
 
     public int getPlaybackSamplingRate(double rate) {
         return (int) (mSampleRate * rate);
     }
-
-    /**
-     * Initialise audio track
-     *
-     * @return initialised AudioTrack
-     * @throws IllegalArgumentException if initialisation parameters are bad
-     * @throws IllegalStateException if failed to initialise
-     */
-    private AudioTrack initAudioTrack() throws IllegalStateException {
-        AudioTrack track = new AudioTrack(AudioManager.STREAM_MUSIC, mSampleRate,
-                AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT,
-                mBufferSizeBytes, AudioTrack.MODE_STATIC);
-        if (track.getState() == AudioTrack.STATE_UNINITIALIZED) {
-            track.release();
-            throw new IllegalStateException("Failed to initialise AudioTrack");
-        }
-        return track;
-    }
 }
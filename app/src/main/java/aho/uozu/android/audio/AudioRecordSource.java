@@ -0,0 +1,57 @@
+package aho.uozu.android.audio;
+
+/**
+ * Records from the device microphone, through the shared
+ * {@link AudioRecordThreadSafe} instance.
+ */
+public class AudioRecordSource implements AudioSource {
+
+    private AudioRecordThreadSafe mAudioRecord;
+
+    /**
+     * Initialise the microphone.
+     *
+     * @param recordTimeS size of recording storage, in seconds
+     * @throws UnsupportedOperationException if hardware not supported
+     * @throws IllegalStateException if error initialising audio recorder
+     */
+    public AudioRecordSource(int recordTimeS)
+            throws UnsupportedOperationException, IllegalStateException, InterruptedException {
+        mAudioRecord = AudioRecordThreadSafe.getInstance(recordTimeS);
+    }
+
+    @Override
+    public int getSampleRate() {
+        return mAudioRecord.getSamplingRate();
+    }
+
+    /** Half the device's minimum buffer, so one period is always free */
+    @Override
+    public int getPeriodSamples() {
+        return Math.max(mAudioRecord.getMinBufferSizeSamples() / 2, 1);
+    }
+
+    @Override
+    public void start() throws InterruptedException {
+        mAudioRecord.startRecording();
+    }
+
+    @Override
+    public int read(short[] dst, int off, int len) throws InterruptedException {
+        return mAudioRecord.read(dst, off, len);
+    }
+
+    @Override
+    public void stop() throws InterruptedException {
+        mAudioRecord.stop();
+    }
+
+    /** Subsequent calls have no effect */
+    @Override
+    public void release() throws InterruptedException {
+        if (mAudioRecord != null) {
+            mAudioRecord.release();
+            mAudioRecord = null;
+        }
+    }
+}
@@ -11,7 +11,10 @@ import java.util.concurrent.Semaphore;
  * Thread-safe, managed instance of AudioRecord, with a few nice
  * utilities thrown in.
  *
- * Only one thread at a time can access the internal AudioRecord object.
+ * Only one thread at a time can access the internal AudioRecord object,
+ * except for {@link #read}, which only the capture thread calls. Taking
+ * the lock there would make capture wait on the UI thread; stop() is
+ * safe to call during a read, and unblocks it.
  *
  * I don't know if AudioRecord is thread safe. Can't find any mention
  * of thread safety in the docs. It would have been nice to know before
@@ -24,6 +27,7 @@ class AudioRecordThreadSafe {
     private static final String TAG = "AudioRecordThreadSafe";
 
     private int mSamplingRate;
+    private int mMinBufferSizeSamples;
 
     /** Single instance of this object */
     private static AudioRecordThreadSafe mInstance;
@@ -55,6 +59,11 @@ class AudioRecordThreadSafe {
         return mSamplingRate;
     }
 
+    /** Get the minimum buffer size for the sampling rate, in samples */
+    public int getMinBufferSizeSamples() {
+        return mMinBufferSizeSamples;
+    }
+
     public void startRecording() throws IllegalStateException, InterruptedException {
         mAudioRecordSem.acquire();
         mAudioRecord.startRecording();
@@ -75,12 +84,9 @@ class AudioRecordThreadSafe {
         return state;
     }
 
-    public int read(short[] audioData, int offsetInShorts, int sizeInShorts)
-            throws InterruptedException {
-        mAudioRecordSem.acquire();
-        int numSamples = mAudioRecord.read(audioData, offsetInShorts, sizeInShorts);
-        mAudioRecordSem.release();
-        return numSamples;
+    /** Must not be called concurrently with release() */
+    public int read(short[] audioData, int offsetInShorts, int sizeInShorts) {
+        return mAudioRecord.read(audioData, offsetInShorts, sizeInShorts);
     }
 
     public void release() throws InterruptedException {
@@ -139,6 +145,7 @@ class AudioRecordThreadSafe {
         mSamplingRate = findRecordingSampleRate();
         int bufferSize = AudioRecord.getMinBufferSize(mSamplingRate,
                 AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+        mMinBufferSizeSamples = bufferSize / 2;
         AudioRecord record = new AudioRecord(MediaRecorder.AudioSource.MIC,
                 mSamplingRate, AudioFormat.CHANNEL_IN_MONO,
                 AudioFormat.ENCODING_PCM_16BIT, bufferSize);
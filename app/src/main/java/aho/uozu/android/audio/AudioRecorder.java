@@ -1,75 +1,210 @@
 package aho.uozu.android.audio;
 
+import android.os.Process;
 import android.util.Log;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+/**
+ * Records takes from an {@link AudioSource}.
+ *
+ * The capture thread writes into a lock-free {@link ShortRingBuffer}
+ * large enough for a whole take, plus a margin. Consumers read the ring
+ * concurrently through their own readers, so capture never waits on them.
+ *
+ * The capture thread is started with the recorder and parked between
+ * takes. It reads one source period at a time into a buffer allocated
+ * once, so a take allocates nothing.
+ *
+ * While a session is open, the source is started once and capture keeps
+ * running between takes; starting and stopping a take only marks its
+ * boundaries in the sample stream. Takes can then follow each other
+ * immediately, without restarting the hardware. Each take starts with up
+ * to the pre-roll length of audio from before it was started, taken
+ * from the ring, so pre-roll costs no extra memory. Once a take has
+ * ended, capture between takes carries on into the margin, then stops
+ * writing to the ring until the take has been read, so it can't be
+ * overwritten.
+ *
+ * Takes can also be streamed to file as they are captured, by a
+ * {@link TakeJournal}, so that they survive a crash.
+ */
+public class AudioRecorder {
+    private final ShortRingBuffer mRing;
+    private final int mSampleRate;
+    private final int mTakeLimit;
+    private final int mPeriodSamples;
+    private final AudioSource mSource;
+    private OnBufferFullListener mBufListener;
+    private volatile boolean mIsRecording;
+    /** True to keep capturing between takes */
+    private volatile boolean mSessionOpen;
+    /**
+     * Where the current session started in mRing, or where capture
+     * resumed after waiting for a take to be read
+     */
+    private volatile long mSessionStart;
+    private volatile int mPreRollSamples;
+    private final Thread mWorker;
+    /** Streams takes to file, or null */
+    private volatile TakeJournal mJournal;
 
-import aho.uozu.yakbox.BuildConfig;
+    /** Guards the take request below */
+    private final Object mLock = new Object();
+    /** Incremented for every take started */
+    private volatile int mRequestId;
+    private volatile boolean mReleased;
 
+    /** The take the worker is capturing, and where it starts in mRing */
+    private volatile int mTakeId;
+    private volatile long mTakeStart;
+    /** Where take mTakeEndId ended in mRing */
+    private volatile long mTakeEnd;
+    private volatile int mTakeEndId;
+    /** Reads the current take, for {@link #read(AudioBuffer)} */
+    private final ShortRingBuffer.Reader mTakeReader;
+    private volatile int mTakeReaderId;
+    /** How far take mTakeReaderId has been read, for the worker */
+    private volatile long mTakeReadPos;
+    /** Samples of take mTakeReaderId overwritten before they were read */
+    private long mTakeSamplesLost;
 
-public class AudioRecorder {
-    private AudioBuffer mAudioBuffer;
-    private AudioRecordThreadSafe mAudioRecord;
-    private OnBufferFullListener mBufListener;
-    private boolean mIsRecording;
-    private ExecutorService bgWorker;
+    /** Capture statistics, written by the worker only */
+    private volatile int mAllocations;
+    private volatile long mWakeups;
+    private volatile long mSamplesCaptured;
 
     // ---------------------------------------------------------------------
     // constants
-    private static final int READ_CHUNK_SIZE_SAMPLES = 256;
     private static final String TAG = "YakBox-AudioRecorder";
+    private static final int RELEASE_TIMEOUT_MS = 500;
+    /** Ring space beyond the longest take, for capture to carry on into */
+    private static final int RING_MARGIN_MS = 500;
 
     // ---------------------------------------------------------------------
     // data types, interfaces
 
-    /** Reads bytes from mAudioRecord into mAudioBuffer */
-    private class AudioReader implements Runnable {
-        private final short[] readBuf = new short[READ_CHUNK_SIZE_SAMPLES];
+    /** Reads samples from mSource into mRing, while in a session or recording */
+    private class CaptureWorker implements Runnable {
+        // read to a temporary buffer, then write to the ring.
+        // This gets around a bug in Android 5.0's AudioRecord.read(short[]...)
+        // See https://code.google.com/p/android/issues/detail?id=81953
+        private final short[] readBuf;
+        /** Last take request seen */
+        private int handled;
+
+        CaptureWorker() {
+            readBuf = new short[mPeriodSamples];
+            mAllocations++;
+        }
+
         @Override
         public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+            while (true) {
+                synchronized (mLock) {
+                    while (mRequestId == handled && !mSessionOpen && !mReleased) {
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException e) {
+                            Log.d(TAG, "CaptureWorker interrupted");
+                        }
+                    }
+                    if (mReleased)
+                        break;
+                }
+                mWakeups++;
+                capture();
+            }
+            // released here, not by release(), so that it can't happen
+            // while a read is still blocked in the source
+            try {
+                mSource.release();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            if (mJournal != null)
+                mJournal.release();
+            Log.d(TAG, "CaptureWorker done");
+        }
 
-            boolean callStop = false;
+        /** Capture until neither in a session nor recording */
+        private void capture() {
+            boolean inTake = false;
+            int taken = 0;
 
-            while (isRecording() && !Thread.interrupted()) {
-                int samplesToRead = Math.min(READ_CHUNK_SIZE_SAMPLES, mAudioBuffer.remaining());
-                // read to a temporary buffer, then write to audio buffer.
-                // This gets around a bug in Android 5.0's AudioRecord.read(short[]...)
-                // See https://code.google.com/p/android/issues/detail?id=81953
+            while (!mReleased) {
+                int requestId = mRequestId;
+                if (requestId != handled) {
+                    handled = requestId;
+                    if (isRecording()) {
+                        if (mTakeId != requestId) {
+                            // outside a session, the take starts with the source
+                            mTakeStart = mRing.getWritePos();
+                            mTakeId = requestId;
+                        }
+                        inTake = true;
+                        taken = (int) (mRing.getWritePos() - mTakeStart);
+                        if (mJournal != null)
+                            mJournal.onTakeStarted(mTakeStart);
+                    }
+                }
+                if (inTake && !isRecording()) {
+                    inTake = false;
+                    if (mJournal != null)
+                        mJournal.onTakeEnded(getTakeEndPos());
+                }
+                if (!inTake && !mSessionOpen)
+                    break;
+
+                int samplesToRead = inTake
+                        ? Math.min(readBuf.length, mTakeLimit - taken) : readBuf.length;
                 int result = 0;
                 try {
-                    result = mAudioRecord.read(readBuf, 0, samplesToRead);
+                    result = mSource.read(readBuf, 0, samplesToRead);
                 } catch (InterruptedException e) {
-                    Log.d(TAG, "AudioReader interrupted");
+                    Log.d(TAG, "CaptureWorker interrupted");
                 }
-                if (result >= 0) {
-                    mAudioBuffer.write(readBuf, result);
+                mWakeups++;
+                if (result > 0 && !inTake && overwritesUnreadTake(result)) {
+                    // drop the audio, and don't let pre-roll reach back
+                    // across the gap
+                    mSessionStart = mRing.getWritePos();
+                    continue;
                 }
-                else {
-                    Log.e(TAG, "mAudioRecord.read error: " + result);
-                    // stop recording if any problems reading from AudioRecord
+                if (result < 0) {
+                    Log.e(TAG, "mSource.read error: " + result);
+                    // end the session if any problems reading from the source
+                    mSessionOpen = false;
                     mIsRecording = false;
-                    callStop = true;
+                    stopSource();
                     // also call onBufferFull(). Could rename this to onRecordingStopped().
-                    onBufferFullCallback();
-                }
-
-                // if buffer is (or is nearly) full, stop recording
-                // and call the buffer full listener
-                if (mAudioBuffer.isFull() || samplesToRead < READ_CHUNK_SIZE_SAMPLES) {
-                    mIsRecording = false;
-                    callStop = true;
-                    onBufferFullCallback();
+                    if (inTake) {
+                        if (mJournal != null)
+                            mJournal.onTakeEnded(mRing.getWritePos());
+                        onBufferFullCallback();
+                    }
+                    break;
                 }
-            }
-            if (callStop) {
-                try {
-                    mAudioRecord.stop();
-                } catch (InterruptedException | IllegalStateException e) {
-                    e.printStackTrace();
+                mRing.write(readBuf, 0, result);
+                mSamplesCaptured += result;
+                if (inTake) {
+                    if (mJournal != null)
+                        mJournal.onCaptured();
+                    taken += result;
+                    // if the take is full, stop recording
+                    // and call the buffer full listener
+                    if (taken >= mTakeLimit) {
+                        mTakeEnd = mTakeStart + mTakeLimit;
+                        mTakeEndId = handled;
+                        mIsRecording = false;
+                        inTake = false;
+                        if (mJournal != null)
+                            mJournal.onTakeEnded(mTakeEnd);
+                        if (!mSessionOpen)
+                            stopSource();
+                        onBufferFullCallback();
+                    }
                 }
             }
-            Log.d(TAG, "AudioReader done");
         }
     }
 
@@ -86,7 +221,7 @@ public class AudioRecorder {
     // constructors, methods
 
     /**
-     * Initialise the audio recorder.
+     * Initialise the audio recorder, recording from the microphone.
      *
      * @param recordTimeS Maximum recording length in seconds
      * @throws UnsupportedOperationException if hardware not supported
@@ -94,18 +229,50 @@ public class AudioRecorder {
      */
     public AudioRecorder(int recordTimeS)
             throws UnsupportedOperationException, IllegalStateException, InterruptedException {
-        mAudioRecord = AudioRecordThreadSafe.getInstance(recordTimeS);
-        mAudioBuffer = new AudioBuffer(mAudioRecord.getSamplingRate() * recordTimeS);
-        bgWorker = Executors.newSingleThreadExecutor();
+        this(new AudioRecordSource(recordTimeS), recordTimeS);
+    }
+
+    /**
+     * Initialise the audio recorder.
+     *
+     * @param source where to record audio from. Released along with
+     *               this recorder.
+     * @param recordTimeS Maximum recording length in seconds
+     */
+    public AudioRecorder(AudioSource source, int recordTimeS) {
+        mSource = source;
+        mSampleRate = mSource.getSampleRate();
+        mTakeLimit = mSampleRate * recordTimeS;
+        mPeriodSamples = Math.min(mSource.getPeriodSamples(), mTakeLimit);
+        // a take, including its pre-roll, is at most mTakeLimit samples
+        mRing = new ShortRingBuffer(mTakeLimit + (int) ((long) mSampleRate * RING_MARGIN_MS / 1000));
+        mTakeReader = mRing.newReader();
+        mWorker = new Thread(new CaptureWorker(), "AudioRecorder-capture");
+        mWorker.start();
     }
 
     public void startRecording() {
         Log.d(TAG, "startRecording");
-        mAudioBuffer.resetIdx();
         try {
-            mAudioRecord.startRecording();
-            bgWorker.execute(new AudioReader());
+            // already running in a session
+            if (!mSessionOpen)
+                mSource.start();
             mIsRecording = true;
+            synchronized (mLock) {
+                if (mReleased)
+                    throw new IllegalStateException("AudioRecorder has been released");
+                if (mSessionOpen) {
+                    // capture is running, so the take starts now, not
+                    // when the worker next looks. Pre-roll can't reach
+                    // back before the session or into the last take.
+                    long pos = mRing.getWritePos();
+                    mTakeStart = Math.max(pos - mPreRollSamples,
+                            Math.max(mSessionStart, mTakeEnd));
+                    mTakeId = mRequestId + 1;
+                }
+                mRequestId++;
+                mLock.notifyAll();
+            }
         } catch (InterruptedException | IllegalStateException e) {
             e.printStackTrace();
         }
@@ -117,29 +284,140 @@ public class AudioRecorder {
     public void stopRecording() {
         Log.d(TAG, "stopRecording");
         if (isRecording()) {
+            // capture carries on in a session; the take ends here. Set
+            // before clearing mIsRecording, for the worker to pass on.
+            mTakeEnd = mRing.getWritePos();
+            mTakeEndId = mRequestId;
             mIsRecording = false;
-            try {
-                mAudioRecord.stop();
-            } catch (InterruptedException | IllegalStateException e) {
-                e.printStackTrace();
+            if (!mSessionOpen)
+                stopSource();
+        }
+    }
+
+    /**
+     * Open a capture session. The audio source is started now and kept
+     * running until {@link #closeSession()}, and each take starts with up
+     * to preRollMs of audio from before startRecording() was called, but
+     * not from before the session opened or the last take ended.
+     *
+     * @param preRollMs pre-roll length. Limited to half the maximum take
+     *                  length.
+     */
+    public void openSession(int preRollMs) {
+        Log.d(TAG, "openSession");
+        long samples = (long) preRollMs * mSampleRate / 1000;
+        mPreRollSamples = (int) Math.max(0, Math.min(samples, mTakeLimit / 2));
+        if (mSessionOpen)
+            return;
+        try {
+            if (!isRecording())
+                mSource.start();
+            synchronized (mLock) {
+                if (mReleased)
+                    throw new IllegalStateException("AudioRecorder has been released");
+                mSessionStart = mRing.getWritePos();
+                mSessionOpen = true;
+                mLock.notifyAll();
             }
+        } catch (InterruptedException | IllegalStateException e) {
+            e.printStackTrace();
         }
     }
 
     /**
-     * Reads internally stored audio into the given buffer.
-     *  @return number of samples read
+     * Close the capture session, stopping the source once no take is in
+     * progress. A take in progress carries on. Has no effect if no session
+     * is open.
+     */
+    public void closeSession() {
+        Log.d(TAG, "closeSession");
+        if (mSessionOpen) {
+            mSessionOpen = false;
+            if (!isRecording())
+                stopSource();
+        }
+    }
+
+    /** Returns true if a capture session is open */
+    public boolean isSessionOpen() {
+        return mSessionOpen;
+    }
+
+    /**
+     * Get the position in the capture stream of the first sample of the
+     * current or last take, for aligning {@link #newReader()} readers
+     * with takes. Not valid until the first take has started.
+     */
+    public long getTakeStartPos() {
+        return mTakeStart;
+    }
+
+    /**
+     * Get the position in the capture stream after the last sample of the
+     * current or last take, or Long.MAX_VALUE if the take is in progress.
+     */
+    public long getTakeEndPos() {
+        if (mTakeId != mTakeEndId)
+            return Long.MAX_VALUE;
+        return Math.min(mTakeEnd, mTakeStart + mTakeLimit);
+    }
+
+    /**
+     * Appends samples of the current take not yet read to the given buffer.
+     * May be called while recording, so that little is left to copy once
+     * recording stops. Must only be called from one thread.
+     *
+     * Samples overwritten before they were read are skipped, and counted
+     * by {@link #getTakeSamplesLost()}; nothing after the end of the take
+     * is read in their place.
+     *
+     * @return number of samples read
      */
     public int read(AudioBuffer buf) {
-        Log.d(TAG, "read");
-        if (BuildConfig.DEBUG && buf.capacity() < mAudioBuffer.capacity())
-            throw new AssertionError();
-        // copy to dst buffer
-        System.arraycopy(mAudioBuffer.getBuffer(), 0, buf.getBuffer(), buf.getIdx(),
-                mAudioBuffer.getIdx());
-        // increment dst buffer index by number of samples in this buffer
-        buf.incrementIdx(mAudioBuffer.getIdx());
-        return mAudioBuffer.getIdx();
+        int takeId = mTakeId;
+        // the worker hasn't started the latest take yet
+        if (takeId != mRequestId)
+            return 0;
+        if (takeId != mTakeReaderId) {
+            mTakeReader.seek(mTakeStart);
+            mTakeReadPos = mTakeStart;
+            mTakeSamplesLost = 0;
+            mTakeReaderId = takeId;
+        }
+        long end = getTakeEndPos();
+        if (end == Long.MAX_VALUE)
+            end = mTakeStart + mTakeLimit;
+        mTakeReader.setLimit(end);
+        int len = mTakeReader.available();
+        if (len <= 0)
+            return 0;
+        long pos = mTakeReader.getPos();
+        long lostBefore = mTakeReader.getSamplesLost();
+        int n = mTakeReader.read(buf, len);
+        long lost = mTakeReader.getSamplesLost() - lostBefore;
+        if (lost > 0) {
+            mTakeSamplesLost += Math.min(lost, end - pos);
+            Log.w(TAG, mTakeSamplesLost + " samples lost from take");
+        }
+        mTakeReadPos = mTakeReader.getPos();
+        return n;
+    }
+
+    /**
+     * Get the number of samples of the current or last take that were
+     * overwritten before {@link #read(AudioBuffer)} could read them. Must
+     * be called from the thread that reads takes.
+     */
+    public long getTakeSamplesLost() {
+        return mTakeSamplesLost;
+    }
+
+    /**
+     * Create a reader of captured audio, starting at the most recent
+     * sample. Readers run independently of each other and of capture.
+     */
+    public ShortRingBuffer.Reader newReader() {
+        return mRing.newReader();
     }
 
     /**
@@ -148,21 +426,49 @@ public class AudioRecorder {
      * using audio resources.
      *
      * This object should no longer be used once release() has been called.
+     * The source is released by the capture thread as it exits. That is
+     * waited for, up to a limit; if the thread is still blocked reading
+     * the source then, the source is released when the read returns.
      *
      * Subsequent calls on the same object have no effect.
      */
     public void release() {
         Log.d(TAG, "release");
-        bgWorker.shutdown();
-        if (mAudioRecord != null) {
+        synchronized (mLock) {
+            if (mReleased)
+                return;
+            mReleased = true;
+            mLock.notifyAll();
+        }
+        mSessionOpen = false;
+        if (isRecording())
             stopRecording();
-            try {
-                mAudioRecord.release();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-            mAudioRecord = null;
+        else
+            stopSource();
+        try {
+            // the worker releases the source and journal as it exits
+            mWorker.join(RELEASE_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
         }
+        if (mWorker.isAlive())
+            Log.w(TAG, "Capture thread still reading; source will be released when it returns");
+    }
+
+    /**
+     * Stream each take to the given journal as it is captured. Set before
+     * the first take. The journal is released along with this recorder.
+     */
+    public void setJournal(TakeJournal journal) {
+        if (mJournal != null)
+            throw new IllegalStateException("Journal already set");
+        journal.start(mRing.newReader());
+        mJournal = journal;
+    }
+
+    /** Get the journal takes are streamed to, or null */
+    public TakeJournal getJournal() {
+        return mJournal;
     }
 
     public void setOnBufferFullListener(OnBufferFullListener l) {
@@ -174,11 +480,47 @@ public class AudioRecorder {
      * @return Sample rate in Hertz.
      */
     public int getSampleRate() {
-        return mAudioRecord.getSamplingRate();
+        return mSampleRate;
     }
 
+    /** Get the maximum length of a take, in samples */
     public int getBufferSizeSamples() {
-        return mAudioBuffer.capacity();
+        return mTakeLimit;
+    }
+
+    /** Get the number of samples the capture thread reads at a time */
+    public int getPeriodSamples() {
+        return mPeriodSamples;
+    }
+
+    /** Get the number of buffers the capture thread has allocated */
+    public int getAllocationCount() {
+        return mAllocations;
+    }
+
+    /** Get the number of times the capture thread has woken up */
+    public long getWakeupCount() {
+        return mWakeups;
+    }
+
+    /** Get the total length of audio captured, in seconds */
+    public double getCaptureSeconds() {
+        return (double) mSamplesCaptured / mSampleRate;
+    }
+
+    /** Get capture thread allocations per second of audio captured */
+    public double getAllocationsPerSecond() {
+        return perSecondOfCapture(mAllocations);
+    }
+
+    /** Get capture thread wakeups per second of audio captured */
+    public double getWakeupsPerSecond() {
+        return perSecondOfCapture(mWakeups);
+    }
+
+    private double perSecondOfCapture(long count) {
+        double seconds = getCaptureSeconds();
+        return seconds > 0 ? count / seconds : 0;
     }
 
     /**
@@ -188,6 +530,28 @@ public class AudioRecorder {
         return mIsRecording;
     }
 
+    /**
+     * Returns true if writing len more samples to the ring would overwrite
+     * part of the last take that hasn't been read yet
+     */
+    private boolean overwritesUnreadTake(int len) {
+        int takeId = mTakeId;
+        // in progress, or superseded by a take not yet started
+        if (takeId != mTakeEndId || takeId != mRequestId)
+            return false;
+        long unread = mTakeReaderId == takeId ? mTakeReadPos : mTakeStart;
+        return unread < getTakeEndPos()
+                && mRing.getWritePos() + len - mRing.capacity() > unread;
+    }
+
+    private void stopSource() {
+        try {
+            mSource.stop();
+        } catch (InterruptedException | IllegalStateException e) {
+            e.printStackTrace();
+        }
+    }
+
     private void onBufferFullCallback() {
         if (mBufListener != null) {
             mBufListener.onBufferFull();
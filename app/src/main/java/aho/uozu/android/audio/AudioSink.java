@@ -0,0 +1,53 @@
+package aho.uozu.android.audio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A destination for 16 bit mono audio, such as a speaker or a file.
+ *
+ * Writes block like a streaming AudioTrack's: they return once the
+ * sink has room for the samples.
+ */
+public interface AudioSink {
+
+    /** Get the sample rate the sink was created with, in Hertz */
+    int getSampleRate();
+
+    /**
+     * Set the rate at which samples are consumed, in Hertz. Audio
+     * written at a rate other than {@link #getSampleRate()} plays faster
+     * or slower.
+     */
+    void setPlaybackRate(int rateHz);
+
+    /** Start consuming audio */
+    void start();
+
+    /**
+     * Write audio from the given buffer, blocking until there is room
+     * for it.
+     *
+     * @return number of samples written, or a negative error code, as
+     *         returned by AudioTrack.write
+     */
+    int write(short[] src, int off, int len);
+
+    /**
+     * Write the native order 16 bit samples between the position and
+     * limit of src, blocking until there is room for them. The position
+     * is advanced past the samples written.
+     *
+     * @return number of samples written, or a negative error code, as
+     *         returned by AudioTrack.write
+     */
+    int write(ByteBuffer src);
+
+    /** Stop once everything written so far has been consumed */
+    void stop();
+
+    /** Stop straight away, discarding anything not yet consumed */
+    void flush();
+
+    /** Release resources. The sink can't be used afterwards. */
+    void release();
+}
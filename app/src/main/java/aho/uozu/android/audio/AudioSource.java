@@ -0,0 +1,37 @@
+package aho.uozu.android.audio;
+
+/**
+ * A source of 16 bit mono audio, such as a microphone or a file.
+ *
+ * Reads block like AudioRecord.read: they return once the requested
+ * number of samples are available.
+ */
+public interface AudioSource {
+
+    /** Get the sample rate of the audio in Hertz */
+    int getSampleRate();
+
+    /**
+     * Get the number of samples to read at a time. Smaller reads wake the
+     * reader more often; larger reads risk losing audio.
+     */
+    int getPeriodSamples();
+
+    /** Start producing audio */
+    void start() throws InterruptedException;
+
+    /**
+     * Read audio into the given buffer, blocking until len samples are
+     * available.
+     *
+     * @return number of samples read, or a negative error code, as
+     *         returned by AudioRecord.read
+     */
+    int read(short[] dst, int off, int len) throws InterruptedException;
+
+    /** Stop producing audio. Audio not yet read is discarded. */
+    void stop() throws InterruptedException;
+
+    /** Release resources. The source can't be used afterwards. */
+    void release() throws InterruptedException;
+}
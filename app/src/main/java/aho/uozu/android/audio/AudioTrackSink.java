@@ -0,0 +1,112 @@
+package aho.uozu.android.audio;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Build;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Plays audio through a streaming AudioTrack.
+ *
+ * ByteBuffers are written to the track as they are on API 21 and up.
+ * Older tracks only take arrays, so samples are copied through a scratch
+ * array first.
+ */
+public class AudioTrackSink implements AudioSink {
+
+    private final int mSampleRate;
+    private final AudioTrack mAudioTrack;
+    /** For writing ByteBuffers before API 21. Allocated on first use. */
+    private short[] mScratch;
+
+    private static final int SCRATCH_SAMPLES = 1024;
+
+    /**
+     * Initialise the audio track.
+     *
+     * @param sampleRate sample rate in Hertz
+     * @param bufferSamples minimum track buffer size. The platform's
+     *                      minimum is used if it is larger.
+     * @throws IllegalArgumentException if initialisation parameters are bad
+     * @throws IllegalStateException if failed to initialise
+     */
+    public AudioTrackSink(int sampleRate, int bufferSamples)
+            throws IllegalArgumentException, IllegalStateException {
+        mSampleRate = sampleRate;
+        int minBufferBytes = AudioTrack.getMinBufferSize(sampleRate,
+                AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT);
+        // assume 16 bit samples
+        int bufferBytes = Math.max(minBufferBytes, bufferSamples * 2);
+        AudioTrack track = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate,
+                AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT,
+                bufferBytes, AudioTrack.MODE_STREAM);
+        if (track.getState() == AudioTrack.STATE_UNINITIALIZED) {
+            track.release();
+            throw new IllegalStateException("Failed to initialise AudioTrack");
+        }
+        mAudioTrack = track;
+    }
+
+    @Override
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    @Override
+    public void setPlaybackRate(int rateHz) {
+        mAudioTrack.setPlaybackRate(rateHz);
+    }
+
+    @Override
+    public void start() {
+        mAudioTrack.play();
+    }
+
+    @Override
+    public int write(short[] src, int off, int len) {
+        return mAudioTrack.write(src, off, len);
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            int result = mAudioTrack.write(src, src.remaining(), AudioTrack.WRITE_BLOCKING);
+            return result < 0 ? result : result / 2;
+        }
+        if (mScratch == null)
+            mScratch = new short[SCRATCH_SAMPLES];
+        int written = 0;
+        while (src.remaining() >= 2) {
+            int n = Math.min(src.remaining() / 2, mScratch.length);
+            for (int i = 0; i < n; i++) {
+                mScratch[i] = src.getShort();
+            }
+            int result = mAudioTrack.write(mScratch, 0, n);
+            if (result < 0)
+                return result;
+            written += result;
+        }
+        return written;
+    }
+
+    @Override
+    public void stop() {
+        mAudioTrack.stop();
+    }
+
+    @Override
+    public void flush() {
+        mAudioTrack.pause();
+        mAudioTrack.flush();
+    }
+
+    @Override
+    public void release() {
+        if (mAudioTrack.getPlayState() == AudioTrack.PLAYSTATE_PLAYING) {
+            mAudioTrack.stop();
+        }
+        mAudioTrack.release();
+    }
+}
@@ -0,0 +1,85 @@
+package aho.uozu.android.audio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Discards all audio, counting the samples written. Runs on a plain JVM.
+ *
+ * With {@link Pacing#REAL_TIME}, samples are consumed at the playback
+ * rate from a modelled device buffer; if the buffer runs dry, an
+ * underrun is counted by {@link #getUnderrunCount()}.
+ */
+public class NullSink implements AudioSink {
+
+    private final int mSampleRate;
+    private final Pacer mPacer;
+    private volatile long mSamplesWritten;
+
+    /**
+     * @param sampleRate sample rate in Hertz
+     * @param pacing how fast samples are consumed
+     * @param bufferSamples size of the modelled device buffer, for
+     *                      {@link Pacing#REAL_TIME}
+     */
+    public NullSink(int sampleRate, Pacing pacing, int bufferSamples) {
+        mSampleRate = sampleRate;
+        mPacer = new Pacer(pacing, sampleRate, bufferSamples);
+    }
+
+    @Override
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    @Override
+    public void setPlaybackRate(int rateHz) {
+        mPacer.setRate(rateHz);
+    }
+
+    @Override
+    public void start() {
+        mPacer.start();
+    }
+
+    @Override
+    public int write(short[] src, int off, int len) {
+        try {
+            mPacer.awaitWrite(len);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        }
+        mSamplesWritten += len;
+        return len;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        int len = src.remaining() / 2;
+        int result = write(null, 0, len);
+        if (result > 0)
+            src.position(src.position() + result * 2);
+        return result;
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void release() {
+    }
+
+    /** Get the total number of samples written */
+    public long getSamplesWritten() {
+        return mSamplesWritten;
+    }
+
+    public int getUnderrunCount() {
+        return mPacer.getXrunCount();
+    }
+}
@@ -0,0 +1,126 @@
+package aho.uozu.android.audio;
+
+/**
+ * Keeps a synthetic source or sink in step with the wall clock, modelling
+ * a device with a fixed size buffer. Sources that are read too slowly
+ * lose samples (an overrun); sinks that are written too slowly run dry
+ * (an underrun). Both are counted as xruns.
+ *
+ * With {@link Pacing#MAX_SPEED} nothing blocks and no xruns occur.
+ */
+class Pacer {
+
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    /** Period used when no device buffer is modelled */
+    private static final int DEFAULT_PERIOD_FRAMES = 256;
+
+    private final Pacing mPacing;
+    private final int mBufferFrames;
+    private int mRate;
+
+    /** Wall clock time at which the device was at mAnchorFrame */
+    private long mAnchorNanos;
+    private long mAnchorFrame;
+    /** Frames read from a source / written to a sink */
+    private long mPosition;
+    private int mXruns;
+
+    /**
+     * @param rate frames per second
+     * @param bufferFrames size of the modelled device buffer
+     */
+    Pacer(Pacing pacing, int rate, int bufferFrames) {
+        mPacing = pacing;
+        mRate = rate;
+        mBufferFrames = bufferFrames;
+    }
+
+    /** Start the device clock from the current position */
+    synchronized void start() {
+        mAnchorNanos = System.nanoTime();
+        mAnchorFrame = mPosition;
+    }
+
+    /** Change the rate, keeping the device clock continuous */
+    synchronized void setRate(int rate) {
+        mAnchorFrame = clockFrame();
+        mAnchorNanos = System.nanoTime();
+        mRate = rate;
+    }
+
+    /**
+     * Wait until len frames can be read from a source.
+     *
+     * @return number of frames lost to an overrun since the last read.
+     *         The caller should skip this many frames of its audio.
+     */
+    int awaitRead(int len) throws InterruptedException {
+        if (mPacing == Pacing.MAX_SPEED) {
+            mPosition += len;
+            return 0;
+        }
+        long dropped;
+        long ready;
+        synchronized (this) {
+            dropped = Math.max(0, clockFrame() - mBufferFrames - mPosition);
+            if (dropped > 0)
+                mXruns++;
+            mPosition += dropped;
+            ready = mPosition + len;
+        }
+        sleepUntil(ready);
+        synchronized (this) {
+            mPosition = ready;
+        }
+        return (int) dropped;
+    }
+
+    /** Wait until there is room for len frames in a sink */
+    void awaitWrite(int len) throws InterruptedException {
+        if (mPacing == Pacing.MAX_SPEED) {
+            mPosition += len;
+            return;
+        }
+        long ready;
+        synchronized (this) {
+            if (clockFrame() > mPosition && mPosition > mAnchorFrame) {
+                // played everything written - restart the clock
+                mXruns++;
+                start();
+            }
+            ready = mPosition + len - mBufferFrames;
+        }
+        sleepUntil(ready);
+        synchronized (this) {
+            mPosition += len;
+        }
+    }
+
+    /** Get a read or write size that keeps the modelled buffer from running over */
+    int getPeriodFrames() {
+        if (mPacing == Pacing.MAX_SPEED || mBufferFrames < 2)
+            return DEFAULT_PERIOD_FRAMES;
+        return mBufferFrames / 2;
+    }
+
+    /** Get the number of overruns or underruns so far */
+    synchronized int getXrunCount() {
+        return mXruns;
+    }
+
+    /** Frames through the device, according to the wall clock */
+    private synchronized long clockFrame() {
+        return mAnchorFrame + (System.nanoTime() - mAnchorNanos) * mRate / NANOS_PER_SECOND;
+    }
+
+    private void sleepUntil(long frame) throws InterruptedException {
+        long wakeNanos;
+        synchronized (this) {
+            wakeNanos = mAnchorNanos + (frame - mAnchorFrame) * NANOS_PER_SECOND / mRate;
+        }
+        long delay = wakeNanos - System.nanoTime();
+        if (delay > 0) {
+            Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+        }
+    }
+}
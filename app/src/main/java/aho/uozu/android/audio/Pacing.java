@@ -0,0 +1,11 @@
+package aho.uozu.android.audio;
+
+/**
+ * How fast a synthetic {@link AudioSource} or {@link AudioSink} runs.
+ */
+public enum Pacing {
+    /** Produce or consume samples at the sample rate, like real hardware */
+    REAL_TIME,
+    /** Never block */
+    MAX_SPEED
+}
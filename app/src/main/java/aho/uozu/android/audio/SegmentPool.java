@@ -0,0 +1,66 @@
+package aho.uozu.android.audio;
+
+import java.util.ArrayDeque;
+
+/**
+ * Recycles the fixed size sample segments that segmented
+ * {@link AudioBuffer}s are made of, so that buffers can grow and shrink
+ * with the length of a recording without allocating each time.
+ *
+ * Thread safe. Segments are handed out with whatever samples they held
+ * when released.
+ */
+public class SegmentPool {
+
+    private final int mSegmentSamples;
+    private final int mMaxPooled;
+    private final ArrayDeque<short[]> mFree;
+    private int mAllocations;
+
+    /**
+     * @param segmentSamples length of each segment, in samples
+     * @param maxPooled maximum number of free segments kept for reuse.
+     *                  Segments released beyond this are left to the
+     *                  garbage collector.
+     */
+    public SegmentPool(int segmentSamples, int maxPooled) {
+        if (segmentSamples <= 0 || maxPooled < 0)
+            throw new IllegalArgumentException();
+        mSegmentSamples = segmentSamples;
+        mMaxPooled = maxPooled;
+        mFree = new ArrayDeque<>(maxPooled);
+    }
+
+    /** Get the length of each segment, in samples */
+    public int getSegmentSamples() {
+        return mSegmentSamples;
+    }
+
+    /** Take a segment from the pool, allocating one if the pool is empty */
+    public synchronized short[] acquire() {
+        short[] segment = mFree.poll();
+        if (segment == null) {
+            segment = new short[mSegmentSamples];
+            mAllocations++;
+        }
+        return segment;
+    }
+
+    /** Return a segment to the pool */
+    public synchronized void release(short[] segment) {
+        if (segment.length != mSegmentSamples)
+            throw new IllegalArgumentException("Segment is not from this pool");
+        if (mFree.size() < mMaxPooled)
+            mFree.push(segment);
+    }
+
+    /** Get the number of free segments held */
+    public synchronized int getPooledCount() {
+        return mFree.size();
+    }
+
+    /** Get the number of segments allocated so far */
+    public synchronized int getAllocationCount() {
+        return mAllocations;
+    }
+}
@@ -0,0 +1,256 @@
+package aho.uozu.android.audio;
+
+/**
+ * Lock-free ring buffer of 16 bit samples, with one writer and any number
+ * of readers.
+ *
+ * The writer never waits: once the ring is full, the oldest samples are
+ * overwritten. Each {@link Reader} keeps its own position, so a level
+ * meter, a file writer and the recording buffer can all consume the same
+ * stream at their own pace. A reader that falls more than a ring length
+ * behind loses the overwritten samples, and the loss is counted.
+ *
+ * Positions are absolute sample counts since the ring was created, so
+ * they never wrap in practice. The writer publishes how far it is about
+ * to write before touching the ring, and how far it has written after;
+ * readers check the first after copying, to discard anything the writer
+ * may have overwritten during the copy.
+ *
+ * Java 7 has no explicit memory fences, so both sides order the plain
+ * array accesses against the claim with a volatile store followed by a
+ * volatile load, which can't be reordered with each other. Plain
+ * accesses can't move forward past the store, nor back past the load.
+ */
+public class ShortRingBuffer {
+
+    /** Size of a reader's scratch buffer, for reading into direct buffers */
+    private static final int SCRATCH_SAMPLES = 1024;
+
+    private final short[] mData;
+    private final int mMask;
+
+    /** Samples before this position have been written */
+    private volatile long mWritePos;
+    /** Samples before this position may be being written */
+    private volatile long mClaimPos;
+
+    /**
+     * @param minCapacity minimum number of samples held. Rounded up to a
+     *                    power of two.
+     */
+    public ShortRingBuffer(int minCapacity) {
+        if (minCapacity <= 0 || minCapacity > 1 << 30)
+            throw new IllegalArgumentException("Bad capacity: " + minCapacity);
+        int capacity = Integer.highestOneBit(minCapacity);
+        if (capacity < minCapacity)
+            capacity <<= 1;
+        mData = new short[capacity];
+        mMask = capacity - 1;
+    }
+
+    /** Get the number of samples held before the oldest are overwritten */
+    public int capacity() {
+        return mData.length;
+    }
+
+    /** Get the position after the last sample written */
+    public long getWritePos() {
+        return mWritePos;
+    }
+
+    /**
+     * Append samples, overwriting the oldest if the ring is full. Must only
+     * be called from the writer thread.
+     */
+    public void write(short[] src, int off, int len) {
+        if (off < 0 || len < 0 || off + len > src.length)
+            throw new IndexOutOfBoundsException();
+        long pos = mWritePos;
+        // only the last ring length of a huge write survives
+        if (len > mData.length) {
+            pos += len - mData.length;
+            off += len - mData.length;
+            len = mData.length;
+        }
+        mClaimPos = pos + len;
+        // loaded back so the copy below can't be reordered before the claim
+        long claimPos = mClaimPos;
+        int idx = (int) (claimPos - len) & mMask;
+        int first = Math.min(len, mData.length - idx);
+        System.arraycopy(src, off, mData, idx, first);
+        System.arraycopy(src, off + first, mData, 0, len - first);
+        mWritePos = pos + len;
+    }
+
+    /** Create a reader starting at the current write position */
+    public Reader newReader() {
+        return new Reader(mWritePos);
+    }
+
+    /**
+     * Create a reader starting at the given position. If samples at that
+     * position have already been overwritten, the first read skips ahead
+     * and counts an overrun.
+     */
+    public Reader newReader(long startPos) {
+        if (startPos > mWritePos)
+            throw new IllegalArgumentException("Position not written yet: " + startPos);
+        return new Reader(startPos);
+    }
+
+    /**
+     * Cursor into the ring. Each reader must only be used by one thread
+     * at a time.
+     */
+    public class Reader {
+        private long mPos;
+        /**
+         * Stored after each copy, so the copy can't be reordered after
+         * the check of mClaimPos that follows
+         */
+        private volatile int mCopied;
+        /** Reads stop here */
+        private long mLimit = Long.MAX_VALUE;
+        private int mOverruns;
+        private long mSamplesLost;
+        /** Allocated on first read into a direct buffer */
+        private short[] mScratch;
+
+        private Reader(long startPos) {
+            mPos = startPos;
+        }
+
+        /** Get the position of the next sample to read */
+        public long getPos() {
+            return mPos;
+        }
+
+        /**
+         * Get the number of samples waiting to be read. May include
+         * samples that will be overwritten before they are read.
+         */
+        public int available() {
+            long end = Math.min(mWritePos, mLimit);
+            return (int) Math.max(0, Math.min(end - mPos, mData.length));
+        }
+
+        /**
+         * Copy up to len waiting samples into dst. Never blocks.
+         *
+         * @return number of samples copied
+         */
+        public int read(short[] dst, int off, int len) {
+            if (off < 0 || len < 0 || off + len > dst.length)
+                throw new IndexOutOfBoundsException();
+            long end = Math.min(mWritePos, mLimit);
+            skipOverwritten(mClaimPos);
+            int n = (int) Math.min(len, end - mPos);
+            if (n <= 0)
+                return 0;
+            int idx = (int) mPos & mMask;
+            int first = Math.min(n, mData.length - idx);
+            System.arraycopy(mData, idx, dst, off, first);
+            System.arraycopy(mData, 0, dst, off + first, n - first);
+
+            mCopied = n;
+            // anything the writer reached during the copy is suspect
+            long lost = mClaimPos - mData.length - mPos;
+            if (lost > 0) {
+                if (lost >= n) {
+                    skipOverwritten(mClaimPos);
+                    return 0;
+                }
+                System.arraycopy(dst, off + (int) lost, dst, off, n - (int) lost);
+                n -= lost;
+                mPos += lost;
+                countOverrun(lost);
+            }
+            mPos += n;
+            return n;
+        }
+
+        /**
+         * Copy up to len waiting samples into the given buffer, limited by
+         * the space left in it.
+         *
+         * @return number of samples copied
+         */
+        public int read(AudioBuffer dst, int len) {
+            len = Math.min(len, dst.remaining());
+            if (dst.isDirect())
+                return readDirect(dst, len);
+            int done = 0;
+            while (done < len) {
+                int wanted = Math.min(len - done, dst.getWriteSegmentRemaining());
+                int n = read(dst.getWriteSegment(), dst.getWriteSegmentOffset(), wanted);
+                dst.incrementIdx(n);
+                done += n;
+                if (n < wanted)
+                    break;
+            }
+            return done;
+        }
+
+        private int readDirect(AudioBuffer dst, int len) {
+            if (mScratch == null)
+                mScratch = new short[SCRATCH_SAMPLES];
+            int done = 0;
+            while (done < len) {
+                int wanted = Math.min(len - done, mScratch.length);
+                int n = read(mScratch, 0, wanted);
+                dst.write(mScratch, 0, n);
+                done += n;
+                if (n < wanted)
+                    break;
+            }
+            return done;
+        }
+
+        /**
+         * Move to the given position. Samples before the oldest still
+         * held are skipped on the next read, as an overrun.
+         */
+        public void seek(long pos) {
+            if (pos > mWritePos)
+                throw new IllegalArgumentException("Position not written yet: " + pos);
+            mPos = pos;
+        }
+
+        /**
+         * Stop reads at the given position, such as the end of a take,
+         * even if samples before it were skipped as overwritten.
+         * Long.MAX_VALUE for no limit.
+         */
+        public void setLimit(long limitPos) {
+            mLimit = limitPos;
+        }
+
+        /** Skip all waiting samples */
+        public void skipToEnd() {
+            mPos = mWritePos;
+        }
+
+        /** Get the number of times this reader fell behind the writer */
+        public int getOverrunCount() {
+            return mOverruns;
+        }
+
+        /** Get the total number of samples this reader missed */
+        public long getSamplesLost() {
+            return mSamplesLost;
+        }
+
+        private void skipOverwritten(long claimPos) {
+            long oldest = claimPos - mData.length;
+            if (mPos < oldest) {
+                countOverrun(oldest - mPos);
+                mPos = oldest;
+            }
+        }
+
+        private void countOverrun(long lost) {
+            mOverruns++;
+            mSamplesLost += lost;
+        }
+    }
+}
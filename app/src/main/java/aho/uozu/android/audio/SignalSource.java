@@ -0,0 +1,78 @@
+package aho.uozu.android.audio;
+
+/**
+ * Generates a sine wave, for exercising the capture pipeline without a
+ * microphone. Runs on a plain JVM.
+ *
+ * With {@link Pacing#REAL_TIME}, samples are produced at the sample rate
+ * into a modelled device buffer; samples not read before the buffer
+ * fills are lost, and counted by {@link #getOverrunCount()}.
+ */
+public class SignalSource implements AudioSource {
+
+    private final int mSampleRate;
+    private final double mFrequency;
+    private final short mAmplitude;
+    private final Pacer mPacer;
+    /** Index of the next sample to generate */
+    private long mSampleIdx;
+
+    /**
+     * @param sampleRate sample rate in Hertz
+     * @param frequency frequency of the sine wave in Hertz
+     * @param amplitude peak sample value
+     * @param pacing how fast samples are produced
+     * @param bufferSamples size of the modelled device buffer, for
+     *                      {@link Pacing#REAL_TIME}
+     */
+    public SignalSource(int sampleRate, double frequency, short amplitude,
+                        Pacing pacing, int bufferSamples) {
+        mSampleRate = sampleRate;
+        mFrequency = frequency;
+        mAmplitude = amplitude;
+        mPacer = new Pacer(pacing, sampleRate, bufferSamples);
+    }
+
+    /** Get the value of the sample with the given index */
+    public short sampleAt(long idx) {
+        return (short) (mAmplitude * Math.sin(2 * Math.PI * mFrequency * idx / mSampleRate));
+    }
+
+    @Override
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    @Override
+    public int getPeriodSamples() {
+        return mPacer.getPeriodFrames();
+    }
+
+    @Override
+    public void start() {
+        mPacer.start();
+    }
+
+    @Override
+    public int read(short[] dst, int off, int len) throws InterruptedException {
+        // skip samples lost while nobody was reading
+        mSampleIdx += mPacer.awaitRead(len);
+        for (int i = 0; i < len; i++) {
+            dst[off + i] = sampleAt(mSampleIdx++);
+        }
+        return len;
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public void release() {
+    }
+
+    /** Get the number of times samples were lost because reads fell behind */
+    public int getOverrunCount() {
+        return mPacer.getXrunCount();
+    }
+}
@@ -0,0 +1,488 @@
+package aho.uozu.android.audio;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Streams the take being recorded to a file as it is captured, so that a
+ * take survives the app crashing or being killed mid-recording. Attach
+ * to a recorder with {@link AudioRecorder#setJournal(TakeJournal)}, and
+ * read a journal left behind with {@link #recover(File, AudioBuffer)}.
+ *
+ * A journal thread reads the take from the recorder's ring buffer and
+ * appends it to the file in fixed size blocks, through one direct buffer
+ * allocated up front. The file is forced to storage every few blocks and
+ * at the end of each take, rather than for every block. The capture
+ * thread only signals the journal thread, so disk latency never holds up
+ * capture; at most {@link #getMaxUnsyncedSamples()} samples are lost in
+ * a crash.
+ *
+ * File layout: a header of magic, version, sample rate, block length in
+ * samples and a CRC32 of those four ints, then one record per block.
+ * Each record is the number of samples used, a checksum of those samples,
+ * then a full block of samples. All values are little-endian. Recovery
+ * stops at the first record that doesn't check out, which drops a block
+ * torn by the crash.
+ *
+ * Each take overwrites the journal of the last. A take that has ended
+ * stays in the journal until {@link #clearTake(int)} says it is saved
+ * elsewhere, such as in a snapshot of the recording buffer; only then is
+ * the journal emptied, or deleted if the journal has been released. So a
+ * crash before the take is saved still leaves it to recover.
+ */
+public class TakeJournal {
+
+    /** "YKJN", little-endian */
+    private static final int MAGIC = 0x4e4a4b59;
+    private static final int VERSION = 1;
+    private static final int HEADER_LEN = 20;
+    /** Sample count and checksum before each block */
+    private static final int RECORD_HEADER_LEN = 8;
+    private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+    private static final String TAG = "YakBox-TakeJournal";
+    private static final int RELEASE_TIMEOUT_MS = 500;
+
+    private final File mFile;
+    private final int mSampleRate;
+    private final int mBlockSamples;
+    private final int mBlocksPerSync;
+    private Thread mWriter;
+    private ShortRingBuffer.Reader mReader;
+
+    /** Guards the take events below */
+    private final Object mLock = new Object();
+    /** Incremented for every take started */
+    private int mTakeSeq;
+    private long mTakeStart;
+    /** End of the current take, or Long.MAX_VALUE while recording */
+    private long mTakeEnd;
+    /** Take to empty the journal of once it has ended, or -1 */
+    private int mClearSeq = -1;
+    /** Incremented whenever there is something for the writer to do */
+    private int mSignals;
+    private volatile boolean mReleased;
+    /** True once the writer has closed the file */
+    private boolean mWriterDone;
+    /** The take left complete in the file when the writer finished, or -1 */
+    private int mFinalSeq = -1;
+
+    /** Journal statistics */
+    private volatile long mBlocksWritten;
+    private volatile long mSyncs;
+    private volatile long mSyncNanos;
+    private volatile long mMaxSyncNanos;
+    private volatile long mSignalNanos;
+    private volatile long mSignalCount;
+
+    /** Appends takes to the journal file */
+    private class Writer implements Runnable {
+        private final short[] block = new short[mBlockSamples];
+        private final ByteBuffer record = ByteBuffer
+                .allocateDirect(RECORD_HEADER_LEN + mBlockSamples * 2).order(ORDER);
+        private RandomAccessFile file;
+        private FileChannel channel;
+        /** Samples waiting in block */
+        private int fill;
+        private long takeBlocks;
+        private int blocksSinceSync;
+        private int seq;
+        /** True once the current take has been written in full */
+        private boolean done = true;
+        /** True once the current take has been cleared from the file */
+        private boolean cleared;
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            int handled = 0;
+            while (true) {
+                int takeSeq;
+                long start;
+                long end;
+                int clearSeq;
+                synchronized (mLock) {
+                    while (mSignals == handled && !mReleased) {
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException e) {
+                            Log.d(TAG, "Writer interrupted");
+                        }
+                    }
+                    // finish what was signalled first, such as the end of
+                    // the take
+                    if (mReleased && mSignals == handled)
+                        break;
+                    handled = mSignals;
+                    takeSeq = mTakeSeq;
+                    start = mTakeStart;
+                    end = mTakeEnd;
+                    clearSeq = mClearSeq;
+                }
+                try {
+                    if (takeSeq != seq) {
+                        seq = takeSeq;
+                        beginTake(start);
+                    }
+                    if (done) {
+                        // nothing to write until the next take
+                    }
+                    else if (end == Long.MAX_VALUE) {
+                        append();
+                    }
+                    else {
+                        endTake(end);
+                    }
+                    if (done && clearSeq == seq && file != null && !cleared) {
+                        channel.truncate(0);
+                        sync();
+                        cleared = true;
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Error writing journal", e);
+                    // give up on this take
+                    done = true;
+                }
+            }
+            closeFile();
+            boolean saved;
+            synchronized (mLock) {
+                mWriterDone = true;
+                mFinalSeq = done ? seq : -1;
+                saved = done && mClearSeq == seq;
+            }
+            // nothing left worth recovering
+            if (saved || file == null)
+                mFile.delete();
+            Log.d(TAG, "Writer done");
+        }
+
+        private void beginTake(long start) throws IOException {
+            if (file == null) {
+                file = new RandomAccessFile(mFile, "rw");
+                channel = file.getChannel();
+            }
+            channel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LEN).order(ORDER);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(mSampleRate);
+            header.putInt(mBlockSamples);
+            header.putInt(headerCrc(header.array()));
+            header.flip();
+            writeFully(header, 0);
+            mReader.seek(start);
+            mReader.setLimit(Long.MAX_VALUE);
+            fill = 0;
+            takeBlocks = 0;
+            blocksSinceSync = 0;
+            done = false;
+            cleared = false;
+        }
+
+        /** Write the whole blocks captured so far of the take in progress */
+        private void append() throws IOException {
+            while (true) {
+                int len = mBlockSamples - fill;
+                int n = mReader.read(block, fill, len);
+                fill += n;
+                if (fill < mBlockSamples)
+                    break;
+                writeBlock();
+            }
+        }
+
+        /**
+         * The take has ended at the given position. Write what is left of
+         * it and force it to storage; it stays until cleared.
+         */
+        private void endTake(long end) throws IOException {
+            mReader.setLimit(end);
+            append();
+            if (fill > 0)
+                writeBlock();
+            sync();
+            done = true;
+        }
+
+        private void writeBlock() throws IOException {
+            record.clear();
+            record.putInt(fill);
+            record.putInt(checksum(block, fill));
+            record.asShortBuffer().put(block, 0, fill);
+            record.position(0);
+            writeFully(record, HEADER_LEN + takeBlocks * record.capacity());
+            fill = 0;
+            takeBlocks++;
+            mBlocksWritten++;
+            if (++blocksSinceSync >= mBlocksPerSync)
+                sync();
+        }
+
+        private void sync() throws IOException {
+            long t = System.nanoTime();
+            channel.force(false);
+            long elapsed = System.nanoTime() - t;
+            mSyncs++;
+            mSyncNanos += elapsed;
+            if (elapsed > mMaxSyncNanos)
+                mMaxSyncNanos = elapsed;
+            blocksSinceSync = 0;
+        }
+
+        private void writeFully(ByteBuffer buf, long pos) throws IOException {
+            while (buf.hasRemaining()) {
+                pos += channel.write(buf, pos);
+            }
+        }
+
+        private void closeFile() {
+            if (file == null)
+                return;
+            try {
+                file.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing journal", e);
+            }
+        }
+    }
+
+    /**
+     * @param file where to keep the journal
+     * @param sampleRate sample rate of the recorder, kept for recovery
+     * @param blockSamples length of each block written, in samples
+     * @param blocksPerSync number of blocks written between forcing the
+     *                      file to storage
+     */
+    public TakeJournal(File file, int sampleRate, int blockSamples, int blocksPerSync) {
+        if (blockSamples <= 0 || blocksPerSync <= 0)
+            throw new IllegalArgumentException();
+        mFile = file;
+        mSampleRate = sampleRate;
+        mBlockSamples = blockSamples;
+        mBlocksPerSync = blocksPerSync;
+    }
+
+    /**
+     * Start journalling from the given reader of the recorder's ring.
+     * Called by the recorder.
+     */
+    void start(ShortRingBuffer.Reader reader) {
+        if (mWriter != null)
+            throw new IllegalStateException("Journal already started");
+        mReader = reader;
+        mWriter = new Thread(new Writer(), "TakeJournal-writer");
+        mWriter.start();
+    }
+
+    /** A take has started at the given position in the ring. Called on capture. */
+    void onTakeStarted(long startPos) {
+        long t = System.nanoTime();
+        synchronized (mLock) {
+            mTakeSeq++;
+            mTakeStart = startPos;
+            mTakeEnd = Long.MAX_VALUE;
+            mSignals++;
+            mLock.notifyAll();
+        }
+        countSignal(t);
+    }
+
+    /** More of the take has been captured. Called on capture. */
+    void onCaptured() {
+        long t = System.nanoTime();
+        synchronized (mLock) {
+            mSignals++;
+            mLock.notifyAll();
+        }
+        countSignal(t);
+    }
+
+    /** The take has ended at the given position in the ring. Called on capture. */
+    void onTakeEnded(long endPos) {
+        long t = System.nanoTime();
+        synchronized (mLock) {
+            mTakeEnd = endPos;
+            mSignals++;
+            mLock.notifyAll();
+        }
+        countSignal(t);
+    }
+
+    private void countSignal(long startNanos) {
+        mSignalNanos += System.nanoTime() - startNanos;
+        mSignalCount++;
+    }
+
+    /**
+     * Get the sequence number of the latest take, for
+     * {@link #clearTake(int)}. 0 before the first take.
+     */
+    public int getTakeSeq() {
+        synchronized (mLock) {
+            return mTakeSeq;
+        }
+    }
+
+    /**
+     * The given take, from {@link #getTakeSeq()}, has been saved
+     * elsewhere, so there is no need to recover it. Once it has ended, the
+     * journal is emptied, unless a later take has started. May be called
+     * after {@link #release()}, and from any thread.
+     */
+    public void clearTake(int takeSeq) {
+        synchronized (mLock) {
+            if (!mWriterDone) {
+                // the writer empties the file between blocks
+                mClearSeq = takeSeq;
+                mSignals++;
+                mLock.notifyAll();
+                return;
+            }
+            if (takeSeq != mFinalSeq)
+                return;
+            mFinalSeq = -1;
+        }
+        mFile.delete();
+    }
+
+    /**
+     * Stop journalling, once what has been captured is written. The
+     * journal file is deleted unless it holds a take that hasn't been
+     * cleared, which is then left to recover; if it is cleared later, the
+     * file is deleted then.
+     */
+    public void release() {
+        synchronized (mLock) {
+            if (mReleased)
+                return;
+            mReleased = true;
+            mLock.notifyAll();
+        }
+        if (mWriter != null) {
+            try {
+                mWriter.join(RELEASE_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        else {
+            synchronized (mLock) {
+                mWriterDone = true;
+            }
+        }
+    }
+
+    /** Get the largest number of samples that may be lost in a crash */
+    public int getMaxUnsyncedSamples() {
+        return mBlockSamples * (mBlocksPerSync + 1);
+    }
+
+    /** Get the number of blocks written */
+    public long getBlocksWritten() {
+        return mBlocksWritten;
+    }
+
+    /** Get the number of times the file has been forced to storage */
+    public long getSyncCount() {
+        return mSyncs;
+    }
+
+    /** Get the mean time taken to force the file to storage, in ms */
+    public double getMeanSyncMillis() {
+        long syncs = mSyncs;
+        return syncs > 0 ? mSyncNanos / 1e6 / syncs : 0;
+    }
+
+    /** Get the longest time taken to force the file to storage, in ms */
+    public double getMaxSyncMillis() {
+        return mMaxSyncNanos / 1e6;
+    }
+
+    /**
+     * Get the mean time the capture thread spends signalling the journal
+     * per call, in microseconds. This is all journalling costs capture.
+     */
+    public double getMeanSignalMicros() {
+        long count = mSignalCount;
+        return count > 0 ? mSignalNanos / 1e3 / count : 0;
+    }
+
+    /**
+     * Append the samples of a journal left by a take that didn't finish
+     * to the given buffer, up to the first block that was not completely
+     * written. The journal of a take that ended is empty, and is not a
+     * journal to recover from.
+     *
+     * @return sample rate of the journalled take
+     * @throws IOException if the file can't be read or isn't a journal
+     */
+    public static int recover(File file, AudioBuffer buffer) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LEN).order(ORDER);
+            readFully(channel, header);
+            if (header.hasRemaining() || header.getInt(0) != MAGIC)
+                throw new IOException("Not a take journal");
+            if (header.getInt(4) != VERSION)
+                throw new IOException("Unsupported journal version " + header.getInt(4));
+            if (header.getInt(16) != headerCrc(header.array()))
+                throw new IOException("Journal header is corrupt");
+            int sampleRate = header.getInt(8);
+            int blockSamples = header.getInt(12);
+            if (blockSamples <= 0 || blockSamples > (Integer.MAX_VALUE - RECORD_HEADER_LEN) / 2)
+                throw new IOException("Journal header is corrupt");
+
+            ByteBuffer record = ByteBuffer
+                    .allocateDirect(RECORD_HEADER_LEN + blockSamples * 2).order(ORDER);
+            short[] block = new short[blockSamples];
+            while (!buffer.isFull()) {
+                record.clear();
+                readFully(channel, record);
+                if (record.hasRemaining())
+                    break;
+                int count = record.getInt(0);
+                if (count <= 0 || count > blockSamples)
+                    break;
+                record.position(RECORD_HEADER_LEN);
+                record.asShortBuffer().get(block, 0, count);
+                if (record.getInt(4) != checksum(block, count))
+                    break;
+                buffer.write(block, 0, count);
+            }
+            return sampleRate;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining() && channel.read(dst) >= 0) {
+            // until full or end of file
+        }
+    }
+
+    /** CRC32 of the header fields before the checksum */
+    private static int headerCrc(byte[] header) {
+        CRC32 crc = new CRC32();
+        crc.update(header, 0, HEADER_LEN - 4);
+        return (int) crc.getValue();
+    }
+
+    /** FNV-1a hash of the samples, cheap enough to run per block */
+    private static int checksum(short[] samples, int len) {
+        int hash = 0x811c9dc5;
+        for (int i = 0; i < len; i++) {
+            hash = (hash ^ (samples[i] & 0xffff)) * 0x01000193;
+        }
+        return hash;
+    }
+}
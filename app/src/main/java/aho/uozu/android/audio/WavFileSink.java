@@ -0,0 +1,112 @@
+package aho.uozu.android.audio;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import aho.uozu.audio.wav.WaveFileWriter;
+
+/**
+ * Records everything played into a 16 bit mono wave file, at the sink's
+ * sample rate. Runs on a plain JVM. The file is completed when the sink
+ * is released.
+ *
+ * With {@link Pacing#REAL_TIME}, samples are consumed at the playback
+ * rate, as for {@link NullSink}.
+ */
+public class WavFileSink implements AudioSink {
+
+    /** Returned by write if the file can't be written */
+    public static final int ERROR_IO = -1;
+
+    private final int mSampleRate;
+    private final WaveFileWriter mWriter;
+    private final Pacer mPacer;
+    private volatile long mSamplesWritten;
+
+    /**
+     * @param path wave file to create, overwriting any existing file
+     * @param sampleRate sample rate in Hertz
+     * @param pacing how fast samples are consumed
+     * @param bufferSamples size of the modelled device buffer, for
+     *                      {@link Pacing#REAL_TIME}
+     * @throws IOException if the file can't be created
+     */
+    public WavFileSink(String path, int sampleRate, Pacing pacing, int bufferSamples)
+            throws IOException {
+        mSampleRate = sampleRate;
+        mWriter = new WaveFileWriter(path, sampleRate, 1);
+        mPacer = new Pacer(pacing, sampleRate, bufferSamples);
+    }
+
+    @Override
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    @Override
+    public void setPlaybackRate(int rateHz) {
+        mPacer.setRate(rateHz);
+    }
+
+    @Override
+    public void start() {
+        mPacer.start();
+    }
+
+    @Override
+    public int write(short[] src, int off, int len) {
+        try {
+            mPacer.awaitWrite(len);
+            mWriter.writeFrames(src, off, len);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        } catch (IOException e) {
+            return ERROR_IO;
+        }
+        mSamplesWritten += len;
+        return len;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        int len = src.remaining() / 2;
+        try {
+            mPacer.awaitWrite(len);
+            mWriter.writeFrames(src);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
+        } catch (IOException e) {
+            return ERROR_IO;
+        }
+        mSamplesWritten += len;
+        return len;
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void release() {
+        try {
+            mWriter.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Get the total number of samples written */
+    public long getSamplesWritten() {
+        return mSamplesWritten;
+    }
+
+    public int getUnderrunCount() {
+        return mPacer.getXrunCount();
+    }
+}
@@ -0,0 +1,109 @@
+package aho.uozu.android.audio;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import aho.uozu.audio.wav.WaveFileReader;
+
+/**
+ * Plays a wave file into the capture pipeline, as if it were being
+ * recorded. Runs on a plain JVM. Any format WaveFileReader supports
+ * can be used; audio is converted to 16 bit mono.
+ *
+ * After the end of the file, reads return silence, or start the file
+ * again if looping.
+ *
+ * With {@link Pacing#REAL_TIME}, samples are produced at the file's
+ * sample rate, as for {@link SignalSource}.
+ */
+public class WavFileSource implements AudioSource {
+
+    /** Returned by read if the file can't be read */
+    public static final int ERROR_IO = -1;
+
+    private final WaveFileReader mReader;
+    private final boolean mLoop;
+    private final Pacer mPacer;
+
+    /**
+     * @param path wave file to read
+     * @param loop true to start from the beginning again at the end
+     * @param pacing how fast samples are produced
+     * @param bufferSamples size of the modelled device buffer, for
+     *                      {@link Pacing#REAL_TIME}
+     * @throws IOException if the file can't be opened
+     */
+    public WavFileSource(String path, boolean loop, Pacing pacing, int bufferSamples)
+            throws IOException {
+        mReader = new WaveFileReader(path);
+        mLoop = loop;
+        mPacer = new Pacer(pacing, mReader.getSampleRate(), bufferSamples);
+    }
+
+    @Override
+    public int getSampleRate() {
+        return mReader.getSampleRate();
+    }
+
+    @Override
+    public int getPeriodSamples() {
+        return mPacer.getPeriodFrames();
+    }
+
+    @Override
+    public void start() {
+        mPacer.start();
+    }
+
+    @Override
+    public int read(short[] dst, int off, int len) throws InterruptedException {
+        int dropped = mPacer.awaitRead(len);
+        try {
+            skip(dropped);
+            int numRead = 0;
+            while (numRead < len) {
+                int result = mReader.readFrames(dst, off + numRead, len - numRead);
+                if (result < 0 && mLoop && mReader.getNumFrames() > 0) {
+                    mReader.seekFrame(0);
+                }
+                else if (result < 0) {
+                    // silence after the end of the file
+                    Arrays.fill(dst, off + numRead, off + len, (short) 0);
+                    break;
+                }
+                else {
+                    numRead += result;
+                }
+            }
+            return len;
+        } catch (IOException e) {
+            return ERROR_IO;
+        }
+    }
+
+    private void skip(int frames) throws IOException {
+        if (frames == 0 || mReader.getNumFrames() == 0)
+            return;
+        int pos = mReader.getNumFrames() - mReader.getFramesRemaining() + frames;
+        mReader.seekFrame(mLoop ? pos % mReader.getNumFrames()
+                : Math.min(pos, mReader.getNumFrames()));
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public void release() {
+        try {
+            mReader.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Get the number of times samples were lost because reads fell behind */
+    public int getOverrunCount() {
+        return mPacer.getXrunCount();
+    }
+}
@@ -0,0 +1,309 @@
+package aho.uozu.yakbox;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs file operations on a fixed number of background threads.
+ *
+ * Waiting operations are started highest priority first, and in order of
+ * submission within a priority, so a load the user is waiting for goes
+ * ahead of any cleanup or share rendering already queued. Operations
+ * submitted while maxQueued are already waiting fail straight away with
+ * a RejectedExecutionException, reported on the submitting thread.
+ *
+ * Queue depth, wait time and run time are kept for each type of operation.
+ */
+public class IoExecutor {
+
+    /** How soon an operation should run. Earlier values run first. */
+    public enum Priority {
+        /** The user is waiting for the result */
+        INTERACTIVE,
+        NORMAL,
+        /** Nobody is waiting */
+        BACKGROUND
+    }
+
+    /** Types of operation, for priorities and statistics */
+    public enum Op {
+        LIST(Priority.INTERACTIVE),
+        LOAD(Priority.INTERACTIVE),
+        SAVE(Priority.NORMAL),
+        SNAPSHOT(Priority.NORMAL),
+        DELETE(Priority.NORMAL),
+        SHARE(Priority.BACKGROUND),
+        CLEANUP(Priority.BACKGROUND);
+
+        private final Priority mPriority;
+
+        Op(Priority priority) {
+            mPriority = priority;
+        }
+
+        public Priority getPriority() {
+            return mPriority;
+        }
+    }
+
+    /**
+     * Receives the outcome of an operation. Called on the I/O thread, or
+     * on the submitting thread, before submit() returns, if the operation
+     * is rejected because the queue is full. Not called at all if the
+     * operation is cancelled.
+     */
+    public interface Callback<T> {
+        void onComplete(T result);
+        void onError(Exception e);
+    }
+
+    private static final String TAG = "Yakbox-IoExecutor";
+
+    private final ThreadPoolExecutor mExecutor;
+    private final int mMaxQueued;
+    private final AtomicLong mSeq = new AtomicLong();
+    /** Operations submitted and not yet dequeued, bounded by mMaxQueued */
+    private final AtomicInteger mWaiting = new AtomicInteger();
+    private final OpStats[] mStats;
+
+    /** Counts for one type of operation. Guarded by itself. */
+    private static class OpStats {
+        int queued;
+        long completed;
+        long failed;
+        long cancelled;
+        long rejected;
+        long waitNanos;
+        long maxWaitNanos;
+        long runNanos;
+    }
+
+    /** An operation waiting for, or on, an I/O thread */
+    private class Task<T> extends FutureTask<T> implements Comparable<Task<?>> {
+        private final Op mOp;
+        private final Callback<T> mCallback;
+        private final long mSeqNo;
+        private final long mQueuedAt = System.nanoTime();
+        /** True once taken off the queue, by a thread or cancellation */
+        private boolean mDequeued;
+
+        Task(Op op, Callable<T> callable, Callback<T> callback) {
+            super(callable);
+            mOp = op;
+            mCallback = callback;
+            mSeqNo = mSeq.getAndIncrement();
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            if (!dequeue())
+                return;
+            OpStats stats = mStats[mOp.ordinal()];
+            synchronized (stats) {
+                long wait = start - mQueuedAt;
+                stats.waitNanos += wait;
+                stats.maxWaitNanos = Math.max(stats.maxWaitNanos, wait);
+            }
+            super.run();
+            synchronized (stats) {
+                stats.runNanos += System.nanoTime() - start;
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (cancelled && mExecutor.remove(this)) {
+                dequeue();
+            }
+            return cancelled;
+        }
+
+        /** @return false if already dequeued */
+        private boolean dequeue() {
+            OpStats stats = mStats[mOp.ordinal()];
+            synchronized (stats) {
+                if (mDequeued)
+                    return false;
+                mDequeued = true;
+                stats.queued--;
+            }
+            mWaiting.decrementAndGet();
+            return true;
+        }
+
+        /** Fail without running, for when the queue is full */
+        void reject() {
+            dequeue();
+            setException(new RejectedExecutionException(mOp + " rejected, queue full"));
+        }
+
+        @Override
+        protected void done() {
+            OpStats stats = mStats[mOp.ordinal()];
+            T result = null;
+            Exception error = null;
+            try {
+                result = get();
+            } catch (CancellationException e) {
+                synchronized (stats) {
+                    stats.cancelled++;
+                }
+                return;
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                error = cause instanceof Exception ? (Exception) cause : e;
+            } catch (InterruptedException e) {
+                error = e;
+            }
+            synchronized (stats) {
+                if (error == null)
+                    stats.completed++;
+                else if (error instanceof RejectedExecutionException)
+                    stats.rejected++;
+                else
+                    stats.failed++;
+            }
+            if (mCallback == null) {
+                if (error != null)
+                    Log.e(TAG, mOp + " failed", error);
+            }
+            else if (error == null) {
+                mCallback.onComplete(result);
+            }
+            else {
+                mCallback.onError(error);
+            }
+        }
+
+        @Override
+        public int compareTo(Task<?> other) {
+            int cmp = mOp.getPriority().compareTo(other.mOp.getPriority());
+            if (cmp != 0)
+                return cmp;
+            return mSeqNo < other.mSeqNo ? -1 : (mSeqNo == other.mSeqNo ? 0 : 1);
+        }
+    }
+
+    /**
+     * @param numThreads number of operations run at once
+     * @param maxQueued number of operations allowed to wait
+     */
+    public IoExecutor(int numThreads, int maxQueued) {
+        mMaxQueued = maxQueued;
+        mStats = new OpStats[Op.values().length];
+        for (int i = 0; i < mStats.length; i++) {
+            mStats[i] = new OpStats();
+        }
+        mExecutor = new ThreadPoolExecutor(numThreads, numThreads, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private int mCount;
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        // don't hold the process open for a pending operation
+                        Thread t = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, "Storage-io-" + mCount++);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    /**
+     * Queue an operation.
+     *
+     * @param callback told the outcome, may be null. Failures without a
+     *                 callback are logged.
+     * @return future for the result, which may be used to cancel the
+     *         operation
+     */
+    public <T> Future<T> submit(Op op, Callable<T> operation, Callback<T> callback) {
+        Task<T> task = new Task<>(op, operation, callback);
+        OpStats stats = mStats[op.ordinal()];
+        synchronized (stats) {
+            stats.queued++;
+        }
+        // reserve a place in the queue, so concurrent submits can't
+        // overfill it
+        if (mWaiting.incrementAndGet() > mMaxQueued) {
+            task.reject();
+        }
+        else {
+            mExecutor.execute(task);
+        }
+        return task;
+    }
+
+    /** Get the number of operations of the given type waiting to run */
+    public int getQueueDepth(Op op) {
+        OpStats stats = mStats[op.ordinal()];
+        synchronized (stats) {
+            return stats.queued;
+        }
+    }
+
+    /** Get the number of operations of the given type that succeeded */
+    public long getCompletedCount(Op op) {
+        OpStats stats = mStats[op.ordinal()];
+        synchronized (stats) {
+            return stats.completed;
+        }
+    }
+
+    /**
+     * Get the number of operations of the given type that threw, were
+     * cancelled or were rejected
+     */
+    public long getUnsuccessfulCount(Op op) {
+        OpStats stats = mStats[op.ordinal()];
+        synchronized (stats) {
+            return stats.failed + stats.cancelled + stats.rejected;
+        }
+    }
+
+    /** Get the mean time operations of the given type waited to run, in ms */
+    public double getMeanWaitMillis(Op op) {
+        OpStats stats = mStats[op.ordinal()];
+        synchronized (stats) {
+            long ran = stats.completed + stats.failed;
+            return ran > 0 ? stats.waitNanos / 1e6 / ran : 0;
+        }
+    }
+
+    /** Get the longest time an operation of the given type waited to run, in ms */
+    public double getMaxWaitMillis(Op op) {
+        OpStats stats = mStats[op.ordinal()];
+        synchronized (stats) {
+            return stats.maxWaitNanos / 1e6;
+        }
+    }
+
+    /** Get the mean time operations of the given type took to run, in ms */
+    public double getMeanRunMillis(Op op) {
+        OpStats stats = mStats[op.ordinal()];
+        synchronized (stats) {
+            long ran = stats.completed + stats.failed;
+            return ran > 0 ? stats.runNanos / 1e6 / ran : 0;
+        }
+    }
+}
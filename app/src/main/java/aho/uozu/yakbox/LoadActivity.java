@@ -23,9 +23,7 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
-import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 public class LoadActivity extends AppCompatActivity {
@@ -35,6 +33,8 @@ public class LoadActivity extends AppCompatActivity {
     private List<String> mAllRecordings;
     /** Recordings to show in the list view (some may be filtered out by search term) */
     private List<String> mViewRecordings;
+    /** Current search term */
+    private String mFilter = "";
     private ArrayAdapter<String> mAdapter;
     private Storage mStorage;
 
@@ -53,15 +53,15 @@ public class LoadActivity extends AppCompatActivity {
         }
 
         mStorage = Storage.getInstance(this);
-        updateAllRecordingsList();
-
-        mViewRecordings = new ArrayList<>(mAllRecordings);
+        mAllRecordings = new ArrayList<>();
+        mViewRecordings = new ArrayList<>();
 
         // Configure list view
         mListView = (ListView) findViewById(R.id.list);
         mListView.setChoiceMode(ListView.CHOICE_MODE_MULTIPLE_MODAL);
         mAdapter = new ArrayAdapter<>(this, R.layout.load_list_item, mViewRecordings);
         mListView.setAdapter(mAdapter);
+        updateAllRecordingsList();
 
         // short taps
         mListView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
@@ -119,17 +119,36 @@ public class LoadActivity extends AppCompatActivity {
     }
 
     /**
-     * Update {@link #mAllRecordings}
+     * Update {@link #mAllRecordings} in the background, and the list view
+     * once done
      */
     private void updateAllRecordingsList() {
-        try {
-            mAllRecordings = mStorage.getSavedRecordingNames();
-        } catch (Storage.StorageUnavailableException e) {
-            String msg = "Error: Can't access storage";
-            Toast.makeText(getApplicationContext(), msg, Toast.LENGTH_LONG).show();
-            mAllRecordings = new ArrayList<>();
-        }
-        Collections.sort(mAllRecordings);
+        mStorage.getSavedRecordingNames(new IoExecutor.Callback<List<String>>() {
+            @Override
+            public void onComplete(final List<String> names) {
+                // already sorted
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        mAllRecordings = names;
+                        filterViewList(mFilter);
+                        mAdapter.notifyDataSetChanged();
+                    }
+                });
+            }
+
+            @Override
+            public void onError(Exception e) {
+                Log.e(TAG, "Error listing recordings", e);
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        String msg = "Error: Can't access storage";
+                        Toast.makeText(getApplicationContext(), msg, Toast.LENGTH_LONG).show();
+                    }
+                });
+            }
+        });
     }
 
     /**
@@ -183,6 +202,7 @@ public class LoadActivity extends AppCompatActivity {
      * Filter the view list for items containing the given pattern
      */
     private void filterViewList(String pattern) {
+        mFilter = pattern;
         if (pattern.isEmpty()) {
             mViewRecordings.clear();
             mViewRecordings.addAll(mAllRecordings);
@@ -224,30 +244,34 @@ public class LoadActivity extends AppCompatActivity {
         builder.show();
     }
 
-    private boolean deleteRecording(int itemIdx) {
-        boolean deleted = false;
-        String name = mViewRecordings.get(itemIdx);
-        try {
-            deleted = mStorage.deleteRecording(name);
-        }
-        catch (IOException e) {
-            Log.e(TAG, "Error deleting " + name, e);
-        }
-        return deleted;
-    }
-
     /**
-     * Delete recordings by index in {@link #mViewRecordings}
+     * Delete recordings by index in {@link #mViewRecordings}, in one
+     * batch. They're removed from the lists once deleted.
      */
     private void deleteRecordings(List<Integer> idxs) {
-        List<String> removeFromView = new ArrayList<>();
+        List<String> names = new ArrayList<>();
         for (int idx : idxs) {
-            if (deleteRecording(idx)) {
-                removeFromView.add(mViewRecordings.get(idx));
-            }
+            names.add(mViewRecordings.get(idx));
         }
-        mViewRecordings.removeAll(removeFromView);
-        mAdapter.notifyDataSetChanged();
-        updateAllRecordingsList();
+        mStorage.deleteRecordings(names, new IoExecutor.Callback<List<String>>() {
+            @Override
+            public void onComplete(final List<String> deleted) {
+                if (deleted.isEmpty())
+                    return;
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        mAllRecordings.removeAll(deleted);
+                        mViewRecordings.removeAll(deleted);
+                        mAdapter.notifyDataSetChanged();
+                    }
+                });
+            }
+
+            @Override
+            public void onError(Exception e) {
+                Log.e(TAG, "Error deleting recordings", e);
+            }
+        });
     }
 }
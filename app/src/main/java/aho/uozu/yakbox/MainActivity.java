@@ -7,13 +7,13 @@ import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.media.AudioManager;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.SystemClock;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
-import android.support.v4.view.MenuItemCompat;
 import android.support.v7.app.AppCompatActivity;
-import android.support.v7.widget.ShareActionProvider;
 import android.support.v7.widget.Toolbar;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -31,11 +31,12 @@ import android.widget.Toast;
 import org.acra.ACRA;
 
 import java.io.File;
-import java.io.IOException;
 
 import aho.uozu.android.audio.AudioBuffer;
 import aho.uozu.android.audio.AudioPlayer;
 import aho.uozu.android.audio.AudioRecorder;
+import aho.uozu.android.audio.SegmentPool;
+import aho.uozu.android.audio.TakeJournal;
 
 public class MainActivity extends AppCompatActivity {
 
@@ -48,6 +49,8 @@ public class MainActivity extends AppCompatActivity {
     // sound recorder, buffer & player
     private AudioRecorder mRecorder = null;
     private AudioBuffer mBuffer = null;
+    /** Segments for mBuffer and buffers being loaded, if segmented */
+    private SegmentPool mSegmentPool = null;
     private AudioPlayer mPlayer = null;
 
     // storage
@@ -57,6 +60,18 @@ public class MainActivity extends AppCompatActivity {
     private long mLastRecordEndMillis = 0;
     private boolean mIsRecording = false;
 
+    /** Moves the take into mBuffer as it is recorded */
+    private final Handler mHandler = new Handler();
+    private final Runnable mDrainTake = new Runnable() {
+        @Override
+        public void run() {
+            if (mIsRecording && mRecorder != null) {
+                mRecorder.read(mBuffer);
+                mHandler.postDelayed(this, DRAIN_INTERVAL_MS);
+            }
+        }
+    };
+
     /** Have told the user to increase their volume when play pressed */
     private boolean mShowedVolumeWarningOnPlay = false;
 
@@ -70,7 +85,23 @@ public class MainActivity extends AppCompatActivity {
      */
     private static final String TEMP_WAV_FILENAME = "yak";
     private static final int MAX_RECORD_TIME_S = 20;
-    // Delay between end of last recording and next recording
+    /** How often the take is moved into the buffer while recording */
+    private static final int DRAIN_INTERVAL_MS = 100;
+    /** Recording buffer segment length. A multiple of the lossless block length. */
+    private static final int SEGMENT_SAMPLES = 8192;
+    /** Free segments kept for the next recording */
+    private static final int MAX_POOLED_SEGMENTS = 16;
+    /**
+     * Audio kept from before the say button is pressed, when the user has
+     * turned pre-roll on. 0 to disable.
+     */
+    private static final int PRE_ROLL_MS = 300;
+    /** Preference key: keep the microphone running for pre-roll */
+    private static final String PREF_PRE_ROLL = "pre_roll";
+    /** Preference key: save recordings losslessly, rather than compressed */
+    private static final String PREF_SAVE_LOSSLESS = "save_lossless";
+    // Delay between end of last recording and next recording, when the
+    // microphone is stopped between takes
     private static final int RECORD_WAIT_MS = 300;
     private static final double PLAYBACK_SPEED_MIN = 0.333;
     private static final double PLAYBACK_SPEED_MAX = 3.0;
@@ -95,7 +126,7 @@ public class MainActivity extends AppCompatActivity {
         }
 
         mStorage = Storage.getInstance(this);
-        mStorage.deleteTempRecordings();
+        mStorage.deleteTempRecordings(null);
 
         // UI controls
         mBtnSay = (Button) findViewById(R.id.button_say);
@@ -199,8 +230,11 @@ public class MainActivity extends AppCompatActivity {
     private void initAudio() {
         try {
             mRecorder = new AudioRecorder(MAX_RECORD_TIME_S);
-            mPlayer = new AudioPlayer(mRecorder.getSampleRate(),
-                    mRecorder.getBufferSizeSamples());
+            mPlayer = new AudioPlayer(mRecorder.getSampleRate());
+            // keep the microphone running between takes, if asked to
+            if (isPreRollEnabled()) {
+                mRecorder.openSession(PRE_ROLL_MS);
+            }
 
             // set 'say' button back to grey if record buffer is full
             mRecorder.setOnBufferFullListener(new AudioRecorder.OnBufferFullListener() {
@@ -217,9 +251,13 @@ public class MainActivity extends AppCompatActivity {
 
             // init audio buffer
             if (mBuffer == null) {
-                mBuffer = new AudioBuffer(mRecorder.getBufferSizeSamples());
+                mBuffer = newBuffer(mRecorder.getBufferSizeSamples());
                 mStorage.loadBuffer(mBuffer);
+                // a take cut short by a crash is newer than the saved buffer
+                mStorage.recoverJournal(mBuffer, mRecorder.getSampleRate());
             }
+            // stream takes to file as they are recorded
+            mRecorder.setJournal(mStorage.openJournal(mRecorder.getSampleRate()));
         }
         catch (Exception e) {
             Log.e(TAG, "Fatal error", e);
@@ -231,6 +269,49 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    private boolean isPreRollEnabled() {
+        return PRE_ROLL_MS > 0 && getPreferences(MODE_PRIVATE).getBoolean(PREF_PRE_ROLL, false);
+    }
+
+    private void setPreRollEnabled(boolean enabled) {
+        getPreferences(MODE_PRIVATE).edit().putBoolean(PREF_PRE_ROLL, enabled).apply();
+        if (mRecorder != null) {
+            if (enabled) {
+                mRecorder.openSession(PRE_ROLL_MS);
+            }
+            else {
+                mRecorder.closeSession();
+            }
+        }
+    }
+
+    private boolean isSaveLossless() {
+        return getPreferences(MODE_PRIVATE).getBoolean(PREF_SAVE_LOSSLESS, false);
+    }
+
+    private void setSaveLossless(boolean lossless) {
+        getPreferences(MODE_PRIVATE).edit().putBoolean(PREF_SAVE_LOSSLESS, lossless).apply();
+    }
+
+    /** Create an empty buffer, for recording or loading into */
+    private AudioBuffer newBuffer(int capacity) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            // off the java heap, and played and saved without copying
+            return AudioBuffer.allocateDirect(capacity);
+        }
+        // memory grows with the recording, not the maximum length
+        if (mSegmentPool == null) {
+            mSegmentPool = new SegmentPool(SEGMENT_SAMPLES, MAX_POOLED_SEGMENTS);
+        }
+        return new AudioBuffer(capacity, mSegmentPool);
+    }
+
+    /** Return a buffer's memory to the pool, once nothing reads it */
+    private static void discardBuffer(AudioBuffer buffer) {
+        buffer.resetIdx();
+        buffer.trim();
+    }
+
     /**
      * Notify user if volume is lower than LOW_VOLUME
      */
@@ -249,12 +330,17 @@ public class MainActivity extends AppCompatActivity {
     private void startRecording() {
         if (haveRecordAudioPermission()) {
             long interval = SystemClock.elapsedRealtime() - mLastRecordEndMillis;
-            if (!mIsRecording && interval > RECORD_WAIT_MS) {
+            // in a session the source isn't restarted, so takes can follow
+            // each other immediately
+            if (!mIsRecording && (mRecorder.isSessionOpen() || interval > RECORD_WAIT_MS)) {
                 Log.d(TAG, "recording START");
+                // the player reads mBuffer while playing
+                stopPlayback();
                 mBuffer.resetIdx();
                 mRecorder.startRecording();
                 mBtnSay.setBackgroundResource(R.drawable.round_button_red);
                 mIsRecording = true;
+                mHandler.postDelayed(mDrainTake, DRAIN_INTERVAL_MS);
             }
         }
         else {
@@ -267,17 +353,29 @@ public class MainActivity extends AppCompatActivity {
             Log.d(TAG, "recording STOP");
             // set 'say' button back to grey
             mBtnSay.setBackgroundResource(R.drawable.round_button_grey);
+            mHandler.removeCallbacks(mDrainTake);
             mRecorder.stopRecording();
 
-            // move recording from recorder to audio buffer
+            // most of the take is already in the buffer; move the rest
             int numSamples = mRecorder.read(mBuffer);
-            Log.d(TAG, String.format("%d samples copied to buffer", numSamples));
+            Log.d(TAG, String.format("%d samples left to copy to buffer", numSamples));
+            mBuffer.trim();
+            if (mRecorder.getTakeSamplesLost() > 0) {
+                Toast.makeText(getApplicationContext(), "Part of the recording was lost",
+                        Toast.LENGTH_SHORT).show();
+            }
 
             mLastRecordEndMillis = SystemClock.elapsedRealtime();
             mIsRecording = false;
         }
     }
 
+    private void stopPlayback() {
+        if (mPlayer != null) {
+            mPlayer.stop();
+        }
+    }
+
     private void playForward() {
         if (!mShowedVolumeWarningOnPlay) {
             lowVolumeWarningIfNecessary();
@@ -294,9 +392,7 @@ public class MainActivity extends AppCompatActivity {
             mShowedVolumeWarningOnPlay = true;
         }
         if (mPlayer != null && mBuffer != null) {
-            mBuffer.reverse();
-            mPlayer.play(mBuffer, getPlaybackSpeed());
-            mBuffer.reverse();
+            mPlayer.playReverse(mBuffer, getPlaybackSpeed());
         }
     }
 
@@ -390,32 +486,75 @@ public class MainActivity extends AppCompatActivity {
         builder.show();
     }
 
-    private void saveRecording(String name) {
-        try {
-            mStorage.saveRecording(mBuffer, name, mRecorder.getSampleRate());
-            String msg = "Saved: " + name;
-            Toast.makeText(getApplicationContext(), msg, Toast.LENGTH_LONG).show();
-        }
-        catch (Storage.StorageUnavailableException e) {
-            String msg = "Error: Can't access storage";
-            Toast.makeText(getApplicationContext(), msg, Toast.LENGTH_LONG).show();
-        }
-        catch (IOException e) {
-            Log.e(TAG, "Error saving recording", e);
-            String msg = "Error saving file";
-            Toast.makeText(getApplicationContext(), msg, Toast.LENGTH_LONG).show();
-        }
+    private void saveRecording(final String name) {
+        mStorage.saveRecording(mBuffer, name, mRecorder.getSampleRate(), isSaveLossless(),
+                new IoExecutor.Callback<Void>() {
+                    @Override
+                    public void onComplete(Void result) {
+                        showToastOnUiThread("Saved: " + name);
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        if (e instanceof Storage.StorageUnavailableException) {
+                            showToastOnUiThread("Error: Can't access storage");
+                        }
+                        else {
+                            Log.e(TAG, "Error saving recording", e);
+                            showToastOnUiThread("Error saving file");
+                        }
+                    }
+                });
     }
 
-    private File saveTempWav()
-            throws Storage.StorageUnavailableException, IOException {
-        if (mBuffer != null && mRecorder != null && mPlayer != null) {
-            double speed = getPlaybackSpeed();
-            int samplingRate = mPlayer.getPlaybackSamplingRate(speed);
-            Log.d(TAG, "saveTempWav: " + speed + ": " + samplingRate);
-            return mStorage.saveTempRecording(mBuffer, TEMP_WAV_FILENAME, samplingRate);
-        }
-        return null;
+    private void showToastOnUiThread(final String msg) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                Toast.makeText(getApplicationContext(), msg, Toast.LENGTH_LONG).show();
+            }
+        });
+    }
+
+    /**
+     * Render the yak at the current speed in the background, then offer to
+     * share it
+     */
+    private void shareRecording() {
+        if (mBuffer == null || mRecorder == null) {
+            return;
+        }
+        double speed = getPlaybackSpeed();
+        int samplingRate = mRecorder.getSampleRate();
+        Log.d(TAG, "shareRecording: " + speed + ": " + samplingRate);
+        // render the speed change, rather than sharing an odd sample rate
+        mStorage.saveTempRecording(mBuffer, TEMP_WAV_FILENAME, samplingRate, speed,
+                new IoExecutor.Callback<File>() {
+                    @Override
+                    public void onComplete(final File file) {
+                        runOnUiThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Intent shareIntent = new Intent(Intent.ACTION_SEND);
+                                shareIntent.setType("audio/wav");
+                                shareIntent.putExtra(Intent.EXTRA_STREAM, Uri.fromFile(file));
+                                startActivity(Intent.createChooser(shareIntent,
+                                        getString(R.string.action_share)));
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        if (e instanceof Storage.StorageUnavailableException) {
+                            showToastOnUiThread("Error: Can't access storage");
+                        }
+                        else {
+                            Log.e(TAG, "Error saving recording", e);
+                            showToastOnUiThread("Error preparing yak for sharing");
+                        }
+                    }
+                });
     }
 
     private void startLoadActivity() {
@@ -443,24 +582,54 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
-    private void loadRecording(String name) {
-        try {
-            mStorage.loadRecordingToBuffer(mBuffer, name);
-            // Show saved toast to user
-            String msg = "Loaded: " + name;
-            Toast.makeText(getApplicationContext(), msg, Toast.LENGTH_LONG).show();
-        } catch (IOException e) {
-            Log.e(TAG, "Error loading recording", e);
-            String msg = "Error loading file!";
-            Toast.makeText(getApplicationContext(), msg, Toast.LENGTH_LONG).show();
+    private void loadRecording(final String name) {
+        if (mBuffer == null) {
+            return;
         }
+        // load into a buffer of its own, so mBuffer can still be recorded
+        // into, played and saved on this thread meanwhile
+        AudioBuffer loading = newBuffer(mBuffer.capacity());
+        mStorage.loadRecordingToBuffer(loading, name, new IoExecutor.Callback<AudioBuffer>() {
+            @Override
+            public void onComplete(final AudioBuffer loaded) {
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        useLoadedBuffer(loaded, name);
+                    }
+                });
+            }
+
+            @Override
+            public void onError(Exception e) {
+                Log.e(TAG, "Error loading recording", e);
+                showToastOnUiThread("Error loading file!");
+            }
+        });
+    }
+
+    /** Swap a loaded recording in for mBuffer. Called on the UI thread. */
+    private void useLoadedBuffer(AudioBuffer loaded, String name) {
+        if (mIsRecording) {
+            // the take being recorded is newer
+            Log.d(TAG, "Recording started while loading " + name + ", load dropped");
+            discardBuffer(loaded);
+            return;
+        }
+        // the player reads mBuffer while playing
+        stopPlayback();
+        AudioBuffer old = mBuffer;
+        mBuffer = loaded;
+        discardBuffer(old);
+        // Show loaded toast to user
+        Toast.makeText(getApplicationContext(), "Loaded: " + name, Toast.LENGTH_LONG).show();
     }
 
     @Override
     protected void onPause() {
         super.onPause();
         if (mBuffer != null) {
-            mStorage.saveBuffer(mBuffer);
+            saveBuffer();
         }
         releaseAudioResources();
     }
@@ -471,7 +640,26 @@ public class MainActivity extends AppCompatActivity {
         releaseAudioResources();
     }
 
+    /**
+     * Save mBuffer in the background. Once it is on file, the last take no
+     * longer needs recovering from the journal.
+     */
+    private void saveBuffer() {
+        final TakeJournal journal = mRecorder != null ? mRecorder.getJournal() : null;
+        // a take in progress isn't all in the buffer yet
+        final int takeSeq = journal != null && !mIsRecording ? journal.getTakeSeq() : -1;
+        mStorage.saveBuffer(mBuffer, new Storage.OnBufferSavedListener() {
+            @Override
+            public void onBufferSaved(boolean success) {
+                if (success && takeSeq >= 0) {
+                    journal.clearTake(takeSeq);
+                }
+            }
+        });
+    }
+
     private void releaseAudioResources() {
+        mHandler.removeCallbacks(mDrainTake);
         if (mRecorder != null) {
             mRecorder.release();
             mRecorder = null;
@@ -482,48 +670,15 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
-    private File prepareShareFile() {
-        try {
-            return saveTempWav();
-        }
-        catch (Storage.StorageUnavailableException e) {
-            String msg = "Error: Can't access storage";
-            Toast.makeText(getApplicationContext(), msg, Toast.LENGTH_LONG).show();
-        }
-        catch (IOException e) {
-            Log.e(TAG, "Error saving recording", e);
-            String msg = "Error preparing yak for sharing";
-            Toast.makeText(getApplicationContext(), msg, Toast.LENGTH_LONG).show();
-        }
-        return null;
-    }
-
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         Log.d(TAG, "onCreateOptionsMenu");
         // Inflate the menu; this adds items to the action bar if it is present.
         getMenuInflater().inflate(R.menu.menu_main, menu);
-        // share action
-        File shareFile = prepareShareFile();
-        if (shareFile != null) {
-            // set share intent
-            MenuItem shareItem = menu.findItem(R.id.action_share);
-            ShareActionProvider myShareActionProvider =
-                    (ShareActionProvider) MenuItemCompat.getActionProvider(shareItem);
-            Intent myShareIntent = new Intent(Intent.ACTION_SEND);
-            myShareIntent.setType("audio/wav");
-            myShareIntent.putExtra(Intent.EXTRA_STREAM, Uri.fromFile(shareFile));
-            myShareActionProvider.setShareIntent(myShareIntent);
-            // save temp wav on share click
-            myShareActionProvider.setOnShareTargetSelectedListener(
-                    new ShareActionProvider.OnShareTargetSelectedListener() {
-                @Override
-                public boolean onShareTargetSelected(ShareActionProvider source, Intent intent) {
-                    prepareShareFile();
-                    return false;
-                }
-            });
-        }
+        MenuItem preRollItem = menu.findItem(R.id.action_pre_roll);
+        preRollItem.setVisible(PRE_ROLL_MS > 0);
+        preRollItem.setChecked(isPreRollEnabled());
+        menu.findItem(R.id.action_save_lossless).setChecked(isSaveLossless());
         return true;
     }
 
@@ -539,6 +694,17 @@ public class MainActivity extends AppCompatActivity {
             case R.id.action_load:
                 startLoadActivity();
                 return true;
+            case R.id.action_share:
+                shareRecording();
+                return true;
+            case R.id.action_pre_roll:
+                item.setChecked(!item.isChecked());
+                setPreRollEnabled(item.isChecked());
+                return true;
+            case R.id.action_save_lossless:
+                item.setChecked(!item.isChecked());
+                setSaveLossless(item.isChecked());
+                return true;
             case R.id.action_about:
                 startHelpActivity();
                 return true;
@@ -0,0 +1,455 @@
+package aho.uozu.yakbox;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * Details of every saved recording, kept sorted by name in memory and
+ * persisted to a small file, so that listing recordings and looking one
+ * up don't have to scan the recordings directory.
+ *
+ * Storage updates the catalog as it saves and deletes, and each change
+ * is appended to the file on its own. Changes made to the directory by
+ * anything else are picked up by {@link #reconcile(File[], long, InfoReader)},
+ * which only reads the headers of files that are new or have changed
+ * since last seen.
+ *
+ * A file whose snapshot fails to load is ignored, and rebuilt on the next
+ * reconcile. A damaged change record at the end, from a crash mid-append,
+ * is dropped.
+ *
+ * Thread safe.
+ */
+public class RecordingCatalog {
+
+    /** Details of one saved recording */
+    public static class Entry {
+        private final String mName;
+        private final String mFileName;
+        private final int mNumFrames;
+        private final int mSampleRate;
+        private final long mSizeBytes;
+        private final long mLastModified;
+
+        public Entry(String name, String fileName, int numFrames, int sampleRate,
+                     long sizeBytes, long lastModified) {
+            mName = name;
+            mFileName = fileName;
+            mNumFrames = numFrames;
+            mSampleRate = sampleRate;
+            mSizeBytes = sizeBytes;
+            mLastModified = lastModified;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /** Get the name of the file in the recordings directory */
+        public String getFileName() {
+            return mFileName;
+        }
+
+        public int getNumFrames() {
+            return mNumFrames;
+        }
+
+        public int getSampleRate() {
+            return mSampleRate;
+        }
+
+        public long getSizeBytes() {
+            return mSizeBytes;
+        }
+
+        /** Get the file's modification time, in ms since the epoch */
+        public long getLastModified() {
+            return mLastModified;
+        }
+
+        /** Returns true if the file looks unchanged since this entry was made */
+        boolean matches(File f) {
+            return mFileName.equals(f.getName()) && mSizeBytes == f.length()
+                    && mLastModified == f.lastModified();
+        }
+    }
+
+    /** Reads the details of a recording file, for reconciling */
+    public interface InfoReader {
+        Entry read(File f) throws IOException;
+    }
+
+    private static final String TAG = "Yakbox-RecordingCatalog";
+    /** "YKCT", big-endian as written by DataOutputStream */
+    private static final int MAGIC = 0x594b4354;
+    private static final int VERSION = 2;
+    /** Change record types */
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_REMOVE = 2;
+    /**
+     * The file is rewritten once it has this many change records, or as
+     * many as there are entries if that's more
+     */
+    private static final int MIN_COMPACT_RECORDS = 32;
+
+    private final File mFile;
+    private final TreeMap<String, Entry> mEntries = new TreeMap<>();
+    /** Modification time of the directory when last reconciled */
+    private long mDirModified = -1;
+    /** Change records appended to the file since it was last rewritten */
+    private int mAppended;
+
+    /**
+     * Create a catalog persisted to the given file, and load it if it
+     * exists.
+     */
+    public RecordingCatalog(File file) {
+        mFile = file;
+        if (file.exists()) {
+            try {
+                load();
+            } catch (IOException e) {
+                Log.e(TAG, "Error loading catalog, will rebuild", e);
+                mEntries.clear();
+                mDirModified = -1;
+            }
+        }
+    }
+
+    /** Get the names of all recordings, in order */
+    public synchronized List<String> getNames() {
+        return new ArrayList<>(mEntries.keySet());
+    }
+
+    /** Get a recording's details, or null if there is no such recording */
+    public synchronized Entry get(String name) {
+        return mEntries.get(name);
+    }
+
+    public synchronized boolean contains(String name) {
+        return mEntries.containsKey(name);
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Add or replace a recording, after it was saved.
+     *
+     * @param dirModified modification time of the directory after the save
+     */
+    public synchronized void put(Entry entry, long dirModified) {
+        mEntries.put(entry.getName(), entry);
+        mDirModified = dirModified;
+        try {
+            ByteArrayOutputStream record = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(record);
+            writeRecordHeader(out, RECORD_PUT, dirModified, 1);
+            writeEntry(out, entry);
+            out.flush();
+            appendRecord(record);
+        } catch (IOException e) {
+            failedToSave(e);
+        }
+    }
+
+    /**
+     * Remove a recording, after it was deleted.
+     *
+     * @param dirModified modification time of the directory after the delete
+     */
+    public void remove(String name, long dirModified) {
+        removeAll(Collections.singleton(name), dirModified);
+    }
+
+    /**
+     * Remove several recordings at once, after they were deleted.
+     *
+     * @param dirModified modification time of the directory after the deletes
+     */
+    public synchronized void removeAll(Collection<String> names, long dirModified) {
+        for (String name : names) {
+            mEntries.remove(name);
+        }
+        mDirModified = dirModified;
+        try {
+            ByteArrayOutputStream record = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(record);
+            writeRecordHeader(out, RECORD_REMOVE, dirModified, names.size());
+            for (String name : names) {
+                out.writeUTF(name);
+            }
+            out.flush();
+            appendRecord(record);
+        } catch (IOException e) {
+            failedToSave(e);
+        }
+    }
+
+    /**
+     * Returns true if the directory may have changed since the catalog
+     * last matched it
+     */
+    public synchronized boolean isStale(long dirModified) {
+        return dirModified != mDirModified;
+    }
+
+    /**
+     * Bring the catalog in line with the recording files in a directory.
+     * Only files whose name, size or modification time differ from their
+     * entries are read.
+     *
+     * Where several files have the same recording name, such as foo.wav
+     * and foo.ylac, the one whose file name sorts first is catalogued.
+     *
+     * @param files all recording files in the directory
+     * @param dirModified modification time of the directory
+     * @param reader reads the details of new and changed files. Files it
+     *               can't read are left out.
+     */
+    public synchronized void reconcile(File[] files, long dirModified, InfoReader reader) {
+        File[] sorted = files.clone();
+        Arrays.sort(sorted, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        Set<String> seen = new HashSet<>();
+        int read = 0;
+        for (File f : sorted) {
+            String name = fileToRecordingName(f);
+            if (!seen.add(name))
+                continue;
+            Entry entry = mEntries.get(name);
+            if (entry != null && entry.matches(f))
+                continue;
+            try {
+                mEntries.put(name, reader.read(f));
+                read++;
+            } catch (IOException e) {
+                Log.w(TAG, "Can't read " + f, e);
+                mEntries.remove(name);
+            }
+        }
+        int before = mEntries.size();
+        Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+        while (it.hasNext()) {
+            if (!seen.contains(it.next().getKey()))
+                it.remove();
+        }
+        Log.d(TAG, "Reconciled: " + read + " read, " + (before - mEntries.size()) + " removed");
+        mDirModified = dirModified;
+        try {
+            rewrite();
+        } catch (IOException e) {
+            failedToSave(e);
+        }
+    }
+
+    /** Get the recording name of a file in the recordings directory */
+    static String fileToRecordingName(File file) {
+        String filename = file.getName();
+        return filename.substring(0, filename.lastIndexOf('.'));
+    }
+
+    private void failedToSave(IOException e) {
+        // rebuilt from the directory next time
+        Log.e(TAG, "Error saving catalog", e);
+        mFile.delete();
+    }
+
+    // ---------------------------------------------------------------------
+    // file format
+    //
+    // A snapshot of all entries, followed by records of the changes made
+    // since. Each change is appended as a record of its own, so saving or
+    // deleting a recording writes a few bytes rather than the whole
+    // catalog. Once the records outnumber the entries, the file is
+    // rewritten as a new snapshot.
+    //
+    // snapshot: magic, version, directory modification time, entry count,
+    //           the entries, CRC32 of everything before it
+    // record:   payload length, payload, CRC32 of the payload
+    // payload:  type, directory modification time, count, then that many
+    //           entries (put) or names (remove)
+
+    private static void writeRecordHeader(DataOutputStream out, byte type, long dirModified,
+                                          int count) throws IOException {
+        out.writeByte(type);
+        out.writeLong(dirModified);
+        out.writeInt(count);
+    }
+
+    /**
+     * Append a change record to the file, or rewrite the file if it's
+     * due. The in-memory entries must already include the change.
+     */
+    private void appendRecord(ByteArrayOutputStream payload) throws IOException {
+        if (!mFile.exists() || mAppended >= Math.max(MIN_COMPACT_RECORDS, mEntries.size())) {
+            rewrite();
+            return;
+        }
+        byte[] p = payload.toByteArray();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(p.length + 8);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(p.length);
+        out.write(p);
+        out.writeInt(crc(p, 0, p.length));
+        out.flush();
+
+        FileOutputStream stream = new FileOutputStream(mFile, true);
+        try {
+            bytes.writeTo(stream);
+        } finally {
+            stream.close();
+        }
+        mAppended++;
+    }
+
+    /** Write all entries as a new snapshot, dropping the change records */
+    private void rewrite() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + mEntries.size() * 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(mDirModified);
+        out.writeInt(mEntries.size());
+        for (Entry e : mEntries.values()) {
+            writeEntry(out, e);
+        }
+        out.flush();
+        out.writeInt(crc(bytes.toByteArray(), 0, bytes.size()));
+        out.flush();
+
+        // the old file is kept until the new one is complete
+        File tmp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(tmp);
+        try {
+            bytes.writeTo(stream);
+        } finally {
+            stream.close();
+        }
+        if (!tmp.renameTo(mFile))
+            throw new IOException("Error renaming catalog");
+        mAppended = 0;
+    }
+
+    private void load() throws IOException {
+        byte[] data;
+        RandomAccessFile file = new RandomAccessFile(mFile, "r");
+        try {
+            data = new byte[(int) file.length()];
+            file.readFully(data);
+        } finally {
+            file.close();
+        }
+        ByteArrayInputStream bytes = new ByteArrayInputStream(data);
+        DataInputStream in = new DataInputStream(bytes);
+        if (in.readInt() != MAGIC)
+            throw new IOException("Not a recording catalog");
+        if (in.readInt() != VERSION)
+            throw new IOException("Unsupported catalog version");
+        long dirModified = in.readLong();
+        int count = in.readInt();
+        List<Entry> entries = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            entries.add(readEntry(in));
+        }
+        if (in.readInt() != crc(data, 0, data.length - bytes.available() - 4))
+            throw new IOException("Catalog is corrupt");
+        for (Entry e : entries) {
+            mEntries.put(e.getName(), e);
+        }
+        mDirModified = dirModified;
+
+        while (bytes.available() > 0) {
+            if (!applyRecord(data, bytes)) {
+                // torn by a crash mid-append; later appends would be lost
+                // behind it, so start afresh
+                Log.w(TAG, "Dropping damaged catalog record");
+                rewrite();
+                return;
+            }
+            mAppended++;
+        }
+    }
+
+    /**
+     * Apply the next change record in data
+     *
+     * @return false if the record is incomplete or corrupt
+     */
+    private boolean applyRecord(byte[] data, ByteArrayInputStream bytes) throws IOException {
+        DataInputStream in = new DataInputStream(bytes);
+        if (bytes.available() < 4)
+            return false;
+        int len = in.readInt();
+        if (len <= 0 || len > bytes.available() - 4)
+            return false;
+        int start = data.length - bytes.available();
+        in.skipBytes(len);
+        if (in.readInt() != crc(data, start, len))
+            return false;
+
+        DataInputStream record = new DataInputStream(new ByteArrayInputStream(data, start, len));
+        byte type = record.readByte();
+        long dirModified = record.readLong();
+        int count = record.readInt();
+        for (int i = 0; i < count; i++) {
+            if (type == RECORD_PUT) {
+                Entry e = readEntry(record);
+                mEntries.put(e.getName(), e);
+            }
+            else if (type == RECORD_REMOVE) {
+                mEntries.remove(record.readUTF());
+            }
+            else {
+                return false;
+            }
+        }
+        mDirModified = dirModified;
+        return true;
+    }
+
+    private static void writeEntry(DataOutputStream out, Entry e) throws IOException {
+        out.writeUTF(e.getName());
+        out.writeUTF(e.getFileName());
+        out.writeInt(e.getNumFrames());
+        out.writeInt(e.getSampleRate());
+        out.writeLong(e.getSizeBytes());
+        out.writeLong(e.getLastModified());
+    }
+
+    private static Entry readEntry(DataInputStream in) throws IOException {
+        return new Entry(in.readUTF(), in.readUTF(), in.readInt(), in.readInt(),
+                in.readLong(), in.readLong());
+    }
+
+    private static int crc(byte[] data, int off, int len) {
+        CRC32 crc = new CRC32();
+        crc.update(data, off, len);
+        return (int) crc.getValue();
+    }
+}
@@ -6,11 +6,28 @@ import android.util.Log;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ShortBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import aho.uozu.android.audio.AudioBuffer;
+import aho.uozu.android.audio.TakeJournal;
+import aho.uozu.audio.dsp.Resampler;
+import aho.uozu.audio.lossless.LosslessFormat;
+import aho.uozu.audio.lossless.LosslessReader;
+import aho.uozu.audio.lossless.LosslessWriter;
+import aho.uozu.audio.wav.Format;
+import aho.uozu.audio.wav.MappedWaveFile;
 import aho.uozu.audio.wav.WaveFile;
+import aho.uozu.audio.wav.WaveFileInfo;
+import aho.uozu.audio.wav.WaveFileReader;
+import aho.uozu.audio.wav.WaveFileWriter;
 
 /**
  * Handles saving / loading audio files
@@ -19,8 +36,40 @@ public class Storage {
 
     private static final String TAG = "Yakbox-Storage";
     private static final String BUFFER_FILENAME = "yakbox-sound.bin";
+    static final String JOURNAL_FILENAME = "yakbox-take.journal";
+    private static final String CATALOG_FILENAME = "yakbox-catalog.bin";
+    /** Journal block length. About 90 ms at 44.1 kHz. */
+    private static final int JOURNAL_BLOCK_SAMPLES = 4096;
+    /** Blocks journalled between syncs, bounding what a crash can lose */
+    private static final int JOURNAL_BLOCKS_PER_SYNC = 8;
+    /** Saved recordings are compressed 4:1 */
+    private static final Format SAVED_RECORDING_FORMAT = Format.IMA_ADPCM;
+    private static final String WAV_EXTENSION = ".wav";
+    private static final int RESAMPLE_BLOCK_LEN = 4096;
+    private static final String LOSSLESS_EXTENSION = LosslessFormat.EXTENSION;
+    /** File operations run at once. Flash storage gains little from more. */
+    private static final int IO_THREADS = 2;
+    private static final int IO_MAX_QUEUED = 64;
     private static Storage instance;
     private final Context context;
+    /** Encodes and decodes lossless blocks on all cores */
+    private ExecutorService codecExecutor;
+    /** Saved recordings, loaded on first use. Guarded by catalogLock. */
+    private RecordingCatalog catalog;
+    private final Object catalogLock = new Object();
+    /** Runs file operations off the calling thread */
+    private IoExecutor ioExecutor;
+    /** Held while writing a snapshot; taken before snapshotLock */
+    private final Object snapshotWriteLock = new Object();
+
+    /**
+     * Guards the buffer snapshots. The latest snapshot is only read once
+     * made; the spare is neither latest nor waiting to be written.
+     */
+    private final Object snapshotLock = new Object();
+    private AudioBuffer latestSnapshot;
+    private boolean latestSnapshotWritten;
+    private AudioBuffer spareSnapshot;
 
     /**
      * Used when errors regarding external media occur.
@@ -28,7 +77,13 @@ public class Storage {
     public static class StorageUnavailableException extends IOException {
     }
 
-    private Storage(Context context) {
+    /** Called when a buffer saved in the background is on file */
+    public interface OnBufferSavedListener {
+        /** @param success false if the file couldn't be written */
+        void onBufferSaved(boolean success);
+    }
+
+    Storage(Context context) {
         this.context = context;
     }
 
@@ -39,16 +94,203 @@ public class Storage {
         return instance;
     }
 
+    // ---------------------------------------------------------------------
+    // asynchronous operations
+    //
+    // Each runs the synchronous operation of the same name on the I/O
+    // executor, and returns a future that can be used to cancel it.
+    // Callbacks are called on an I/O thread and may be null.
+
+    /** Get all saved recordings, ahead of less urgent operations */
+    public Future<List<String>> getSavedRecordingNames(
+            IoExecutor.Callback<List<String>> callback) {
+        return getIoExecutor().submit(IoExecutor.Op.LIST, new Callable<List<String>>() {
+            @Override
+            public List<String> call() throws IOException {
+                return getSavedRecordingNames();
+            }
+        }, callback);
+    }
+
+    /**
+     * Save a copy of the given buffer. The buffer is copied before
+     * returning, so the caller may change it straight away.
+     *
+     * @param lossless true to save without loss of quality, see
+     *                 {@link #saveLosslessRecording(AudioBuffer, String, int)}
+     */
+    public Future<Void> saveRecording(AudioBuffer buffer, final String name,
+                                      final int samplingRate, final boolean lossless,
+                                      IoExecutor.Callback<Void> callback) {
+        final AudioBuffer copy = copyOf(buffer);
+        return getIoExecutor().submit(IoExecutor.Op.SAVE, new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                if (lossless)
+                    saveLosslessRecording(copy, name, samplingRate);
+                else
+                    saveRecording(copy, name, samplingRate);
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * Render a copy of the given buffer to a temporary file for sharing,
+     * after more urgent operations. The buffer is copied before returning.
+     */
+    public Future<File> saveTempRecording(AudioBuffer buffer, final String name,
+                                          final int samplingRate, final double speed,
+                                          IoExecutor.Callback<File> callback) {
+        final AudioBuffer copy = copyOf(buffer);
+        return getIoExecutor().submit(IoExecutor.Op.SHARE, new Callable<File>() {
+            @Override
+            public File call() throws IOException {
+                return saveTempRecording(copy, name, samplingRate, speed);
+            }
+        }, callback);
+    }
+
+    /**
+     * Load a saved recording, ahead of less urgent operations. The buffer
+     * is written on an I/O thread, so nothing else may use it until the
+     * callback is called; load into a buffer of its own, not one in use.
+     * The callback is passed the loaded buffer.
+     */
+    public Future<AudioBuffer> loadRecordingToBuffer(final AudioBuffer buffer,
+                                                     final String name,
+                                                     IoExecutor.Callback<AudioBuffer> callback) {
+        return getIoExecutor().submit(IoExecutor.Op.LOAD, new Callable<AudioBuffer>() {
+            @Override
+            public AudioBuffer call() throws IOException {
+                loadRecordingToBuffer(buffer, name);
+                return buffer;
+            }
+        }, callback);
+    }
+
+    /** Delete a saved recording */
+    public Future<Boolean> deleteRecording(final String name,
+                                           IoExecutor.Callback<Boolean> callback) {
+        return getIoExecutor().submit(IoExecutor.Op.DELETE, new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws IOException {
+                return deleteRecording(name);
+            }
+        }, callback);
+    }
+
+    /** Delete several saved recordings, returning the names deleted */
+    public Future<List<String>> deleteRecordings(final List<String> names,
+                                                 IoExecutor.Callback<List<String>> callback) {
+        return getIoExecutor().submit(IoExecutor.Op.DELETE, new Callable<List<String>>() {
+            @Override
+            public List<String> call() throws IOException {
+                return deleteRecordings(names);
+            }
+        }, callback);
+    }
+
+    /** Delete all temporary recordings, once nothing more urgent is waiting */
+    public Future<Void> deleteTempRecordings(IoExecutor.Callback<Void> callback) {
+        return getIoExecutor().submit(IoExecutor.Op.CLEANUP, new Callable<Void>() {
+            @Override
+            public Void call() {
+                deleteTempRecordings();
+                return null;
+            }
+        }, callback);
+    }
+
+    /** Copy the given buffer, for an operation to read on another thread */
+    private static AudioBuffer copyOf(AudioBuffer buffer) {
+        AudioBuffer copy = AudioBuffer.allocateDirect(buffer.getIdx());
+        buffer.copyTo(0, copy, buffer.getIdx());
+        return copy;
+    }
+
+    // ---------------------------------------------------------------------
+    // synchronous operations
+
     /**
-     * Returns all saved recordings.
+     * Returns all saved recordings, sorted by name.
      */
     public List<String> getSavedRecordingNames() throws StorageUnavailableException {
-        List<File> waveFiles = getAllSavedRecordings();
-        List<String> names = new ArrayList<>(waveFiles.size());
-        for (int i = 0; i < waveFiles.size(); i++) {
-            names.add(fileToRecordingName(waveFiles.get(i)));
+        return getCatalog().getNames();
+    }
+
+    /**
+     * Get the catalog details of a saved recording, without reading the
+     * file.
+     *
+     * @return null if there is no recording with the given name
+     */
+    public RecordingCatalog.Entry getCatalogEntry(String name)
+            throws StorageUnavailableException {
+        return getCatalog().get(name);
+    }
+
+    /**
+     * Get the recording catalog, first bringing it up to date if the
+     * recordings directory has been changed by something else.
+     */
+    private RecordingCatalog getCatalog() throws StorageUnavailableException {
+        File dir = getStorageDir();
+        synchronized (catalogLock) {
+            return getCatalog(dir);
+        }
+    }
+
+    private RecordingCatalog getCatalog(File dir) {
+        if (catalog == null) {
+            catalog = new RecordingCatalog(new File(context.getFilesDir(), CATALOG_FILENAME));
+        }
+        if (catalog.isStale(dir.lastModified())) {
+            List<File> files = getRecordings(dir);
+            catalog.reconcile(files.toArray(new File[files.size()]), dir.lastModified(),
+                    new RecordingCatalog.InfoReader() {
+                        @Override
+                        public RecordingCatalog.Entry read(File f) throws IOException {
+                            WaveFileInfo info = getRecordingInfo(f);
+                            return new RecordingCatalog.Entry(
+                                    RecordingCatalog.fileToRecordingName(f),
+                                    f.getName(), info.getNumFrames(), info.getSampleRate(),
+                                    f.length(), f.lastModified());
+                        }
+                    });
+        }
+        return catalog;
+    }
+
+    /**
+     * Record a recording just saved, or just deleted, in the catalog. If
+     * the catalog was already out of date, it is reconciled instead.
+     *
+     * @param dirModifiedBefore modification time of the recordings
+     *                          directory before the change
+     * @param added the recording saved, or null
+     * @param removed names of the recordings deleted, or null
+     */
+    private void updateCatalog(long dirModifiedBefore, RecordingCatalog.Entry added,
+                               Collection<String> removed) throws StorageUnavailableException {
+        File dir = getStorageDir();
+        synchronized (catalogLock) {
+            if (catalog == null || catalog.isStale(dirModifiedBefore)) {
+                getCatalog(dir);
+            }
+            else if (added != null) {
+                catalog.put(added, dir.lastModified());
+            }
+            else {
+                catalog.removeAll(removed, dir.lastModified());
+            }
         }
-        return names;
+    }
+
+    private void addToCatalog(long dirModifiedBefore, String name, File f, int numFrames,
+                              int samplingRate) throws StorageUnavailableException {
+        updateCatalog(dirModifiedBefore, new RecordingCatalog.Entry(name, f.getName(),
+                numFrames, samplingRate, f.length(), f.lastModified()), null);
     }
 
     /**
@@ -63,17 +305,88 @@ public class Storage {
      */
     public void saveRecording(AudioBuffer buffer, String name, int samplingRate)
             throws StorageUnavailableException, IOException {
-        String path = recordingNameToPath(name);
-        saveRecordingToPath(buffer, path, samplingRate);
+        long dirModified = getStorageDir().lastModified();
+        String path = recordingNameToPath(name, WAV_EXTENSION);
+        saveRecordingToPath(buffer, path, samplingRate, SAVED_RECORDING_FORMAT);
+        deleteOtherFormats(name, WAV_EXTENSION);
+        addToCatalog(dirModified, name, new File(path), buffer.getIdx(), samplingRate);
+    }
+
+    /**
+     * Save the given audio buffer to file, without any loss of quality.
+     * Lossless recordings are listed and loaded the same way as other
+     * saved recordings.
+     *
+     * @param buffer buffer containing audio data
+     * @param name name to give the saved file
+     * @param samplingRate sampling rate of the audio
+     *
+     * @throws StorageUnavailableException if storage is unavailable
+     * @throws IOException if any other IO errors occur
+     */
+    public void saveLosslessRecording(AudioBuffer buffer, String name, int samplingRate)
+            throws StorageUnavailableException, IOException {
+        long dirModified = getStorageDir().lastModified();
+        String path = recordingNameToPath(name, LOSSLESS_EXTENSION);
+        LosslessWriter writer = new LosslessWriter(path, samplingRate, getCodecExecutor());
+        try {
+            if (buffer.isDirect()) {
+                short[] block = new short[RESAMPLE_BLOCK_LEN];
+                for (int i = 0; i < buffer.getIdx(); i += block.length) {
+                    writer.writeFrames(block, 0, buffer.read(i, block, 0, block.length));
+                }
+            }
+            else {
+                for (int i = 0; i < buffer.getSegmentCount(); i++) {
+                    writer.writeFrames(buffer.getSegment(i), 0, buffer.getSegmentLength(i));
+                }
+            }
+        } finally {
+            writer.close();
+        }
+        deleteOtherFormats(name, LOSSLESS_EXTENSION);
+        addToCatalog(dirModified, name, new File(path), buffer.getIdx(), samplingRate);
+    }
+
+    /** Remove any copy of the named recording saved with a different extension */
+    private void deleteOtherFormats(String name, String keepExtension)
+            throws StorageUnavailableException {
+        for (String ext : new String[] { WAV_EXTENSION, LOSSLESS_EXTENSION }) {
+            if (!ext.equals(keepExtension)) {
+                new File(recordingNameToPath(name, ext)).delete();
+            }
+        }
+    }
+
+    /**
+     * Get the executor that runs the asynchronous operations, for its
+     * queue and latency statistics.
+     */
+    public synchronized IoExecutor getIoExecutor() {
+        if (ioExecutor == null) {
+            ioExecutor = new IoExecutor(IO_THREADS, IO_MAX_QUEUED);
+        }
+        return ioExecutor;
+    }
+
+    private synchronized ExecutorService getCodecExecutor() {
+        if (codecExecutor == null) {
+            codecExecutor = Executors.newFixedThreadPool(
+                    Runtime.getRuntime().availableProcessors());
+        }
+        return codecExecutor;
     }
 
     /**
-     * Save the given audio buffer to a temporary file. Temporary recordings
-     * are not returned by {@code #getSavedRecordingNames}.
+     * Save the given audio buffer to a temporary file, sounding as it
+     * does when played at the given speed. The speed change is rendered
+     * into the audio, so the file has the same sample rate as the buffer.
+     * Temporary recordings are not returned by {@code #getSavedRecordingNames}.
      *
      * @param buffer buffer containing audio data
      * @param name name to give the saved file
      * @param samplingRate sampling rate of the audio
+     * @param speed playback speed, where 1.0 is normal speed
      *
      * @throws StorageUnavailableException if storage is unavailable
      * @throws IOException if any other IO errors occur
@@ -81,15 +394,49 @@ public class Storage {
      * @return The saved file. Saved to a public directory, therefore is
      * accessible by other apps.
      */
-    public File saveTempRecording(AudioBuffer buffer, String name, int samplingRate)
+    public File saveTempRecording(AudioBuffer buffer, String name, int samplingRate,
+                                  double speed)
             throws StorageUnavailableException, IOException {
+        File f = getTempRecordingFile(name);
+        Resampler resampler = new Resampler(samplingRate * speed, samplingRate,
+                Resampler.Quality.HIGH);
+        short[] block = new short[resampler.getMaxOutputLength(RESAMPLE_BLOCK_LEN)];
+        WaveFileWriter writer = new WaveFileWriter(f.getAbsolutePath(), samplingRate, 1);
+        try {
+            if (buffer.isDirect()) {
+                short[] src = new short[RESAMPLE_BLOCK_LEN];
+                for (int i = 0; i < buffer.getIdx(); i += src.length) {
+                    int len = buffer.read(i, src, 0, src.length);
+                    writer.writeFrames(block, 0, resampler.process(src, 0, len, block, 0));
+                }
+            }
+            else {
+                for (int seg = 0; seg < buffer.getSegmentCount(); seg++) {
+                    short[] src = buffer.getSegment(seg);
+                    int segLen = buffer.getSegmentLength(seg);
+                    for (int i = 0; i < segLen; i += RESAMPLE_BLOCK_LEN) {
+                        int len = Math.min(RESAMPLE_BLOCK_LEN, segLen - i);
+                        writer.writeFrames(block, 0, resampler.process(src, i, len, block, 0));
+                    }
+                }
+            }
+            writer.writeFrames(block, 0, resampler.flush(block, 0));
+        } finally {
+            writer.close();
+        }
+        return f;
+    }
+
+    /**
+     * Get the file a temporary recording of the given name is saved to,
+     * without saving anything.
+     */
+    private File getTempRecordingFile(String name) throws StorageUnavailableException {
         File dir = getTempStorageDir();
         if (!dir.exists()) {
             dir.mkdir();
         }
-        File f = new File(dir, name + ".wav");
-        saveRecordingToPath(buffer, f.getAbsolutePath(), samplingRate);
-        return f;
+        return new File(dir, name + WAV_EXTENSION);
     }
 
     /** Delete all recordings in the temporary directory */
@@ -105,34 +452,136 @@ public class Storage {
         }
     }
 
-    private void saveRecordingToPath(AudioBuffer buffer, String path, int samplingRate)
-            throws IOException {
-        WaveFile wav = new WaveFile.Builder()
-                .data(buffer.getBuffer())
-                .numFrames(buffer.getIdx())
-                .sampleRate(samplingRate)
-                .bitDepth(16)
-                .channels(1)
-                .build();
-        wav.writeToFile(path);
+    private void saveRecordingToPath(AudioBuffer buffer, String path, int samplingRate,
+                                     Format format) throws IOException {
+        WaveFileWriter writer = new WaveFileWriter(path, samplingRate, 1, format);
+        try {
+            if (buffer.isDirect()) {
+                // handed to the file channel without a heap copy
+                writer.writeFrames(buffer.getByteBuffer());
+            }
+            else {
+                for (int i = 0; i < buffer.getSegmentCount(); i++) {
+                    writer.writeFrames(buffer.getSegment(i), 0, buffer.getSegmentLength(i));
+                }
+            }
+        } finally {
+            writer.close();
+        }
     }
 
     /**
      * Save buffer. Overwrites previous saves.
      */
     public void saveBuffer(AudioBuffer buffer) {
-        File f = getBufferTempFile();
-        try {
-            buffer.saveToFile(f);
-        } catch (IOException e) {
-            Log.e(TAG, "Error saving buffer to file", e);
+        saveBuffer(buffer, null);
+    }
+
+    /**
+     * Save buffer in the background. Overwrites previous saves.
+     *
+     * The buffer is copied to an in-memory snapshot before returning, so
+     * the caller may change it straight away. The snapshot is written to
+     * file on the I/O thread, and is what {@link #loadBuffer(AudioBuffer)}
+     * returns from then on, whether or not the write has finished.
+     *
+     * @param listener called on the I/O thread once the snapshot, or a
+     *                 later one that replaced it, is on file. May be null.
+     */
+    public void saveBuffer(AudioBuffer buffer, final OnBufferSavedListener listener) {
+        final AudioBuffer snapshot;
+        synchronized (snapshotLock) {
+            snapshot = takeSpareSnapshot(buffer.getIdx());
+            buffer.copyTo(0, snapshot, buffer.getIdx());
+            if (latestSnapshot != null && latestSnapshotWritten) {
+                spareSnapshot = latestSnapshot;
+            }
+            latestSnapshot = snapshot;
+            latestSnapshotWritten = false;
+        }
+        getIoExecutor().submit(IoExecutor.Op.SNAPSHOT, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                boolean success = writeSnapshot(snapshot);
+                if (listener != null) {
+                    listener.onBufferSaved(success);
+                }
+                return success;
+            }
+        }, null);
+    }
+
+    /**
+     * Get an empty snapshot buffer that isn't waiting to be written,
+     * allocating one if there is none big enough.
+     */
+    private AudioBuffer takeSpareSnapshot(int samples) {
+        AudioBuffer snapshot = spareSnapshot;
+        spareSnapshot = null;
+        if (snapshot == null || snapshot.capacity() < samples) {
+            // direct, so it goes to file without another copy
+            snapshot = AudioBuffer.allocateDirect(samples);
+        }
+        snapshot.resetIdx();
+        return snapshot;
+    }
+
+    /**
+     * Write a snapshot to file, unless a later one has replaced it.
+     * Runs on an I/O thread. Writes are taken one at a time, so an older
+     * snapshot is never written over a newer one.
+     *
+     * @return false if the write failed
+     */
+    private boolean writeSnapshot(AudioBuffer snapshot) {
+        synchronized (snapshotWriteLock) {
+            synchronized (snapshotLock) {
+                if (snapshot != latestSnapshot) {
+                    // superseded before it was written
+                    spareSnapshot = snapshot;
+                    return true;
+                }
+            }
+            // the previous file is kept until the new one is complete
+            File f = getBufferTempFile();
+            File tmp = new File(f.getPath() + ".tmp");
+            boolean success;
+            try {
+                snapshot.saveToFile(tmp);
+                success = tmp.renameTo(f);
+                if (!success) {
+                    Log.e(TAG, "Error renaming saved buffer");
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error saving buffer to file", e);
+                success = false;
+            }
+            synchronized (snapshotLock) {
+                if (snapshot == latestSnapshot) {
+                    latestSnapshotWritten = true;
+                }
+                else {
+                    spareSnapshot = snapshot;
+                }
+            }
+            return success;
         }
     }
 
     /**
-     * Load the last saved buffer to the given buffer.
+     * Load the last saved buffer to the given buffer. A snapshot saved
+     * since the app started is copied from memory, even if it is still
+     * being written.
      */
     public void loadBuffer(AudioBuffer buffer) {
+        synchronized (snapshotLock) {
+            if (latestSnapshot != null) {
+                buffer.resetIdx();
+                latestSnapshot.copyTo(0, buffer, latestSnapshot.getIdx());
+                buffer.trim();
+                return;
+            }
+        }
         File f = getBufferTempFile();
         if (f.exists()) {
             try {
@@ -143,6 +592,78 @@ public class Storage {
         }
     }
 
+    /**
+     * Create a journal to stream takes to while they are recorded. Only
+     * one journal should be in use at a time.
+     *
+     * @param sampleRate sample rate of the recorder
+     */
+    public TakeJournal openJournal(int sampleRate) {
+        return new TakeJournal(getJournalFile(), sampleRate,
+                JOURNAL_BLOCK_SAMPLES, JOURNAL_BLOCKS_PER_SYNC);
+    }
+
+    /**
+     * Replace the contents of the given buffer with a take left in the
+     * journal by a crash, either cut short or not yet saved with the
+     * buffer, if there is one, and delete the journal. Call before opening
+     * a new journal.
+     *
+     * @param sampleRate sample rate of the buffer. A take recorded at
+     *                   another rate is converted to it.
+     * @return true if a take was recovered
+     */
+    public boolean recoverJournal(AudioBuffer buffer, int sampleRate) {
+        File f = getJournalFile();
+        if (!f.exists())
+            return false;
+        boolean recovered = false;
+        // emptied once the take is in a saved buffer, so anything left is
+        // newer than the buffer
+        if (f.length() > 0) {
+            try {
+                // room for every sample in the file, whatever its rate
+                AudioBuffer take = new AudioBuffer((int) Math.min(f.length() / 2,
+                        Integer.MAX_VALUE));
+                int takeRate = TakeJournal.recover(f, take);
+                if (take.getIdx() > 0) {
+                    buffer.resetIdx();
+                    if (takeRate == sampleRate)
+                        take.copyTo(0, buffer, take.getIdx());
+                    else
+                        resample(take, takeRate, buffer, sampleRate);
+                    buffer.trim();
+                    recovered = true;
+                    Log.i(TAG, "Recovered " + take.getIdx() + " samples at " + takeRate
+                            + " Hz from journal");
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error recovering journal", e);
+            }
+        }
+        f.delete();
+        return recovered;
+    }
+
+    /**
+     * Append the audio in src, at srcRate, to dst converted to dstRate.
+     * Anything that doesn't fit in dst is dropped.
+     */
+    private static void resample(AudioBuffer src, int srcRate, AudioBuffer dst, int dstRate) {
+        Resampler resampler = new Resampler(srcRate, dstRate, Resampler.Quality.HIGH);
+        short[] in = new short[RESAMPLE_BLOCK_LEN];
+        short[] out = new short[resampler.getMaxOutputLength(RESAMPLE_BLOCK_LEN)];
+        for (int i = 0; i < src.getIdx() && !dst.isFull(); i += in.length) {
+            int len = src.read(i, in, 0, in.length);
+            dst.write(out, 0, resampler.process(in, 0, len, out, 0));
+        }
+        dst.write(out, 0, resampler.flush(out, 0));
+    }
+
+    private File getJournalFile() {
+        return new File(context.getFilesDir(), JOURNAL_FILENAME);
+    }
+
     /**
      * Get the file used to store audio buffer data
      */
@@ -153,10 +674,168 @@ public class Storage {
     public void loadRecordingToBuffer(AudioBuffer buffer, String name)
             throws IOException {
         File f = recordingNameToFile(name);
-        WaveFile wav = WaveFile.fromFile(f.getPath());
-        wav.getAudioData(buffer.getBuffer());
         buffer.resetIdx();
-        buffer.incrementIdx(wav.getNumFrames());
+        if (buffer.isDirect() && isNativeFormat(WaveFile.probe(f.getPath()))) {
+            // bulk copy from the mapped file to the direct buffer
+            MappedWaveFile wav = new MappedWaveFile(f.getPath());
+            try {
+                ShortBuffer src = wav.getSamples();
+                ShortBuffer dst = buffer.getWriteByteBuffer().asShortBuffer();
+                src.limit(Math.min(src.limit(), dst.remaining()));
+                dst.put(src);
+                buffer.incrementIdx(src.limit());
+            } finally {
+                wav.close();
+            }
+        }
+        else if (buffer.isDirect()) {
+            readThroughBlock(f, buffer);
+        }
+        // read straight into the buffer's storage, a segment at a time
+        else if (isLossless(f)) {
+            LosslessReader reader = new LosslessReader(f.getPath());
+            try {
+                while (!buffer.isFull()) {
+                    int len = buffer.getWriteSegmentRemaining();
+                    int n = reader.read(buffer.getIdx(), buffer.getWriteSegment(),
+                            buffer.getWriteSegmentOffset(), len, getCodecExecutor());
+                    buffer.incrementIdx(n);
+                    if (n < len)
+                        break;
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        else if (isNativeFormat(WaveFile.probe(f.getPath()))) {
+            MappedWaveFile wav = new MappedWaveFile(f.getPath());
+            try {
+                while (!buffer.isFull()) {
+                    int len = buffer.getWriteSegmentRemaining();
+                    int n = wav.read(buffer.getIdx(), buffer.getWriteSegment(),
+                            buffer.getWriteSegmentOffset(), len);
+                    buffer.incrementIdx(n);
+                    if (n < len)
+                        break;
+                }
+            } finally {
+                wav.close();
+            }
+        }
+        else {
+            // convert other formats as they are read
+            readFully(f, buffer);
+        }
+        buffer.trim();
+    }
+
+    /** Returns true if the file can be used without conversion */
+    private static boolean isNativeFormat(WaveFileInfo info) {
+        return info.getFormat() == Format.PCM && info.getBitDepth() == 16
+                && info.getNumChannels() == 1;
+    }
+
+    /**
+     * Append frames of the given file to a direct buffer until it is
+     * full, a block at a time.
+     */
+    private void readThroughBlock(File f, AudioBuffer buffer) throws IOException {
+        short[] block = new short[RESAMPLE_BLOCK_LEN];
+        if (isLossless(f)) {
+            LosslessReader reader = new LosslessReader(f.getPath());
+            try {
+                while (!buffer.isFull()) {
+                    int len = Math.min(block.length, buffer.remaining());
+                    int n = reader.read(buffer.getIdx(), block, 0, len, getCodecExecutor());
+                    buffer.write(block, 0, n);
+                    if (n < len)
+                        break;
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        else {
+            WaveFileReader reader = new WaveFileReader(f.getPath());
+            try {
+                int result;
+                while (!buffer.isFull() && (result = reader.readFrames(block, 0,
+                        Math.min(block.length, buffer.remaining()))) > 0) {
+                    buffer.write(block, 0, result);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Append frames of the given file to buffer until it is full,
+     * converting to 16 bit mono.
+     */
+    private static void readFully(File f, AudioBuffer buffer) throws IOException {
+        WaveFileReader reader = new WaveFileReader(f.getPath());
+        try {
+            int result;
+            while (!buffer.isFull()
+                    && (result = reader.readFrames(buffer.getWriteSegment(),
+                            buffer.getWriteSegmentOffset(),
+                            buffer.getWriteSegmentRemaining())) > 0) {
+                buffer.incrementIdx(result);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Read part of a saved recording. Only the requested region is read
+     * from storage.
+     *
+     * @param startFrame index of the first frame to read
+     * @param frameCount maximum number of frames to read
+     * @param dst buffer to read frames into, starting at index 0
+     * @return number of frames read
+     * @throws FileNotFoundException if named recording doesn't exist
+     * @throws IOException if the recording can't be read
+     */
+    public int readRegion(String name, int startFrame, int frameCount, short[] dst)
+            throws IOException {
+        File f = recordingNameToFile(name);
+        if (isLossless(f)) {
+            LosslessReader reader = new LosslessReader(f.getPath());
+            try {
+                return reader.read(startFrame, dst, 0, frameCount);
+            } finally {
+                reader.close();
+            }
+        }
+        return WaveFile.readRegion(f.getPath(), startFrame, frameCount, dst);
+    }
+
+    /**
+     * Get details of a saved recording. Only the file's header is read,
+     * so this is cheap enough to call for every item in a list.
+     *
+     * @throws FileNotFoundException if named recording doesn't exist
+     * @throws IOException if the recording can't be read
+     */
+    public WaveFileInfo getRecordingInfo(String name) throws IOException {
+        return getRecordingInfo(recordingNameToFile(name));
+    }
+
+    private static WaveFileInfo getRecordingInfo(File f) throws IOException {
+        if (isLossless(f)) {
+            LosslessReader reader = new LosslessReader(f.getPath());
+            try {
+                // decodes to 16 bit mono PCM
+                return new WaveFileInfo(Format.PCM, reader.getNumFrames(),
+                        reader.getSampleRate(), 1, 16);
+            } finally {
+                reader.close();
+            }
+        }
+        return WaveFile.probe(f.getPath());
     }
 
     /**
@@ -169,14 +848,46 @@ public class Storage {
      */
     public boolean deleteRecording(String name)
             throws FileNotFoundException, StorageUnavailableException {
-        File f = recordingNameToFile(name);
-        return f.delete();
+        recordingNameToFile(name);
+        return !deleteRecordings(Collections.singletonList(name)).isEmpty();
+    }
+
+    /**
+     * Delete several recordings, in every format they're saved in. The
+     * catalog is updated once for the lot. Names that don't exist are
+     * skipped.
+     *
+     * @throws aho.uozu.yakbox.Storage.StorageUnavailableException if storage is unavailable
+     *
+     * @return names of the recordings deleted
+     */
+    public List<String> deleteRecordings(List<String> names)
+            throws StorageUnavailableException {
+        long dirModified = getStorageDir().lastModified();
+        List<String> deleted = new ArrayList<>();
+        for (String name : names) {
+            boolean removed = false;
+            boolean remains = false;
+            for (String ext : new String[] { WAV_EXTENSION, LOSSLESS_EXTENSION }) {
+                File f = new File(recordingNameToPath(name, ext));
+                if (f.delete())
+                    removed = true;
+                else if (f.exists())
+                    remains = true;
+            }
+            if (removed && !remains) {
+                deleted.add(name);
+            }
+        }
+        if (!deleted.isEmpty()) {
+            updateCatalog(dirModified, null, deleted);
+        }
+        return deleted;
     }
 
     /** Returns true if the given recording name exists */
     public boolean exists(String name) throws StorageUnavailableException {
-        List<String> recordings = getSavedRecordingNames();
-        return recordings.contains(name);
+        return getCatalog().contains(name);
     }
 
     /** Returns the directory under which user's recordings are saved */
@@ -196,19 +907,13 @@ public class Storage {
         return new File(getStorageDir().toString() + "/temp");
     }
 
-    /** Get all recordings saved by the user */
-    private List<File> getAllSavedRecordings() throws StorageUnavailableException {
-        File dir = getStorageDir();
-        return getRecordings(dir);
-    }
-
     /** Get all recordings in the given directory */
     private List<File> getRecordings(File dir) {
         List<File> waveFiles = new ArrayList<>();
         File[] files = dir.listFiles();
         if (files != null) {
             for (File f : files) {
-                if (f.toString().endsWith(".wav")) {
+                if (f.toString().endsWith(WAV_EXTENSION) || isLossless(f)) {
                     waveFiles.add(f);
                 }
             }
@@ -216,14 +921,14 @@ public class Storage {
         return waveFiles;
     }
 
-    private String fileToRecordingName(File file) {
-        String filename = file.getName();
-        return filename.substring(0, filename.length() - 4);
+    private static boolean isLossless(File file) {
+        return file.getName().endsWith(LOSSLESS_EXTENSION);
     }
 
-    private String recordingNameToPath(String name) throws StorageUnavailableException {
+    private String recordingNameToPath(String name, String extension)
+            throws StorageUnavailableException {
         File dir = getStorageDir();
-        return dir.toString() + "/" + name + ".wav";
+        return dir.toString() + "/" + name + extension;
     }
 
     /**
@@ -235,7 +940,10 @@ public class Storage {
     private File recordingNameToFile(String name)
             throws FileNotFoundException, StorageUnavailableException {
         File dir = getStorageDir();
-        File file = new File(dir, name + ".wav");
+        File file = new File(dir, name + WAV_EXTENSION);
+        if (!file.exists()) {
+            file = new File(dir, name + LOSSLESS_EXTENSION);
+        }
         if (!file.exists()) {
             throw new FileNotFoundException();
         }
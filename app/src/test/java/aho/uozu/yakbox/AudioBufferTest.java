@@ -6,7 +6,14 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
 import aho.uozu.android.audio.AudioBuffer;
+import aho.uozu.android.audio.SegmentPool;
 
 public class AudioBufferTest {
 
@@ -38,4 +45,203 @@ public class AudioBufferTest {
         assertEquals(1, mAudioBuffer.getIdx());
         assertEquals(TEST_BUFFER_SIZE - 1, mAudioBuffer.remaining());
     }
+
+    @Test
+    public void testReadReverse() {
+        mAudioBuffer.write(new short[] {1, 2, 3, 4, 5}, 5);
+        short[] dst = new short[10];
+        assertEquals(5, mAudioBuffer.readReverse(0, dst, 0, 10));
+        assertEquals(5, dst[0]);
+        assertEquals(1, dst[4]);
+        assertEquals(2, mAudioBuffer.readReverse(3, dst, 1, 10));
+        assertEquals(2, dst[1]);
+        assertEquals(1, dst[2]);
+        assertEquals(0, mAudioBuffer.readReverse(5, dst, 0, 10));
+        // original order is unchanged
+        assertEquals(1, mAudioBuffer.getBuffer()[0]);
+        assertEquals(5, mAudioBuffer.getIdx());
+    }
+
+    @Test
+    public void testSegmentedWriteAndRead() {
+        SegmentPool pool = new SegmentPool(4, 8);
+        AudioBuffer buf = new AudioBuffer(TEST_BUFFER_SIZE, pool);
+        assertEquals(0, buf.getAllocatedSamples());
+        buf.write(ramp(10), 10);
+        assertEquals(10, buf.getIdx());
+        assertEquals(12, buf.getAllocatedSamples());
+        assertEquals(3, buf.getSegmentCount());
+        assertEquals(2, buf.getSegmentLength(2));
+
+        short[] dst = new short[10];
+        assertEquals(7, buf.read(3, dst, 0, 10));
+        assertEquals(3, dst[0]);
+        assertEquals(9, dst[6]);
+        assertEquals(6, buf.readReverse(1, dst, 0, 6));
+        assertEquals(8, dst[0]);
+        assertEquals(3, dst[5]);
+
+        buf.reverse();
+        assertEquals(1, buf.read(0, dst, 0, 1));
+        assertEquals(9, dst[0]);
+    }
+
+    @Test
+    public void testSegmentedCopyTo() {
+        AudioBuffer src = new AudioBuffer(TEST_BUFFER_SIZE, new SegmentPool(4, 8));
+        src.write(ramp(10), 10);
+        AudioBuffer dst = new AudioBuffer(TEST_BUFFER_SIZE, new SegmentPool(3, 8));
+        dst.write(new short[] {42}, 1);
+        assertEquals(8, src.copyTo(2, dst, 100));
+        assertEquals(9, dst.getIdx());
+        short[] out = new short[9];
+        dst.read(0, out, 0, 9);
+        assertEquals(42, out[0]);
+        assertEquals(2, out[1]);
+        assertEquals(9, out[8]);
+    }
+
+    @Test
+    public void testSegmentedTrimReusesSegments() {
+        SegmentPool pool = new SegmentPool(4, 8);
+        AudioBuffer buf = new AudioBuffer(TEST_BUFFER_SIZE, pool);
+        buf.write(ramp(20), 20);
+        assertEquals(5, pool.getAllocationCount());
+        buf.resetIdx();
+        buf.write(ramp(5), 5);
+        buf.trim();
+        assertEquals(8, buf.getAllocatedSamples());
+        assertEquals(3, pool.getPooledCount());
+        buf.write(ramp(10), 10);
+        assertEquals(5, pool.getAllocationCount());
+        assertEquals(15, buf.getIdx());
+    }
+
+    @Test
+    public void testSegmentedCapacity() {
+        AudioBuffer buf = new AudioBuffer(6, new SegmentPool(4, 8));
+        buf.write(ramp(10), 10);
+        assertTrue(buf.isFull());
+        assertEquals(6, buf.getIdx());
+        assertEquals(2, buf.getSegmentLength(1));
+        try {
+            buf.getBuffer();
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testDirectWriteAndRead() {
+        AudioBuffer buf = AudioBuffer.allocateDirect(TEST_BUFFER_SIZE);
+        assertTrue(buf.isDirect());
+        buf.write(ramp(10), 10);
+        short[] dst = new short[10];
+        assertEquals(7, buf.read(3, dst, 0, 10));
+        assertEquals(3, dst[0]);
+        assertEquals(3, buf.readReverse(7, dst, 0, 10));
+        assertEquals(2, dst[0]);
+        buf.reverse();
+        assertEquals(1, buf.read(0, dst, 0, 1));
+        assertEquals(9, dst[0]);
+    }
+
+    @Test
+    public void testDirectByteBuffers() {
+        AudioBuffer buf = AudioBuffer.allocateDirect(TEST_BUFFER_SIZE);
+        buf.write(ramp(10), 10);
+        ByteBuffer view = buf.getByteBuffer();
+        assertEquals(0, view.position());
+        assertEquals(20, view.limit());
+        assertEquals(ByteOrder.nativeOrder(), view.order());
+        assertEquals(4, view.getShort(8));
+
+        ByteBuffer free = buf.getWriteByteBuffer();
+        free.putShort((short) 42);
+        buf.incrementIdx(1);
+        short[] dst = new short[1];
+        buf.read(10, dst, 0, 1);
+        assertEquals(42, dst[0]);
+        try {
+            buf.getSegmentCount();
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testDirectCopyTo() {
+        AudioBuffer src = new AudioBuffer(TEST_BUFFER_SIZE, new SegmentPool(4, 8));
+        src.write(ramp(10), 10);
+        AudioBuffer direct = AudioBuffer.allocateDirect(TEST_BUFFER_SIZE);
+        assertEquals(10, src.copyTo(0, direct, 100));
+        AudioBuffer dst = AudioBuffer.allocateDirect(TEST_BUFFER_SIZE);
+        assertEquals(8, direct.copyTo(2, dst, 100));
+        short[] out = new short[8];
+        dst.read(0, out, 0, 8);
+        assertEquals(2, out[0]);
+        assertEquals(9, out[7]);
+    }
+
+    @Test
+    public void testSnapshotRoundTrip() throws IOException {
+        File f = File.createTempFile("snapshot", null);
+        try {
+            AudioBuffer segmented = new AudioBuffer(TEST_BUFFER_SIZE, new SegmentPool(4, 8));
+            segmented.write(ramp(10), 10);
+            segmented.saveToFile(f);
+
+            AudioBuffer direct = AudioBuffer.allocateDirect(TEST_BUFFER_SIZE);
+            direct.loadFromFile(f);
+            assertEquals(10, direct.getIdx());
+            short[] out = new short[10];
+            direct.read(0, out, 0, 10);
+            assertEquals(9, out[9]);
+
+            direct.reverse();
+            direct.saveToFile(f);
+            AudioBuffer small = new AudioBuffer(6);
+            small.loadFromFile(f);
+            assertEquals(6, small.getIdx());
+            assertEquals(9, small.getBuffer()[0]);
+            assertEquals(4, small.getBuffer()[5]);
+        } finally {
+            f.delete();
+        }
+    }
+
+    @Test
+    public void testSnapshotCorruptHeader() throws IOException {
+        File f = File.createTempFile("snapshot", null);
+        try {
+            mAudioBuffer.write(ramp(10), 10);
+            mAudioBuffer.saveToFile(f);
+            RandomAccessFile raf = new RandomAccessFile(f, "rw");
+            raf.seek(12);
+            raf.write(0xff);
+            raf.close();
+
+            AudioBuffer buf = new AudioBuffer(TEST_BUFFER_SIZE);
+            buf.write(new short[] {42}, 1);
+            try {
+                buf.loadFromFile(f);
+                fail();
+            } catch (IOException e) {
+                // expected
+            }
+            assertEquals(1, buf.getIdx());
+        } finally {
+            f.delete();
+        }
+    }
+
+    private static short[] ramp(int len) {
+        short[] samples = new short[len];
+        for (int i = 0; i < len; i++) {
+            samples[i] = (short) i;
+        }
+        return samples;
+    }
 }
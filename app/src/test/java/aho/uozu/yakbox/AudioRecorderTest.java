@@ -0,0 +1,451 @@
+package aho.uozu.yakbox;
+
+import static junit.framework.Assert.*;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import aho.uozu.android.audio.AudioBuffer;
+import aho.uozu.android.audio.AudioPlayer;
+import aho.uozu.android.audio.AudioRecorder;
+import aho.uozu.android.audio.AudioSource;
+import aho.uozu.android.audio.NullSink;
+import aho.uozu.android.audio.Pacing;
+import aho.uozu.android.audio.ShortRingBuffer;
+import aho.uozu.android.audio.SignalSource;
+import aho.uozu.android.audio.TakeJournal;
+import aho.uozu.android.audio.WavFileSink;
+import aho.uozu.audio.wav.WaveFileReader;
+
+/**
+ * Drives the recorder and player through the headless sources and sinks,
+ * so no audio hardware is needed.
+ */
+public class AudioRecorderTest {
+
+    private static final int SAMPLE_RATE = 8000;
+    private static final int TIMEOUT_MS = 5000;
+
+    @Test
+    public void testRecordUntilFull() throws Exception {
+        SignalSource source = new SignalSource(SAMPLE_RATE, 440, (short) 10000,
+                Pacing.MAX_SPEED, 0);
+        AudioRecorder recorder = new AudioRecorder(source, 1);
+        final CountDownLatch full = new CountDownLatch(1);
+        recorder.setOnBufferFullListener(new AudioRecorder.OnBufferFullListener() {
+            @Override
+            public void onBufferFull() {
+                full.countDown();
+            }
+        });
+        recorder.startRecording();
+        assertTrue(full.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        AudioBuffer buf = new AudioBuffer(recorder.getBufferSizeSamples());
+        assertEquals(SAMPLE_RATE, recorder.read(buf));
+        for (int i = 0; i < buf.getIdx(); i++) {
+            assertEquals(source.sampleAt(i), buf.getBuffer()[i]);
+        }
+        recorder.release();
+    }
+
+    @Test
+    public void testStopRecording() throws Exception {
+        SignalSource source = new SignalSource(SAMPLE_RATE, 440, (short) 10000,
+                Pacing.REAL_TIME, SAMPLE_RATE / 10);
+        AudioRecorder recorder = new AudioRecorder(source, 1);
+        recorder.startRecording();
+        Thread.sleep(100);
+        recorder.stopRecording();
+        Thread.sleep(50);
+
+        AudioBuffer buf = new AudioBuffer(recorder.getBufferSizeSamples());
+        int n = recorder.read(buf);
+        assertTrue(n > 0);
+        assertTrue(n < SAMPLE_RATE);
+        // nothing more is captured once stopped
+        Thread.sleep(50);
+        assertEquals(0, recorder.read(buf));
+        recorder.release();
+    }
+
+    @Test
+    public void testJournalRecoversTake() throws Exception {
+        File f = File.createTempFile("take", ".journal");
+        File crashed = File.createTempFile("crashed", ".journal");
+        SignalSource source = new SignalSource(SAMPLE_RATE, 440, (short) 10000,
+                Pacing.REAL_TIME, SAMPLE_RATE / 2);
+        AudioRecorder recorder = new AudioRecorder(source, 1);
+        TakeJournal journal = new TakeJournal(f, SAMPLE_RATE, 300, 4);
+        recorder.setJournal(journal);
+        final CountDownLatch full = new CountDownLatch(1);
+        recorder.setOnBufferFullListener(new AudioRecorder.OnBufferFullListener() {
+            @Override
+            public void onBufferFull() {
+                full.countDown();
+            }
+        });
+        recorder.startRecording();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (journal.getBlocksWritten() < 8 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        // the journal as a crash mid-take would leave it
+        Files.copy(f.toPath(), crashed.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        assertTrue(journal.getSyncCount() >= 2);
+
+        AudioBuffer buf = new AudioBuffer(recorder.getBufferSizeSamples());
+        assertEquals(SAMPLE_RATE, TakeJournal.recover(crashed, buf));
+        int recovered = buf.getIdx();
+        assertTrue(recovered >= 8 * 300);
+        assertEquals(0, recovered % 300);
+        for (int i = 0; i < recovered; i++) {
+            assertEquals(source.sampleAt(i), buf.getBuffer()[i]);
+        }
+
+        // a torn last block is dropped
+        RandomAccessFile raf = new RandomAccessFile(crashed, "rw");
+        raf.setLength(raf.length() - 10);
+        raf.close();
+        buf.resetIdx();
+        TakeJournal.recover(crashed, buf);
+        assertEquals(recovered - 300, buf.getIdx());
+        assertTrue(crashed.delete());
+
+        // a take that has ended is kept whole until it is cleared
+        assertTrue(full.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        int takeSeq = journal.getTakeSeq();
+        deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        do {
+            Thread.sleep(5);
+            Files.copy(f.toPath(), crashed.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            buf.resetIdx();
+            TakeJournal.recover(crashed, buf);
+        } while (buf.getIdx() < SAMPLE_RATE && System.currentTimeMillis() < deadline);
+        assertEquals(SAMPLE_RATE, buf.getIdx());
+        assertTrue(crashed.delete());
+
+        journal.clearTake(takeSeq);
+        deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (f.length() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, f.length());
+
+        recorder.release();
+        assertFalse(f.exists());
+    }
+
+    @Test
+    public void testJournalKeptUntilCleared() throws Exception {
+        File f = File.createTempFile("take", ".journal");
+        SignalSource source = new SignalSource(SAMPLE_RATE, 440, (short) 10000,
+                Pacing.MAX_SPEED, 0);
+        AudioRecorder recorder = new AudioRecorder(source, 1);
+        TakeJournal journal = new TakeJournal(f, SAMPLE_RATE, 300, 4);
+        recorder.setJournal(journal);
+        final CountDownLatch full = new CountDownLatch(1);
+        recorder.setOnBufferFullListener(new AudioRecorder.OnBufferFullListener() {
+            @Override
+            public void onBufferFull() {
+                full.countDown();
+            }
+        });
+        recorder.startRecording();
+        assertTrue(full.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        int takeSeq = journal.getTakeSeq();
+
+        // released before the take was saved elsewhere: it survives
+        recorder.release();
+        assertTrue(f.exists());
+        AudioBuffer buf = new AudioBuffer(recorder.getBufferSizeSamples());
+        TakeJournal.recover(f, buf);
+        assertEquals(SAMPLE_RATE, buf.getIdx());
+        for (int i = 0; i < buf.getIdx(); i++) {
+            assertEquals(source.sampleAt(i), buf.getBuffer()[i]);
+        }
+
+        // an older take doesn't clear it, and the saved take does
+        journal.clearTake(takeSeq - 1);
+        assertTrue(f.exists());
+        journal.clearTake(takeSeq);
+        assertFalse(f.exists());
+    }
+
+    @Test
+    public void testWorkerReusedAcrossTakes() throws Exception {
+        SignalSource source = new SignalSource(SAMPLE_RATE, 440, (short) 10000,
+                Pacing.MAX_SPEED, 0);
+        AudioRecorder recorder = new AudioRecorder(source, 1);
+        final CountDownLatch full = new CountDownLatch(2);
+        recorder.setOnBufferFullListener(new AudioRecorder.OnBufferFullListener() {
+            @Override
+            public void onBufferFull() {
+                full.countDown();
+            }
+        });
+        AudioBuffer buf = new AudioBuffer(recorder.getBufferSizeSamples());
+        recorder.startRecording();
+        while (full.getCount() == 2) {
+            Thread.sleep(5);
+        }
+        recorder.startRecording();
+        assertTrue(full.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        // only the second take is read
+        assertEquals(SAMPLE_RATE, recorder.read(buf));
+        assertEquals(source.sampleAt(SAMPLE_RATE), buf.getBuffer()[0]);
+        assertEquals(1, recorder.getAllocationCount());
+        assertEquals(2.0, recorder.getCaptureSeconds(), 1e-9);
+        // one wakeup per period, plus one per take unless the worker
+        // saw the second take before parking
+        int periods = (SAMPLE_RATE + recorder.getPeriodSamples() - 1)
+                / recorder.getPeriodSamples();
+        assertTrue(recorder.getWakeupCount() >= 2 * periods + 1);
+        assertTrue(recorder.getWakeupCount() <= 2 * (periods + 1));
+        recorder.release();
+    }
+
+    @Test
+    public void testPreRoll() throws Exception {
+        SignalSource source = new SignalSource(SAMPLE_RATE, 440, (short) 10000,
+                Pacing.REAL_TIME, SAMPLE_RATE / 10);
+        AudioRecorder recorder = new AudioRecorder(source, 1);
+        recorder.openSession(100);
+        assertTrue(recorder.isSessionOpen());
+        Thread.sleep(200);
+        long before = System.nanoTime();
+        recorder.startRecording();
+        Thread.sleep(50);
+        recorder.stopRecording();
+        long recordedMs = (System.nanoTime() - before) / 1000000;
+
+        AudioBuffer buf = new AudioBuffer(recorder.getBufferSizeSamples());
+        int n = recorder.read(buf);
+        // the take starts with the pre-roll, and is contiguous with it
+        assertTrue(n >= SAMPLE_RATE / 10);
+        assertTrue(n <= SAMPLE_RATE * (100 + recordedMs) / 1000 + recorder.getPeriodSamples());
+        long startIdx = -1;
+        for (long i = 0; i < SAMPLE_RATE && startIdx < 0; i++) {
+            if (source.sampleAt(i) == buf.getBuffer()[0]
+                    && source.sampleAt(i + 1) == buf.getBuffer()[1]
+                    && source.sampleAt(i + 2) == buf.getBuffer()[2]) {
+                startIdx = i;
+            }
+        }
+        assertTrue(startIdx >= 0);
+        for (int i = 0; i < n; i++) {
+            assertEquals(source.sampleAt(startIdx + i), buf.getBuffer()[i]);
+        }
+        // capture carries on in a session, but the take has ended
+        Thread.sleep(50);
+        assertEquals(0, recorder.read(buf));
+        recorder.closeSession();
+        assertFalse(recorder.isSessionOpen());
+        recorder.release();
+    }
+
+    @Test
+    public void testFullTakeKeptUntilRead() throws Exception {
+        SignalSource source = new SignalSource(SAMPLE_RATE, 440, (short) 10000,
+                Pacing.REAL_TIME, SAMPLE_RATE / 10);
+        AudioRecorder recorder = new AudioRecorder(source, 1);
+        recorder.openSession(0);
+        recorder.startRecording();
+        // say held well past the end of the take, and the ring's margin
+        Thread.sleep(2500);
+        recorder.stopRecording();
+
+        AudioBuffer buf = new AudioBuffer(recorder.getBufferSizeSamples());
+        assertEquals(SAMPLE_RATE, recorder.read(buf));
+        assertEquals(0, recorder.getTakeSamplesLost());
+        long startIdx = -1;
+        for (long i = 0; i < SAMPLE_RATE && startIdx < 0; i++) {
+            if (source.sampleAt(i) == buf.getBuffer()[0]
+                    && source.sampleAt(i + 1) == buf.getBuffer()[1]
+                    && source.sampleAt(i + 2) == buf.getBuffer()[2]) {
+                startIdx = i;
+            }
+        }
+        assertTrue(startIdx >= 0);
+        for (int i = 0; i < SAMPLE_RATE; i++) {
+            assertEquals(source.sampleAt(startIdx + i), buf.getBuffer()[i]);
+        }
+
+        // capture resumes once the take has been read
+        buf.resetIdx();
+        recorder.startRecording();
+        Thread.sleep(100);
+        recorder.stopRecording();
+        assertTrue(recorder.read(buf) > 0);
+        recorder.release();
+    }
+
+    @Test
+    public void testBackToBackTakes() throws Exception {
+        SignalSource source = new SignalSource(SAMPLE_RATE, 440, (short) 10000,
+                Pacing.REAL_TIME, SAMPLE_RATE / 10);
+        AudioRecorder recorder = new AudioRecorder(source, 1);
+        recorder.openSession(100);
+        Thread.sleep(200);
+        AudioBuffer first = new AudioBuffer(recorder.getBufferSizeSamples());
+        AudioBuffer second = new AudioBuffer(recorder.getBufferSizeSamples());
+        recorder.startRecording();
+        Thread.sleep(150);
+        recorder.stopRecording();
+        long firstEnd = recorder.getTakeEndPos();
+        assertEquals(firstEnd - recorder.getTakeStartPos(), recorder.read(first));
+        recorder.startRecording();
+        Thread.sleep(150);
+        recorder.stopRecording();
+        recorder.read(second);
+
+        // the pre-roll of the second take stops where the first ended
+        assertTrue(first.getIdx() > SAMPLE_RATE / 10);
+        assertTrue(second.getIdx() > 0);
+        assertEquals(firstEnd, recorder.getTakeStartPos());
+        ShortRingBuffer.Reader reader = recorder.newReader();
+        reader.seek(recorder.getTakeStartPos() - first.getIdx());
+        short[] both = new short[first.getIdx() + second.getIdx()];
+        assertEquals(both.length, reader.read(both, 0, both.length));
+        for (int i = 0; i < first.getIdx(); i++) {
+            assertEquals(both[i], first.getBuffer()[i]);
+        }
+        for (int i = 0; i < second.getIdx(); i++) {
+            assertEquals(both[first.getIdx() + i], second.getBuffer()[i]);
+        }
+        recorder.release();
+    }
+
+    @Test
+    public void testSourceOverrun() throws Exception {
+        SignalSource source = new SignalSource(SAMPLE_RATE, 440, (short) 10000,
+                Pacing.REAL_TIME, SAMPLE_RATE / 100);
+        source.start();
+        // let the modelled device buffer overflow
+        Thread.sleep(50);
+        short[] dst = new short[16];
+        assertEquals(dst.length, source.read(dst, 0, dst.length));
+        assertEquals(1, source.getOverrunCount());
+        source.release();
+    }
+
+    @Test
+    public void testPlayToNullSink() throws Exception {
+        NullSink sink = new NullSink(SAMPLE_RATE, Pacing.MAX_SPEED, 0);
+        AudioPlayer player = new AudioPlayer(sink);
+        AudioBuffer clip = ramp(SAMPLE_RATE / 2);
+        player.play(clip, 1.0);
+        assertTrue(awaitWritten(sink, clip.getIdx()));
+        player.release();
+        assertEquals(0, sink.getUnderrunCount());
+    }
+
+    @Test
+    public void testPlayReverseToFile() throws Exception {
+        File file = File.createTempFile("yakbox", ".wav");
+        try {
+            WavFileSink sink = new WavFileSink(file.getPath(), SAMPLE_RATE,
+                    Pacing.MAX_SPEED, 0);
+            AudioPlayer player = new AudioPlayer(sink);
+            AudioBuffer clip = ramp(1000);
+            player.playReverse(clip, 1.0);
+            long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+            while (sink.getSamplesWritten() < clip.getIdx()
+                    && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            player.release();
+
+            WaveFileReader reader = new WaveFileReader(file.getPath());
+            short[] played = new short[clip.getIdx()];
+            assertEquals(played.length, reader.readFrames(played, 0, played.length));
+            reader.close();
+            for (int i = 0; i < played.length; i++) {
+                assertEquals(clip.getBuffer()[clip.getIdx() - 1 - i], played[i]);
+            }
+        } finally {
+            assertTrue(file.delete());
+        }
+    }
+
+    @Test
+    public void testReleaseWaitsForBlockedRead() throws Exception {
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch unblock = new CountDownLatch(1);
+        final CountDownLatch released = new CountDownLatch(1);
+        final boolean[] releasedMidRead = new boolean[1];
+        // a source whose read ignores stop(), like a wedged AudioRecord
+        AudioSource source = new AudioSource() {
+            private volatile boolean inRead;
+
+            @Override
+            public int getSampleRate() {
+                return SAMPLE_RATE;
+            }
+
+            @Override
+            public int getPeriodSamples() {
+                return 100;
+            }
+
+            @Override
+            public void start() {
+            }
+
+            @Override
+            public int read(short[] dst, int off, int len) throws InterruptedException {
+                inRead = true;
+                reading.countDown();
+                unblock.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                inRead = false;
+                return len;
+            }
+
+            @Override
+            public void stop() {
+            }
+
+            @Override
+            public void release() {
+                releasedMidRead[0] = inRead;
+                released.countDown();
+            }
+        };
+        AudioRecorder recorder = new AudioRecorder(source, 1);
+        recorder.startRecording();
+        assertTrue(reading.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        recorder.release();
+        assertEquals(1, released.getCount());
+
+        unblock.countDown();
+        assertTrue(released.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertFalse(releasedMidRead[0]);
+    }
+
+    private static AudioBuffer ramp(int len) {
+        short[] samples = new short[len];
+        for (int i = 0; i < len; i++) {
+            samples[i] = (short) i;
+        }
+        AudioBuffer buf = new AudioBuffer(len);
+        buf.write(samples, len);
+        return buf;
+    }
+
+    private static boolean awaitWritten(NullSink sink, int len) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (sink.getSamplesWritten() < len) {
+            if (System.currentTimeMillis() > deadline)
+                return false;
+            Thread.sleep(5);
+        }
+        return true;
+    }
+}
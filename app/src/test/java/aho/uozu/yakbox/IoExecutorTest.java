@@ -0,0 +1,193 @@
+package aho.uozu.yakbox;
+
+import static junit.framework.Assert.*;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import aho.uozu.yakbox.IoExecutor.Op;
+
+public class IoExecutorTest {
+
+    private static final int TIMEOUT_MS = 5000;
+
+    @Test
+    public void testHigherPriorityRunsFirst() throws Exception {
+        IoExecutor executor = new IoExecutor(1, 10);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.submit(Op.SAVE, blockUntil(release), null);
+
+        List<Op> order = Collections.synchronizedList(new ArrayList<Op>());
+        Future<Op> cleanup = executor.submit(Op.CLEANUP, record(Op.CLEANUP, order), null);
+        Future<Op> share = executor.submit(Op.SHARE, record(Op.SHARE, order), null);
+        Future<Op> load = executor.submit(Op.LOAD, record(Op.LOAD, order), null);
+        assertEquals(1, executor.getQueueDepth(Op.LOAD));
+        assertEquals(1, executor.getQueueDepth(Op.CLEANUP));
+
+        release.countDown();
+        cleanup.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        share.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        load.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        // same priority runs in order of submission
+        assertEquals(Op.LOAD, order.get(0));
+        assertEquals(Op.CLEANUP, order.get(1));
+        assertEquals(Op.SHARE, order.get(2));
+        assertEquals(0, executor.getQueueDepth(Op.LOAD));
+        assertEquals(1, executor.getCompletedCount(Op.LOAD));
+        assertTrue(executor.getMaxWaitMillis(Op.SHARE) >= executor.getMaxWaitMillis(Op.LOAD));
+    }
+
+    @Test
+    public void testCallbacks() throws Exception {
+        IoExecutor executor = new IoExecutor(1, 10);
+        final CountDownLatch called = new CountDownLatch(2);
+        final Object[] outcome = new Object[2];
+        executor.submit(Op.LIST, new Callable<String>() {
+            @Override
+            public String call() {
+                return "done";
+            }
+        }, new IoExecutor.Callback<String>() {
+            @Override
+            public void onComplete(String result) {
+                outcome[0] = result;
+                called.countDown();
+            }
+
+            @Override
+            public void onError(Exception e) {
+                fail();
+            }
+        });
+        executor.submit(Op.DELETE, new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws IOException {
+                throw new IOException("failed");
+            }
+        }, new IoExecutor.Callback<Boolean>() {
+            @Override
+            public void onComplete(Boolean result) {
+                fail();
+            }
+
+            @Override
+            public void onError(Exception e) {
+                outcome[1] = e;
+                called.countDown();
+            }
+        });
+        assertTrue(called.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals("done", outcome[0]);
+        assertTrue(outcome[1] instanceof IOException);
+        assertEquals(1, executor.getUnsuccessfulCount(Op.DELETE));
+    }
+
+    @Test
+    public void testCancelAndReject() throws Exception {
+        IoExecutor executor = new IoExecutor(1, 2);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<Op> running = executor.submit(Op.SAVE, blockUntil(release), null);
+        // wait until it's off the queue
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (executor.getQueueDepth(Op.SAVE) > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        List<Op> order = Collections.synchronizedList(new ArrayList<Op>());
+        Future<Op> share = executor.submit(Op.SHARE, record(Op.SHARE, order), null);
+        executor.submit(Op.CLEANUP, record(Op.CLEANUP, order), null);
+        Future<Op> rejected = executor.submit(Op.LOAD, record(Op.LOAD, order), null);
+        try {
+            rejected.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+
+        assertTrue(share.cancel(false));
+        assertEquals(0, executor.getQueueDepth(Op.SHARE));
+        release.countDown();
+        running.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        Future<Op> last = executor.submit(Op.LIST, record(Op.LIST, order), null);
+        last.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertFalse(order.contains(Op.SHARE));
+        assertFalse(order.contains(Op.LOAD));
+        assertEquals(1, executor.getUnsuccessfulCount(Op.SHARE));
+        assertEquals(1, executor.getUnsuccessfulCount(Op.LOAD));
+    }
+
+    @Test
+    public void testQueueBoundUnderConcurrentSubmits() throws Exception {
+        final IoExecutor executor = new IoExecutor(1, 4);
+        final CountDownLatch release = new CountDownLatch(1);
+        Future<Op> running = executor.submit(Op.SAVE, blockUntil(release), null);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (executor.getQueueDepth(Op.SAVE) > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        final List<Op> order = Collections.synchronizedList(new ArrayList<Op>());
+        final CountDownLatch go = new CountDownLatch(1);
+        List<Thread> submitters = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < 10; j++) {
+                        executor.submit(Op.CLEANUP, record(Op.CLEANUP, order), null);
+                    }
+                }
+            });
+            t.start();
+            submitters.add(t);
+        }
+        go.countDown();
+        for (Thread t : submitters) {
+            t.join(TIMEOUT_MS);
+        }
+        assertEquals(4, executor.getQueueDepth(Op.CLEANUP));
+        assertEquals(76, executor.getUnsuccessfulCount(Op.CLEANUP));
+
+        release.countDown();
+        running.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (executor.getCompletedCount(Op.CLEANUP) < 4
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(4, order.size());
+    }
+
+    private static Callable<Op> blockUntil(final CountDownLatch release) {
+        return new Callable<Op>() {
+            @Override
+            public Op call() throws InterruptedException {
+                release.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                return Op.SAVE;
+            }
+        };
+    }
+
+    private static Callable<Op> record(final Op op, final List<Op> order) {
+        return new Callable<Op>() {
+            @Override
+            public Op call() {
+                order.add(op);
+                return op;
+            }
+        };
+    }
+}
@@ -0,0 +1,208 @@
+package aho.uozu.yakbox;
+
+import static junit.framework.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class RecordingCatalogTest {
+
+    private File mDir;
+    private File mCatalogFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("catalog", null);
+        mDir.delete();
+        mDir.mkdir();
+        mCatalogFile = new File(mDir, "catalog.bin");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void testSortedAndPersisted() {
+        RecordingCatalog catalog = new RecordingCatalog(mCatalogFile);
+        assertTrue(catalog.isStale(1000));
+        catalog.put(entry("moo"), 1000);
+        catalog.put(entry("baa"), 1000);
+        catalog.put(entry("quack"), 1001);
+        catalog.remove("moo", 1002);
+        assertFalse(catalog.isStale(1002));
+
+        RecordingCatalog loaded = new RecordingCatalog(mCatalogFile);
+        assertFalse(loaded.isStale(1002));
+        assertEquals(2, loaded.size());
+        assertEquals("baa", loaded.getNames().get(0));
+        assertEquals("quack", loaded.getNames().get(1));
+        assertFalse(loaded.contains("moo"));
+        RecordingCatalog.Entry e = loaded.get("baa");
+        assertEquals("baa.wav", e.getFileName());
+        assertEquals(100, e.getNumFrames());
+        assertEquals(8000, e.getSampleRate());
+        assertEquals(1234, e.getSizeBytes());
+        assertEquals(5678, e.getLastModified());
+    }
+
+    @Test
+    public void testChangesAreAppended() throws IOException {
+        RecordingCatalog catalog = new RecordingCatalog(mCatalogFile);
+        catalog.put(entry("moo"), 1000);
+        byte[] snapshot = readFile();
+        catalog.put(entry("baa"), 1001);
+        catalog.put(entry("quack"), 1002);
+        catalog.removeAll(Arrays.asList("moo", "quack"), 1003);
+
+        // the snapshot is left alone, and the changes follow it
+        byte[] data = readFile();
+        assertTrue(data.length > snapshot.length);
+        for (int i = 0; i < snapshot.length; i++) {
+            assertEquals(snapshot[i], data[i]);
+        }
+        RecordingCatalog loaded = new RecordingCatalog(mCatalogFile);
+        assertFalse(loaded.isStale(1003));
+        assertEquals(Arrays.asList("baa"), loaded.getNames());
+
+        // many changes are compacted rather than piling up
+        for (int i = 0; i < 1000; i++) {
+            loaded.put(entry("oink"), 2000 + i);
+            loaded.remove("oink", 2000 + i);
+        }
+        assertTrue(mCatalogFile.length() < 4096);
+        loaded = new RecordingCatalog(mCatalogFile);
+        assertFalse(loaded.isStale(2999));
+        assertEquals(Arrays.asList("baa"), loaded.getNames());
+    }
+
+    @Test
+    public void testTornRecordIsDropped() throws IOException {
+        RecordingCatalog catalog = new RecordingCatalog(mCatalogFile);
+        catalog.put(entry("moo"), 1000);
+        catalog.put(entry("baa"), 1001);
+        RandomAccessFile raf = new RandomAccessFile(mCatalogFile, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+
+        RecordingCatalog loaded = new RecordingCatalog(mCatalogFile);
+        assertEquals(Arrays.asList("moo"), loaded.getNames());
+        assertFalse(loaded.isStale(1000));
+
+        // changes after the torn record aren't lost
+        loaded.put(entry("quack"), 1002);
+        loaded = new RecordingCatalog(mCatalogFile);
+        assertEquals(Arrays.asList("moo", "quack"), loaded.getNames());
+    }
+
+    @Test
+    public void testCorruptFileIsIgnored() throws IOException {
+        RecordingCatalog catalog = new RecordingCatalog(mCatalogFile);
+        catalog.put(entry("moo"), 1000);
+        RandomAccessFile raf = new RandomAccessFile(mCatalogFile, "rw");
+        raf.seek(20);
+        raf.write(0x55);
+        raf.close();
+
+        RecordingCatalog loaded = new RecordingCatalog(mCatalogFile);
+        assertEquals(0, loaded.size());
+        assertTrue(loaded.isStale(1000));
+    }
+
+    @Test
+    public void testReconcileReadsOnlyChangedFiles() throws IOException {
+        File a = touch("a.wav");
+        File b = touch("b.wav");
+        final List<String> read = new ArrayList<>();
+        RecordingCatalog.InfoReader reader = new RecordingCatalog.InfoReader() {
+            @Override
+            public RecordingCatalog.Entry read(File f) throws IOException {
+                read.add(f.getName());
+                return new RecordingCatalog.Entry(RecordingCatalog.fileToRecordingName(f),
+                        f.getName(), 1, 8000, f.length(), f.lastModified());
+            }
+        };
+        RecordingCatalog catalog = new RecordingCatalog(mCatalogFile);
+        catalog.put(entry("gone"), 1);
+        catalog.reconcile(new File[] {a, b}, 2, reader);
+        assertEquals(2, read.size());
+        assertEquals(2, catalog.size());
+        assertFalse(catalog.contains("gone"));
+
+        // only the changed file is read again
+        read.clear();
+        FileOutputStream out = new FileOutputStream(b, true);
+        out.write(1);
+        out.close();
+        catalog.reconcile(new File[] {a, b}, 3, reader);
+        assertEquals(1, read.size());
+        assertEquals("b.wav", read.get(0));
+        assertEquals(2, catalog.get("b").getSizeBytes());
+    }
+
+    @Test
+    public void testReconcilePrefersFirstFileName() throws IOException {
+        File wav = touch("a.wav");
+        File lossless = touch("a.ylac");
+        final List<String> read = new ArrayList<>();
+        RecordingCatalog.InfoReader reader = new RecordingCatalog.InfoReader() {
+            @Override
+            public RecordingCatalog.Entry read(File f) throws IOException {
+                read.add(f.getName());
+                return new RecordingCatalog.Entry(RecordingCatalog.fileToRecordingName(f),
+                        f.getName(), 1, 8000, f.length(), f.lastModified());
+            }
+        };
+        RecordingCatalog catalog = new RecordingCatalog(mCatalogFile);
+        catalog.reconcile(new File[] {lossless, wav}, 1, reader);
+        assertEquals(1, catalog.size());
+        assertEquals("a.wav", catalog.get("a").getFileName());
+        assertEquals(Arrays.asList("a.wav"), read);
+
+        // settled: nothing is read again, whatever the listing order
+        read.clear();
+        catalog.reconcile(new File[] {wav, lossless}, 2, reader);
+        catalog.reconcile(new File[] {lossless, wav}, 3, reader);
+        assertEquals(0, read.size());
+        assertEquals("a.wav", catalog.get("a").getFileName());
+    }
+
+    private byte[] readFile() throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(mCatalogFile, "r");
+        try {
+            byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            return data;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private File touch(String name) throws IOException {
+        File f = new File(mDir, name);
+        FileOutputStream out = new FileOutputStream(f);
+        out.write(0);
+        out.close();
+        return f;
+    }
+
+    private static RecordingCatalog.Entry entry(String name) {
+        return new RecordingCatalog.Entry(name, name + ".wav", 100, 8000, 1234, 5678);
+    }
+}
@@ -0,0 +1,126 @@
+package aho.uozu.yakbox;
+
+import static junit.framework.Assert.*;
+
+import org.junit.Test;
+
+import aho.uozu.android.audio.AudioBuffer;
+import aho.uozu.android.audio.ShortRingBuffer;
+
+public class ShortRingBufferTest {
+
+    @Test
+    public void testCapacityRoundsUp() {
+        assertEquals(8, new ShortRingBuffer(5).capacity());
+        assertEquals(8, new ShortRingBuffer(8).capacity());
+    }
+
+    @Test
+    public void testReadersAreIndependent() {
+        ShortRingBuffer ring = new ShortRingBuffer(8);
+        ShortRingBuffer.Reader a = ring.newReader();
+        ring.write(new short[] {1, 2, 3}, 0, 3);
+        ShortRingBuffer.Reader b = ring.newReader(1);
+
+        short[] dst = new short[4];
+        assertEquals(3, a.read(dst, 0, 4));
+        assertEquals(1, dst[0]);
+        assertEquals(3, dst[2]);
+        assertEquals(0, a.read(dst, 0, 4));
+        assertEquals(2, b.available());
+        assertEquals(2, b.read(dst, 0, 4));
+        assertEquals(2, dst[0]);
+    }
+
+    @Test
+    public void testWrapAround() {
+        ShortRingBuffer ring = new ShortRingBuffer(4);
+        ShortRingBuffer.Reader r = ring.newReader();
+        short[] dst = new short[4];
+        ring.write(new short[] {1, 2, 3}, 0, 3);
+        assertEquals(3, r.read(dst, 0, 4));
+        ring.write(new short[] {4, 5, 6}, 0, 3);
+        assertEquals(3, r.read(dst, 0, 4));
+        assertEquals(4, dst[0]);
+        assertEquals(6, dst[2]);
+        assertEquals(0, r.getOverrunCount());
+    }
+
+    @Test
+    public void testOverrun() {
+        ShortRingBuffer ring = new ShortRingBuffer(4);
+        ShortRingBuffer.Reader r = ring.newReader();
+        ring.write(new short[] {1, 2, 3, 4, 5, 6}, 0, 6);
+        short[] dst = new short[8];
+        assertEquals(4, r.read(dst, 0, 8));
+        assertEquals(3, dst[0]);
+        assertEquals(6, dst[3]);
+        assertEquals(1, r.getOverrunCount());
+        assertEquals(2, r.getSamplesLost());
+    }
+
+    @Test
+    public void testLimitAfterOverrun() {
+        ShortRingBuffer ring = new ShortRingBuffer(4);
+        ShortRingBuffer.Reader r = ring.newReader();
+        ring.write(new short[] {1, 2, 3, 4, 5, 6}, 0, 6);
+        // samples 0 and 1 are gone; only 2 remain before the limit
+        r.setLimit(4);
+        short[] dst = new short[8];
+        assertEquals(2, r.read(dst, 0, 8));
+        assertEquals(3, dst[0]);
+        assertEquals(4, dst[1]);
+        assertEquals(0, r.read(dst, 0, 8));
+        assertEquals(0, r.available());
+        assertEquals(2, r.getSamplesLost());
+    }
+
+    @Test
+    public void testReadIntoAudioBuffer() {
+        ShortRingBuffer ring = new ShortRingBuffer(8);
+        ShortRingBuffer.Reader r = ring.newReader();
+        ring.write(new short[] {1, 2, 3}, 0, 3);
+        AudioBuffer buf = new AudioBuffer(2);
+        assertEquals(2, r.read(buf, r.available()));
+        assertTrue(buf.isFull());
+        assertEquals(1, r.available());
+    }
+
+    @Test
+    public void testConcurrentReader() throws Exception {
+        final ShortRingBuffer ring = new ShortRingBuffer(1024);
+        final int total = 1 << 20;
+        final ShortRingBuffer.Reader r = ring.newReader();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                short[] chunk = new short[100];
+                int next = 0;
+                while (next < total) {
+                    int n = Math.min(chunk.length, total - next);
+                    for (int i = 0; i < n; i++) {
+                        chunk[i] = (short) (next + i);
+                    }
+                    ring.write(chunk, 0, n);
+                    next += n;
+                }
+            }
+        });
+        writer.start();
+        short[] dst = new short[256];
+        long pos = 0;
+        while (pos < total) {
+            long before = r.getPos();
+            int n = r.read(dst, 0, dst.length);
+            // skipped samples are overruns, everything read is in order
+            long first = r.getPos() - n;
+            assertTrue(first >= before);
+            for (int i = 0; i < n; i++) {
+                assertEquals((short) (first + i), dst[i]);
+            }
+            pos = r.getPos();
+        }
+        writer.join();
+        assertEquals(total, r.getPos());
+    }
+}
@@ -0,0 +1,230 @@
+package aho.uozu.yakbox;
+
+import static junit.framework.Assert.*;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import aho.uozu.android.audio.AudioBuffer;
+import aho.uozu.android.audio.AudioRecorder;
+import aho.uozu.android.audio.Pacing;
+import aho.uozu.android.audio.SegmentPool;
+import aho.uozu.android.audio.SignalSource;
+import aho.uozu.android.audio.TakeJournal;
+
+/**
+ * Storage tests that only need the app's private files directory, which
+ * is a temporary directory here.
+ */
+public class StorageTest {
+
+    private static final int TIMEOUT_MS = 5000;
+    private static final int BUFFER_SIZE = 1000;
+
+    private File mDir;
+    private Context mContext;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("storage", null);
+        mDir.delete();
+        mDir.mkdir();
+        mContext = new TestContext(mDir);
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void testSaveBufferInBackground() throws Exception {
+        Storage storage = new Storage(mContext);
+        AudioBuffer buf = new AudioBuffer(BUFFER_SIZE, new SegmentPool(64, 4));
+        buf.write(ramp(500), 500);
+        final CountDownLatch saved = new CountDownLatch(1);
+        final boolean[] success = new boolean[1];
+        storage.saveBuffer(buf, new Storage.OnBufferSavedListener() {
+            @Override
+            public void onBufferSaved(boolean ok) {
+                success[0] = ok;
+                saved.countDown();
+            }
+        });
+        // the snapshot is independent of the buffer
+        buf.resetIdx();
+        buf.write(new short[] {7}, 1);
+
+        AudioBuffer loaded = new AudioBuffer(BUFFER_SIZE);
+        storage.loadBuffer(loaded);
+        assertEquals(500, loaded.getIdx());
+        assertEquals(499, loaded.getBuffer()[499]);
+
+        assertTrue(saved.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(success[0]);
+        AudioBuffer fromFile = AudioBuffer.allocateDirect(BUFFER_SIZE);
+        new Storage(mContext).loadBuffer(fromFile);
+        assertEquals(500, fromFile.getIdx());
+    }
+
+    @Test
+    public void testLatestSaveWins() throws Exception {
+        Storage storage = new Storage(mContext);
+        AudioBuffer buf = new AudioBuffer(BUFFER_SIZE);
+        final CountDownLatch saved = new CountDownLatch(10);
+        for (int i = 1; i <= 10; i++) {
+            buf.write(ramp(10), 10);
+            storage.saveBuffer(buf, new Storage.OnBufferSavedListener() {
+                @Override
+                public void onBufferSaved(boolean ok) {
+                    saved.countDown();
+                }
+            });
+        }
+        assertTrue(saved.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        AudioBuffer fromFile = new AudioBuffer(BUFFER_SIZE);
+        new Storage(mContext).loadBuffer(fromFile);
+        assertEquals(100, fromFile.getIdx());
+        assertEquals(9, fromFile.getBuffer()[99]);
+    }
+
+    @Test
+    public void testCatalogTracksRecordings() throws Exception {
+        Storage storage = new Storage(mContext);
+        AudioBuffer buf = new AudioBuffer(BUFFER_SIZE);
+        buf.write(ramp(500), 500);
+        storage.saveRecording(buf, "moo", 8000);
+        storage.saveLosslessRecording(buf, "baa", 8000);
+        assertEquals(2, storage.getSavedRecordingNames().size());
+        assertEquals("baa", storage.getSavedRecordingNames().get(0));
+        assertTrue(storage.exists("moo"));
+        assertEquals(500, storage.getCatalogEntry("baa").getNumFrames());
+
+        assertTrue(storage.deleteRecording("moo"));
+        assertFalse(storage.exists("moo"));
+
+        // a file added behind Storage's back is found once the directory changes
+        storage.saveRecording(buf, "quack", 8000);
+        new File(mDir, "quack.wav").renameTo(new File(mDir, "oink.wav"));
+        mDir.setLastModified(mDir.lastModified() + 2000);
+        assertTrue(storage.exists("oink"));
+        assertFalse(storage.exists("quack"));
+        assertEquals(8000, storage.getCatalogEntry("oink").getSampleRate());
+
+        // persisted for the next start
+        assertEquals(2, new Storage(mContext).getSavedRecordingNames().size());
+    }
+
+    @Test
+    public void testDeleteRecordingsRemovesEveryFormat() throws Exception {
+        Storage storage = new Storage(mContext);
+        AudioBuffer buf = new AudioBuffer(BUFFER_SIZE);
+        buf.write(ramp(500), 500);
+        storage.saveRecording(buf, "moo", 8000);
+        // "baa" saved in both formats, as left by an older version
+        storage.saveLosslessRecording(buf, "baa", 8000);
+        File lossless = new File(mDir, "baa.ylac");
+        File aside = new File(mDir, "baa.aside");
+        assertTrue(lossless.renameTo(aside));
+        storage.saveRecording(buf, "baa", 8000);
+        assertTrue(aside.renameTo(lossless));
+
+        List<String> deleted = storage.deleteRecordings(Arrays.asList("moo", "baa", "nope"));
+        assertEquals(Arrays.asList("moo", "baa"), deleted);
+        assertFalse(lossless.exists());
+        assertFalse(new File(mDir, "baa.wav").exists());
+        assertEquals(0, storage.getSavedRecordingNames().size());
+        assertEquals(0, new Storage(mContext).getSavedRecordingNames().size());
+    }
+
+    @Test
+    public void testRecoverJournalAtAnotherRate() throws Exception {
+        // a take at 16 kHz, cut short
+        File f = new File(mDir, "live.journal");
+        AudioRecorder recorder = new AudioRecorder(new SignalSource(16000, 440, (short) 10000,
+                Pacing.REAL_TIME, 8000), 1);
+        TakeJournal journal = new TakeJournal(f, 16000, 1000, 4);
+        recorder.setJournal(journal);
+        recorder.startRecording();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (journal.getBlocksWritten() < 4 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        File crashed = new File(mDir, Storage.JOURNAL_FILENAME);
+        Files.copy(f.toPath(), crashed.toPath());
+        recorder.release();
+        AudioBuffer take = new AudioBuffer(16000);
+        TakeJournal.recover(crashed, take);
+        assertTrue(take.getIdx() >= 4000);
+
+        Storage storage = new Storage(mContext);
+        AudioBuffer buf = new AudioBuffer(BUFFER_SIZE * 8);
+        buf.write(ramp(10), 10);
+        assertTrue(storage.recoverJournal(buf, 8000));
+        assertEquals(take.getIdx() / 2, buf.getIdx(), 2);
+        assertFalse(crashed.exists());
+
+        // the journal of a take that ended is empty
+        assertTrue(crashed.createNewFile());
+        assertFalse(storage.recoverJournal(buf, 8000));
+        assertEquals(take.getIdx() / 2, buf.getIdx(), 2);
+        assertFalse(crashed.exists());
+    }
+
+    private static short[] ramp(int len) {
+        short[] samples = new short[len];
+        for (int i = 0; i < len; i++) {
+            samples[i] = (short) i;
+        }
+        return samples;
+    }
+
+    /** Puts every directory Storage uses in one temporary directory */
+    private static class TestContext extends ContextWrapper {
+        private final File mDir;
+
+        TestContext(File dir) {
+            super(null);
+            mDir = dir;
+        }
+
+        @Override
+        public File getFilesDir() {
+            return mDir;
+        }
+
+        @Override
+        public File getExternalFilesDir(String type) {
+            return mDir;
+        }
+
+        @Override
+        public File getCacheDir() {
+            return mDir;
+        }
+
+        @Override
+        public Context getApplicationContext() {
+            return this;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package aho.uozu.audio.dsp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Speed change rendering rate of Resampler for each quality level. Each
+ * benchmark call renders 2^20 input frames (about 24 seconds at 44.1 kHz)
+ * in 4096 frame blocks, so the reported ops/s multiplied by 24 is the
+ * speed relative to real time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResamplerBenchmark {
+
+    private static final int NUM_FRAMES = 1 << 20;
+    private static final int BLOCK_LEN = 4096;
+    private static final int SAMPLE_RATE = 44100;
+
+    @Param({"LOW", "MEDIUM", "HIGH"})
+    public Resampler.Quality quality;
+
+    /** Playback speed being rendered */
+    @Param({"0.5", "1.5", "3.0"})
+    public double speed;
+
+    private Resampler resampler;
+    private short[] audio;
+    private short[] block;
+
+    @Setup
+    public void setup() {
+        resampler = new Resampler(SAMPLE_RATE * speed, SAMPLE_RATE, quality);
+        audio = new short[NUM_FRAMES];
+        Random random = new Random(0);
+        for (int i = 0; i < audio.length; i++) {
+            audio[i] = (short) random.nextInt();
+        }
+        block = new short[resampler.getMaxOutputLength(BLOCK_LEN)];
+    }
+
+    @Benchmark
+    public int render() {
+        int total = 0;
+        for (int i = 0; i < audio.length; i += BLOCK_LEN) {
+            total += resampler.process(audio, i, BLOCK_LEN, block, 0);
+        }
+        return total + resampler.flush(block, 0);
+    }
+}
@@ -0,0 +1,88 @@
+package aho.uozu.audio.lossless;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode and decode rate of lossless recordings, on one thread and spread
+ * over a thread pool. Each benchmark call codes 2^20 frames of mono
+ * audio, so the reported ops/s is millions of frames per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LosslessCodecBenchmark {
+
+    private static final int NUM_FRAMES = 1 << 20;
+
+    /** Size of the thread pool, or 0 to code on the calling thread */
+    @Param({"0", "4"})
+    public int threads;
+
+    private ExecutorService executor;
+    private File encodeFile;
+    private File decodeFile;
+    private short[] audio;
+    private short[] decoded;
+
+    @Setup
+    public void setup() throws IOException {
+        executor = threads > 0 ? Executors.newFixedThreadPool(threads) : null;
+        audio = new short[NUM_FRAMES];
+        Random random = new Random(0);
+        for (int i = 0; i < audio.length; i++) {
+            audio[i] = (short) (12000 * Math.sin(2 * Math.PI * 440 * i / 44100.0)
+                    + random.nextInt(256) - 128);
+        }
+        decoded = new short[NUM_FRAMES];
+        encodeFile = File.createTempFile("lossless-bench", LosslessFormat.EXTENSION);
+        decodeFile = File.createTempFile("lossless-bench", LosslessFormat.EXTENSION);
+        LosslessWriter writer = new LosslessWriter(decodeFile.getPath(), 44100);
+        writer.writeFrames(audio, 0, audio.length);
+        writer.close();
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (executor != null)
+            executor.shutdown();
+        encodeFile.delete();
+        decodeFile.delete();
+    }
+
+    @Benchmark
+    public int encode() throws IOException {
+        LosslessWriter writer = new LosslessWriter(encodeFile.getPath(), 44100, executor);
+        writer.writeFrames(audio, 0, audio.length);
+        writer.close();
+        return writer.getNumFrames();
+    }
+
+    @Benchmark
+    public int decode() throws IOException {
+        LosslessReader reader = new LosslessReader(decodeFile.getPath());
+        int numFrames = reader.read(0, decoded, 0, decoded.length, executor);
+        reader.close();
+        return numFrames;
+    }
+}
@@ -0,0 +1,74 @@
+package aho.uozu.audio.wav;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load rate of a saved recording stored as IMA ADPCM, compared with the
+ * same recording stored as 16 bit PCM. Each benchmark call reads a file
+ * containing one mebi-frame (2^20 frames) of mono audio, so the reported
+ * ops/s is millions of frames per second for both formats.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AdpcmDecodeBenchmark {
+
+    private static final int NUM_FRAMES = 1 << 20;
+    private static final int READ_BLOCK_FRAMES = 4096;
+
+    @Param({"PCM", "IMA_ADPCM"})
+    public Format format;
+
+    private File file;
+    private short[] block;
+
+    @Setup
+    public void setup() throws IOException {
+        int sampleRate = 44100;
+        short[] audio = new short[NUM_FRAMES];
+        for (int i = 0; i < audio.length; i++) {
+            audio[i] = (short) (16000 * Math.sin(2 * Math.PI * 440 * i / sampleRate));
+        }
+        file = File.createTempFile("adpcm-bench", ".wav");
+        WaveFileWriter writer = new WaveFileWriter(file.getPath(), sampleRate, 1, format);
+        writer.writeFrames(audio, 0, audio.length);
+        writer.close();
+
+        block = new short[READ_BLOCK_FRAMES];
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public int readWholeFile() throws IOException {
+        WaveFileReader reader = new WaveFileReader(file.getPath());
+        int total = 0;
+        int result;
+        while ((result = reader.readFrames(block, 0, block.length)) > 0) {
+            total += result;
+        }
+        reader.close();
+        return total;
+    }
+}
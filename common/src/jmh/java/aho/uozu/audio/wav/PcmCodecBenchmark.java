@@ -0,0 +1,111 @@
+package aho.uozu.audio.wav;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the PcmCodec conversions. Each benchmark call converts
+ * one megabyte of encoded audio, so the reported ops/s is MB/s.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PcmCodecBenchmark {
+
+    private static final int BUFFER_BYTES = 1 << 20;
+
+    /** 'int8', 'int16', 'int24', 'int32' or 'float32' */
+    @Param({"int8", "int16", "int24", "int32", "float32"})
+    public String encoding;
+
+    @Param({"heap", "direct"})
+    public String bufferType;
+
+    private Format format;
+    private int bitDepth;
+    private int numSamples;
+    private ByteBuffer bytes;
+    private short[] shorts;
+    private float[] floats;
+
+    @Setup
+    public void setup() {
+        format = encoding.startsWith("float") ? Format.IEEE_FLOAT : Format.PCM;
+        bitDepth = Integer.parseInt(encoding.replaceAll("[^0-9]", ""));
+        numSamples = BUFFER_BYTES / (bitDepth / 8);
+
+        bytes = bufferType.equals("direct")
+                ? ByteBuffer.allocateDirect(numSamples * bitDepth / 8)
+                : ByteBuffer.allocate(numSamples * bitDepth / 8);
+        shorts = new short[numSamples];
+        floats = new float[numSamples];
+
+        Random random = new Random(0);
+        for (int i = 0; i < numSamples; i++) {
+            shorts[i] = (short) random.nextInt();
+            floats[i] = shorts[i] / 32768f;
+        }
+        PcmCodec.fromShorts(shorts, 0, numSamples, bytes, format, bitDepth);
+        bytes.flip();
+    }
+
+    @Benchmark
+    public short[] bytesToShorts() {
+        bytes.rewind();
+        PcmCodec.toShorts(bytes, format, bitDepth, shorts, 0, numSamples);
+        return shorts;
+    }
+
+    @Benchmark
+    public float[] bytesToFloats() {
+        bytes.rewind();
+        PcmCodec.toFloats(bytes, format, bitDepth, floats, 0, numSamples);
+        return floats;
+    }
+
+    @Benchmark
+    public ByteBuffer shortsToBytes() {
+        bytes.clear();
+        PcmCodec.fromShorts(shorts, 0, numSamples, bytes, format, bitDepth);
+        return bytes;
+    }
+
+    @Benchmark
+    public ByteBuffer floatsToBytes() {
+        bytes.clear();
+        PcmCodec.fromFloats(floats, 0, numSamples, bytes, format, bitDepth);
+        return bytes;
+    }
+
+    /**
+     * The per-sample getShort() loop previously used by WaveFile, for
+     * comparison with {@link #bytesToShorts()}. Only meaningful for int16.
+     */
+    @Benchmark
+    public short[] bytesToShortsPerSample() {
+        bytes.rewind();
+        bytes.order(ByteOrder.LITTLE_ENDIAN);
+        int n = Math.min(bytes.remaining() / 2, shorts.length);
+        for (int i = 0; i < n; i++) {
+            shorts[i] = bytes.getShort();
+        }
+        return shorts;
+    }
+}
@@ -0,0 +1,96 @@
+package aho.uozu.audio.wav;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decode rate of WaveFileReader, converting files of various formats to
+ * 16 bit mono. Each benchmark call reads a file containing one megabyte
+ * of audio data, so the reported ops/s is MB/s of input.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WaveFileReaderBenchmark {
+
+    private static final int DATA_BYTES = 1 << 20;
+    private static final int READ_BLOCK_FRAMES = 4096;
+
+    /** 'int8', 'int16', 'int24', 'int32' or 'float32' */
+    @Param({"int16", "int24", "float32"})
+    public String encoding;
+
+    @Param({"1", "2"})
+    public int channels;
+
+    private File file;
+    private short[] block;
+
+    @Setup
+    public void setup() throws IOException {
+        Format format = encoding.startsWith("float") ? Format.IEEE_FLOAT : Format.PCM;
+        int bitDepth = Integer.parseInt(encoding.replaceAll("[^0-9]", ""));
+        int numSamples = DATA_BYTES / (bitDepth / 8);
+
+        ByteBuffer header = new WaveFileHeader.Builder()
+                .format(format)
+                .channels(channels)
+                .sampleRate(44100)
+                .bitDepth(bitDepth)
+                .dataSize(DATA_BYTES)
+                .build()
+                .asByteBuffer();
+        short[] samples = new short[numSamples];
+        Random random = new Random(0);
+        for (int i = 0; i < numSamples; i++) {
+            samples[i] = (short) random.nextInt();
+        }
+        ByteBuffer data = ByteBuffer.allocate(DATA_BYTES);
+        PcmCodec.fromShorts(samples, 0, numSamples, data, format, bitDepth);
+        data.flip();
+
+        file = File.createTempFile("reader-bench", ".wav");
+        FileOutputStream os = new FileOutputStream(file);
+        os.getChannel().write(new ByteBuffer[] { header, data });
+        os.close();
+
+        block = new short[READ_BLOCK_FRAMES];
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public int readWholeFile() throws IOException {
+        WaveFileReader reader = new WaveFileReader(file.getPath());
+        int total = 0;
+        int result;
+        while ((result = reader.readFrames(block, 0, block.length)) > 0) {
+            total += result;
+        }
+        reader.close();
+        return total;
+    }
+}
@@ -0,0 +1,258 @@
+package aho.uozu.audio.dsp;
+
+import java.util.Arrays;
+
+/**
+ * Block-based polyphase sample rate converter for 16 bit mono audio.
+ *
+ * Output samples are interpolated from the input with a Kaiser windowed
+ * sinc filter. The filter is precomputed when the resampler is created,
+ * as a table of {@link Quality#phases} sub-filters ('phases') spaced evenly
+ * between two input samples; each output sample is filtered with the two
+ * phases either side of its position, and the results blended linearly.
+ * When converting to a lower rate the filter cutoff is lowered to match,
+ * so content above the new Nyquist frequency is removed rather than
+ * aliased.
+ *
+ * Audio can be passed through in blocks of any size: the resampler keeps
+ * as much input history as the filter needs between calls. Call
+ * {@link #flush(short[], int)} after the last block to get the final
+ * output samples. Nothing is allocated after construction.
+ *
+ * Not thread safe.
+ */
+public class Resampler {
+
+    public enum Quality {
+        LOW(8, 64, 5.0, 0.80),
+        MEDIUM(16, 256, 7.0, 0.90),
+        HIGH(32, 512, 9.0, 0.95);
+
+        /** Filter length in input samples, when not lowering the rate */
+        final int taps;
+        /** Number of precomputed sub-filters between two input samples */
+        final int phases;
+        /** Kaiser window shape. Higher gives more stopband attenuation. */
+        final double beta;
+        /** Filter cutoff as a fraction of the Nyquist frequency */
+        final double bandwidth;
+
+        Quality(int taps, int phases, double beta, double bandwidth) {
+            this.taps = taps;
+            this.phases = phases;
+            this.beta = beta;
+            this.bandwidth = bandwidth;
+        }
+    }
+
+    /** Input samples handled per pass through the history buffer */
+    private static final int BLOCK_LEN = 1024;
+    private static final int FRAC_BITS = 32;
+    private static final long FRAC_ONE = 1L << FRAC_BITS;
+    private static final long FRAC_MASK = FRAC_ONE - 1;
+
+    private final int taps;
+    private final int phases;
+    /** phases + 1 rows of taps coefficients */
+    private final float[] table;
+    /** Input samples advanced per output sample, in 32.32 fixed point */
+    private final long step;
+
+    /** Buffered input, including the history needed by the filter */
+    private final float[] history;
+    private int historyLen;
+    /** Position of the next output sample in history, in 32.32 fixed point */
+    private long pos;
+
+    /**
+     * Create a resampler.
+     *
+     * @param inputRate sample rate of the input. To render audio played
+     *                  at a different speed, pass the original rate
+     *                  multiplied by the speed.
+     * @param outputRate sample rate of the output
+     * @param quality filter quality. Higher quality costs more time
+     *                per output sample.
+     * @throws IllegalArgumentException if either rate isn't positive
+     */
+    public Resampler(double inputRate, double outputRate, Quality quality) {
+        if (!(inputRate > 0) || !(outputRate > 0))
+            throw new IllegalArgumentException("Bad rates: " + inputRate + " -> " + outputRate);
+        double ratio = inputRate / outputRate;
+        step = Math.round(ratio * FRAC_ONE);
+
+        // widen the filter when lowering the rate, to keep the same
+        // transition band relative to the output rate
+        double cutoff = quality.bandwidth / Math.max(1.0, ratio);
+        int t = (int) Math.ceil(quality.taps * Math.max(1.0, ratio));
+        taps = t + (t & 1);
+        phases = quality.phases;
+        table = buildTable(taps, phases, cutoff, quality.beta);
+
+        history = new float[taps + BLOCK_LEN];
+        reset();
+    }
+
+    /** Clear all buffered input, ready for a new clip */
+    public void reset() {
+        // centre the first output on the first input sample
+        historyLen = taps / 2 - 1;
+        Arrays.fill(history, 0, historyLen, 0f);
+        pos = (long) historyLen << FRAC_BITS;
+    }
+
+    /**
+     * Get the maximum number of samples a single call to
+     * {@link #process(short[], int, int, short[], int)} or
+     * {@link #flush(short[], int)} can produce for the given input length.
+     */
+    public int getMaxOutputLength(int inputLen) {
+        return (int) ((((long) inputLen + taps) << FRAC_BITS) / step) + 2;
+    }
+
+    /**
+     * Resample a block of input.
+     *
+     * @param src input samples
+     * @param off index in src of the first sample
+     * @param len number of samples. All are consumed.
+     * @param dst buffer for output samples, with room for at least
+     *            {@link #getMaxOutputLength(int)} samples after dstOff
+     * @param dstOff index in dst of the first output sample
+     * @return number of samples written to dst
+     */
+    public int process(short[] src, int off, int len, short[] dst, int dstOff) {
+        if (off < 0 || len < 0 || off + len > src.length)
+            throw new IndexOutOfBoundsException();
+        int produced = 0;
+        int consumed = 0;
+        while (consumed < len) {
+            int n = Math.min(len - consumed, history.length - historyLen);
+            for (int i = 0; i < n; i++) {
+                history[historyLen + i] = src[off + consumed + i];
+            }
+            historyLen += n;
+            consumed += n;
+            produced += render(dst, dstOff + produced, historyLen - taps / 2);
+            discardUsedHistory();
+        }
+        return produced;
+    }
+
+    /**
+     * Produce the output for the end of the input, and reset ready for a
+     * new clip.
+     *
+     * @param dst buffer for output samples, with room for at least
+     *            {@code getMaxOutputLength(0)} samples after dstOff
+     * @param dstOff index in dst of the first output sample
+     * @return number of samples written to dst
+     */
+    public int flush(short[] dst, int dstOff) {
+        int end = historyLen;
+        // pad with silence so the filter can reach the last input sample
+        int pad = taps / 2;
+        Arrays.fill(history, historyLen, historyLen + pad, 0f);
+        historyLen += pad;
+        int produced = render(dst, dstOff, end);
+        reset();
+        return produced;
+    }
+
+    /**
+     * Produce output samples while their positions are before the given
+     * history index.
+     */
+    private int render(short[] dst, int dstOff, int endIdx) {
+        long end = (long) endIdx << FRAC_BITS;
+        int half = taps / 2 - 1;
+        int produced = 0;
+        while (pos < end) {
+            int base = (int) (pos >>> FRAC_BITS) - half;
+            // phase index and blend factor
+            long phasePos = (pos & FRAC_MASK) * phases;
+            int phase = (int) (phasePos >>> FRAC_BITS);
+            float blend = (phasePos & FRAC_MASK) * (1f / FRAC_ONE);
+
+            int row0 = phase * taps;
+            int row1 = row0 + taps;
+            float a = 0;
+            float b = 0;
+            for (int j = 0; j < taps; j++) {
+                float x = history[base + j];
+                a += x * table[row0 + j];
+                b += x * table[row1 + j];
+            }
+            float y = a + blend * (b - a);
+            dst[dstOff + produced++] = clip(y);
+            pos += step;
+        }
+        return produced;
+    }
+
+    /** Move the history still needed by the filter to the start of the buffer */
+    private void discardUsedHistory() {
+        int first = Math.min((int) (pos >>> FRAC_BITS) - (taps / 2 - 1), historyLen);
+        if (first <= 0)
+            return;
+        System.arraycopy(history, first, history, 0, historyLen - first);
+        historyLen -= first;
+        pos -= (long) first << FRAC_BITS;
+    }
+
+    private static short clip(float y) {
+        int s = Math.round(y);
+        if (s > Short.MAX_VALUE)
+            return Short.MAX_VALUE;
+        if (s < Short.MIN_VALUE)
+            return Short.MIN_VALUE;
+        return (short) s;
+    }
+
+    /**
+     * Build the filter table. Row p holds the filter for an output
+     * sample p / phases of the way from one input sample to the next,
+     * normalised to unity gain at DC.
+     */
+    private static float[] buildTable(int taps, int phases, double cutoff, double beta) {
+        float[] table = new float[(phases + 1) * taps];
+        int half = taps / 2;
+        double i0Beta = besselI0(beta);
+        for (int p = 0; p <= phases; p++) {
+            double frac = (double) p / phases;
+            double sum = 0;
+            for (int j = 0; j < taps; j++) {
+                // distance from the output position to input sample j
+                double d = frac + (half - 1) - j;
+                double x = d / half;
+                double w = Math.abs(x) >= 1 ? 0 : besselI0(beta * Math.sqrt(1 - x * x)) / i0Beta;
+                double h = cutoff * sinc(cutoff * d) * w;
+                table[p * taps + j] = (float) h;
+                sum += h;
+            }
+            for (int j = 0; j < taps; j++) {
+                table[p * taps + j] /= sum;
+            }
+        }
+        return table;
+    }
+
+    private static double sinc(double x) {
+        if (x == 0)
+            return 1;
+        return Math.sin(Math.PI * x) / (Math.PI * x);
+    }
+
+    /** Zeroth order modified Bessel function of the first kind */
+    private static double besselI0(double x) {
+        double sum = 1;
+        double term = 1;
+        for (int k = 1; k < 50; k++) {
+            term *= (x / (2 * k)) * (x / (2 * k));
+            sum += term;
+            if (term < sum * 1e-12)
+                break;
+        }
+        return sum;
+    }
+}
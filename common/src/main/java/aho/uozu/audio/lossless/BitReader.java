@@ -0,0 +1,81 @@
+package aho.uozu.audio.lossless;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a most-significant-bit-first bit stream from a byte buffer.
+ * Only absolute gets are used, so several readers can share one buffer
+ * across threads.
+ */
+class BitReader {
+
+    private final ByteBuffer buf;
+    private int pos;
+    private final int end;
+    /** Unread bits, in the low cacheBits bits */
+    private long cache;
+    private int cacheBits;
+
+    /**
+     * @param buf buffer to read
+     * @param start index in buf of the first byte to read
+     * @param end index in buf after the last byte that may be read
+     */
+    BitReader(ByteBuffer buf, int start, int end) {
+        this.buf = buf;
+        this.pos = start;
+        this.end = end;
+    }
+
+    /** Read n bits as an unsigned value, where n is in [0, 32] */
+    int readBits(int n) throws IOException {
+        if (n == 0)
+            return 0;
+        while (cacheBits < n) {
+            cache = (cache << 8) | nextByte();
+            cacheBits += 8;
+        }
+        cacheBits -= n;
+        return (int) ((cache >>> cacheBits) & (0xffffffffL >>> (32 - n)));
+    }
+
+    /** Read an n bit two's complement value */
+    int readSigned(int n) throws IOException {
+        return readBits(n) << (32 - n) >> (32 - n);
+    }
+
+    /** Read a run of zero bits terminated by a one bit */
+    int readUnary() throws IOException {
+        // after any read, fewer than 8 bits are cached
+        int q = 0;
+        while (true) {
+            if (cacheBits == 0) {
+                cache = nextByte();
+                cacheBits = 8;
+            }
+            int avail = (int) (cache & ((1L << cacheBits) - 1));
+            if (avail == 0) {
+                q += cacheBits;
+                cacheBits = 0;
+            }
+            else {
+                int zeros = Integer.numberOfLeadingZeros(avail) - (32 - cacheBits);
+                cacheBits -= zeros + 1;
+                return q + zeros;
+            }
+        }
+    }
+
+    /** Read a Rice coded signed value with parameter k */
+    int readRice(int k) throws IOException {
+        int u = (readUnary() << k) | readBits(k);
+        return (u >>> 1) ^ -(u & 1);
+    }
+
+    private int nextByte() throws IOException {
+        if (pos >= end)
+            throw new IOException("Unexpected end of block");
+        return buf.get(pos++) & 0xff;
+    }
+}
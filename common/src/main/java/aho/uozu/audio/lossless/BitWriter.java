@@ -0,0 +1,83 @@
+package aho.uozu.audio.lossless;
+
+import java.util.Arrays;
+
+/**
+ * Writes a most-significant-bit-first bit stream to a growable byte array.
+ * The array is kept between blocks, so once it has grown to the size of
+ * the largest block nothing more is allocated.
+ */
+class BitWriter {
+
+    private byte[] buf;
+    private int len;
+    /** Bits not yet written to buf, in the low cacheBits bits */
+    private long cache;
+    private int cacheBits;
+
+    BitWriter(int initialCapacity) {
+        buf = new byte[Math.max(initialCapacity, 16)];
+    }
+
+    /** Discard everything written so far */
+    void reset() {
+        len = 0;
+        cache = 0;
+        cacheBits = 0;
+    }
+
+    /** Write the low n bits of value, where n is in [0, 32] */
+    void writeBits(int value, int n) {
+        if (n == 0)
+            return;
+        cache = (cache << n) | (value & (0xffffffffL >>> (32 - n)));
+        cacheBits += n;
+        while (cacheBits >= 8) {
+            cacheBits -= 8;
+            put((byte) (cache >>> cacheBits));
+        }
+    }
+
+    /** Write a two's complement value in n bits */
+    void writeSigned(int value, int n) {
+        writeBits(value, n);
+    }
+
+    /** Write q zero bits followed by a one bit */
+    void writeUnary(int q) {
+        while (q >= 32) {
+            writeBits(0, 32);
+            q -= 32;
+        }
+        writeBits(1, q + 1);
+    }
+
+    /** Write a signed value as a Rice code with parameter k */
+    void writeRice(int value, int k) {
+        int u = (value << 1) ^ (value >> 31);
+        writeUnary(u >>> k);
+        writeBits(u, k);
+    }
+
+    /** Pad with zero bits to the next byte boundary */
+    void alignToByte() {
+        if (cacheBits > 0)
+            writeBits(0, 8 - cacheBits);
+    }
+
+    /** Number of whole bytes written. Call {@link #alignToByte()} first. */
+    int length() {
+        return len;
+    }
+
+    /** The backing array. Only the first {@link #length()} bytes are valid. */
+    byte[] array() {
+        return buf;
+    }
+
+    private void put(byte b) {
+        if (len == buf.length)
+            buf = Arrays.copyOf(buf, buf.length * 2);
+        buf[len++] = b;
+    }
+}
@@ -0,0 +1,80 @@
+package aho.uozu.audio.lossless;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static aho.uozu.audio.lossless.LosslessFormat.*;
+
+/**
+ * Decodes blocks written by {@link BlockEncoder}. Samples are rebuilt
+ * straight into the destination array, so decoding allocates nothing
+ * beyond a small coefficient array, and several blocks can be decoded
+ * at once on different threads.
+ */
+final class BlockDecoder {
+
+    private BlockDecoder() {}
+
+    /**
+     * Decode a block of n samples into dst.
+     *
+     * @throws IOException if the block is corrupt
+     */
+    static void decode(BitReader in, short[] dst, int off, int n) throws IOException {
+        int type = in.readBits(2);
+        switch (type) {
+            case BLOCK_CONSTANT:
+                Arrays.fill(dst, off, off + n, (short) in.readSigned(16));
+                return;
+            case BLOCK_VERBATIM:
+                for (int i = 0; i < n; i++) {
+                    dst[off + i] = (short) in.readSigned(16);
+                }
+                return;
+            case BLOCK_FIXED: {
+                int order = in.readBits(3);
+                if (order > MAX_FIXED_ORDER)
+                    throw new IOException("Bad fixed predictor order: " + order);
+                decodePredicted(in, dst, off, n, BlockEncoder.FIXED_COEFS[order], order, 0);
+                return;
+            }
+            default: {
+                int order = in.readBits(4) + 1;
+                int shift = in.readBits(4);
+                int[] coefs = new int[order];
+                for (int j = 0; j < order; j++) {
+                    coefs[j] = in.readSigned(LPC_PRECISION);
+                }
+                decodePredicted(in, dst, off, n, coefs, order, shift);
+            }
+        }
+    }
+
+    private static void decodePredicted(BitReader in, short[] dst, int off, int n,
+                                        int[] coefs, int order, int shift) throws IOException {
+        if (order >= n)
+            throw new IOException("Predictor order " + order + " too high for block of " + n);
+        for (int i = 0; i < order; i++) {
+            dst[off + i] = (short) in.readSigned(16);
+        }
+
+        int partitionOrder = in.readBits(4);
+        int partitionLen = n >> partitionOrder;
+        if (partitionOrder > MAX_PARTITION_ORDER || n % (1 << partitionOrder) != 0
+                || partitionLen <= order)
+            throw new IOException("Bad partition order: " + partitionOrder);
+
+        for (int p = 0; p < (1 << partitionOrder); p++) {
+            int k = in.readBits(5);
+            int start = off + (p == 0 ? order : p * partitionLen);
+            int end = off + (p + 1) * partitionLen;
+            for (int i = start; i < end; i++) {
+                long sum = 0;
+                for (int j = 0; j < order; j++) {
+                    sum += (long) coefs[j] * dst[i - 1 - j];
+                }
+                dst[i] = (short) ((int) (sum >> shift) + in.readRice(k));
+            }
+        }
+    }
+}
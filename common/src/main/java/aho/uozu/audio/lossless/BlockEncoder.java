@@ -0,0 +1,325 @@
+package aho.uozu.audio.lossless;
+
+import static aho.uozu.audio.lossless.LosslessFormat.*;
+
+/**
+ * Encodes blocks of 16 bit samples. Each block is coded with whichever
+ * predictor gives the smallest output: a constant, one of the fixed
+ * polynomial predictors, or a linear predictor fitted to the block. The
+ * prediction residuals are Rice coded, split into partitions that each
+ * get their own Rice parameter.
+ *
+ * <pre>
+ * bits        value
+ * 2           block type
+ * constant:   16 bit sample value
+ * verbatim:   16 bits per sample
+ * fixed:      3 bit order, warm-up samples, residual
+ * lpc:        4 bit order - 1, 4 bit shift, 12 bit coefficients,
+ *             warm-up samples, residual
+ * residual:   4 bit partition order, then for each partition a 5 bit
+ *             Rice parameter followed by the partition's residuals
+ * </pre>
+ *
+ * Warm-up samples are the first 'order' samples of the block, stored
+ * verbatim. Blocks are padded to a whole number of bytes.
+ *
+ * Not thread safe: scratch buffers are reused between blocks, so use
+ * one encoder per thread.
+ */
+class BlockEncoder {
+
+    /** Fixed polynomial predictors, as coefficients with no shift */
+    static final int[][] FIXED_COEFS = {
+            {},
+            {1},
+            {2, -1},
+            {3, -3, 1},
+            {4, -6, 4, -1}
+    };
+
+    private final int[] residual;
+    private final double[] window;
+    private int windowLen = -1;
+    private final double[] autoc = new double[MAX_LPC_ORDER + 1];
+    private final double[] lpc = new double[MAX_LPC_ORDER];
+    /** Unquantized coefficients for each order, from the last LPC analysis */
+    private final double[][] lpCoefs = new double[MAX_LPC_ORDER][MAX_LPC_ORDER];
+    private final int[] qlp = new int[MAX_LPC_ORDER];
+    private final int[] bestQlp = new int[MAX_LPC_ORDER];
+    private final long[] partitionSums = new long[1 << MAX_PARTITION_ORDER];
+    /** Partition order chosen by the last call to residualBits */
+    private int partitionOrder;
+
+    /** @param maxBlockSize the largest block that will be encoded */
+    BlockEncoder(int maxBlockSize) {
+        residual = new int[maxBlockSize];
+        window = new double[maxBlockSize];
+    }
+
+    /**
+     * Encode n samples starting at src[off], appending the block to out.
+     */
+    void encode(short[] src, int off, int n, BitWriter out) {
+        if (isConstant(src, off, n)) {
+            out.writeBits(BLOCK_CONSTANT, 2);
+            out.writeSigned(src[off], 16);
+            out.alignToByte();
+            return;
+        }
+
+        long bestBits = 16L * n;
+        int bestType = BLOCK_VERBATIM;
+        int bestOrder = 0;
+        int bestShift = 0;
+
+        for (int order = 0; order <= MAX_FIXED_ORDER && order < n; order++) {
+            computeResidual(src, off, n, FIXED_COEFS[order], order, 0);
+            long bits = 3 + 16L * order + residualBits(n, order);
+            if (bits < bestBits) {
+                bestBits = bits;
+                bestType = BLOCK_FIXED;
+                bestOrder = order;
+            }
+        }
+
+        if (n > 2 * MAX_LPC_ORDER) {
+            int maxOrder = analyse(src, off, n);
+            for (int order = 1; order <= maxOrder; order++) {
+                int shift = quantize(lpCoefs[order - 1], order);
+                if (shift < 0)
+                    continue;
+                computeResidual(src, off, n, qlp, order, shift);
+                long bits = 8 + (long) (16 + LPC_PRECISION) * order + residualBits(n, order);
+                if (bits < bestBits) {
+                    bestBits = bits;
+                    bestType = BLOCK_LPC;
+                    bestOrder = order;
+                    bestShift = shift;
+                    System.arraycopy(qlp, 0, bestQlp, 0, order);
+                }
+            }
+        }
+
+        out.writeBits(bestType, 2);
+        if (bestType == BLOCK_VERBATIM) {
+            for (int i = 0; i < n; i++) {
+                out.writeSigned(src[off + i], 16);
+            }
+        }
+        else {
+            int[] coefs;
+            if (bestType == BLOCK_FIXED) {
+                coefs = FIXED_COEFS[bestOrder];
+                out.writeBits(bestOrder, 3);
+            }
+            else {
+                coefs = bestQlp;
+                out.writeBits(bestOrder - 1, 4);
+                out.writeBits(bestShift, 4);
+                for (int j = 0; j < bestOrder; j++) {
+                    out.writeSigned(bestQlp[j], LPC_PRECISION);
+                }
+            }
+            for (int i = 0; i < bestOrder; i++) {
+                out.writeSigned(src[off + i], 16);
+            }
+            computeResidual(src, off, n, coefs, bestOrder, bestShift);
+            writeResidual(n, bestOrder, out);
+        }
+        out.alignToByte();
+    }
+
+    private static boolean isConstant(short[] src, int off, int n) {
+        for (int i = 1; i < n; i++) {
+            if (src[off + i] != src[off])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Fill residual[order, n) with the prediction error of the given
+     * predictor.
+     */
+    private void computeResidual(short[] src, int off, int n, int[] coefs, int order, int shift) {
+        for (int i = order; i < n; i++) {
+            long sum = 0;
+            for (int j = 0; j < order; j++) {
+                sum += (long) coefs[j] * src[off + i - 1 - j];
+            }
+            residual[i] = src[off + i] - (int) (sum >> shift);
+        }
+    }
+
+    /**
+     * Get the size in bits of the current residual, using the best
+     * partition order. The chosen order is kept in {@link #partitionOrder}.
+     */
+    private long residualBits(int n, int order) {
+        int maxOrder = maxPartitionOrder(n, order);
+        int numPartitions = 1 << maxOrder;
+        int partitionLen = n >> maxOrder;
+        for (int p = 0; p < numPartitions; p++) {
+            partitionSums[p] = sumRice(p == 0 ? order : p * partitionLen, (p + 1) * partitionLen);
+        }
+
+        long bestBits = Long.MAX_VALUE;
+        for (int po = maxOrder; po >= 0; po--) {
+            numPartitions = 1 << po;
+            partitionLen = n >> po;
+            long bits = 4;
+            for (int p = 0; p < numPartitions; p++) {
+                int count = p == 0 ? partitionLen - order : partitionLen;
+                bits += 5 + riceBits(count, partitionSums[p], riceParam(count, partitionSums[p]));
+            }
+            if (bits < bestBits) {
+                bestBits = bits;
+                partitionOrder = po;
+            }
+            // merge pairs for the next order down
+            for (int p = 0; p < numPartitions / 2; p++) {
+                partitionSums[p] = partitionSums[2 * p] + partitionSums[2 * p + 1];
+            }
+        }
+        return bestBits;
+    }
+
+    private void writeResidual(int n, int order, BitWriter out) {
+        residualBits(n, order);
+        int numPartitions = 1 << partitionOrder;
+        int partitionLen = n >> partitionOrder;
+        out.writeBits(partitionOrder, 4);
+        for (int p = 0; p < numPartitions; p++) {
+            int start = p == 0 ? order : p * partitionLen;
+            int end = (p + 1) * partitionLen;
+            int k = riceParam(end - start, sumRice(start, end));
+            out.writeBits(k, 5);
+            for (int i = start; i < end; i++) {
+                out.writeRice(residual[i], k);
+            }
+        }
+    }
+
+    /** Largest usable partition order for a block of n samples */
+    private static int maxPartitionOrder(int n, int order) {
+        int po = MAX_PARTITION_ORDER;
+        while (po > 0 && (n % (1 << po) != 0 || (n >> po) <= order)) {
+            po--;
+        }
+        return po;
+    }
+
+    /** Sum of the zigzag encoded residuals in [start, end) */
+    private long sumRice(int start, int end) {
+        long sum = 0;
+        for (int i = start; i < end; i++) {
+            int r = residual[i];
+            sum += ((r << 1) ^ (r >> 31)) & 0xffffffffL;
+        }
+        return sum;
+    }
+
+    /** Rice parameter close to log2 of the mean value */
+    private static int riceParam(int count, long sum) {
+        int k = 0;
+        while (k < MAX_RICE_PARAM && ((long) count << (k + 1)) <= sum) {
+            k++;
+        }
+        return k;
+    }
+
+    /** Upper bound on the size of count values Rice coded with parameter k */
+    private static long riceBits(int count, long sum, int k) {
+        return (long) count * (k + 1) + (sum >> k);
+    }
+
+    /**
+     * Fit linear predictors of each order up to MAX_LPC_ORDER to the
+     * windowed block, using the Levinson-Durbin recursion.
+     *
+     * @return the highest order found, or 0 if the block can't be predicted
+     */
+    private int analyse(short[] src, int off, int n) {
+        if (windowLen != n) {
+            // Tukey window, tapering the outer quarters
+            int taper = n / 4;
+            for (int i = 0; i < n; i++) {
+                double w = 1.0;
+                if (i < taper)
+                    w = 0.5 - 0.5 * Math.cos(Math.PI * i / taper);
+                else if (i >= n - taper)
+                    w = 0.5 - 0.5 * Math.cos(Math.PI * (n - 1 - i) / taper);
+                window[i] = w;
+            }
+            windowLen = n;
+        }
+
+        for (int lag = 0; lag <= MAX_LPC_ORDER; lag++) {
+            double sum = 0;
+            for (int i = lag; i < n; i++) {
+                sum += src[off + i] * window[i] * src[off + i - lag] * window[i - lag];
+            }
+            autoc[lag] = sum;
+        }
+        if (autoc[0] == 0)
+            return 0;
+
+        double err = autoc[0];
+        for (int i = 0; i < MAX_LPC_ORDER; i++) {
+            double r = -autoc[i + 1];
+            for (int j = 0; j < i; j++) {
+                r -= lpc[j] * autoc[i - j];
+            }
+            r /= err;
+            lpc[i] = r;
+            int j = 0;
+            for (; j < i / 2; j++) {
+                double tmp = lpc[j];
+                lpc[j] += r * lpc[i - 1 - j];
+                lpc[i - 1 - j] += r * tmp;
+            }
+            if ((i & 1) == 1)
+                lpc[j] += lpc[j] * r;
+            err *= 1.0 - r * r;
+            for (j = 0; j <= i; j++) {
+                lpCoefs[i][j] = -lpc[j];
+            }
+            if (err <= 0)
+                return i + 1;
+        }
+        return MAX_LPC_ORDER;
+    }
+
+    /**
+     * Quantize coefficients into {@link #qlp}, carrying the rounding error
+     * from one coefficient to the next.
+     *
+     * @return the shift to apply to predictions, or -1 if the
+     *         coefficients can't be represented
+     */
+    private int quantize(double[] coefs, int order) {
+        double max = 0;
+        for (int j = 0; j < order; j++) {
+            max = Math.max(max, Math.abs(coefs[j]));
+        }
+        if (max == 0 || Double.isNaN(max))
+            return -1;
+        int qmax = (1 << (LPC_PRECISION - 1)) - 1;
+        int shift = MAX_LPC_SHIFT;
+        while (shift >= 0 && Math.round(max * (1 << shift)) > qmax) {
+            shift--;
+        }
+        if (shift < 0)
+            return -1;
+
+        double error = 0;
+        for (int j = 0; j < order; j++) {
+            double val = coefs[j] * (1 << shift) + error;
+            long q = Math.max(-qmax - 1, Math.min(qmax, Math.round(val)));
+            error = val - q;
+            qlp[j] = (int) q;
+        }
+        return shift;
+    }
+}
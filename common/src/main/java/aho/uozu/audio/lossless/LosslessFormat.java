@@ -0,0 +1,50 @@
+package aho.uozu.audio.lossless;
+
+/**
+ * Layout of the lossless recording format. All header values are
+ * little-endian.
+ *
+ * <pre>
+ * offset  size  value
+ * 0       4     "YLAC"
+ * 4       1     format version
+ * 5       3     reserved
+ * 8       4     sample rate in Hertz
+ * 12      4     number of frames
+ * 16      4     frames per block
+ * 20      4     number of blocks
+ * 24      4     offset of the seek table
+ * 28      ...   blocks
+ *         ...   seek table: file offset of each block, 4 bytes each
+ * </pre>
+ *
+ * Audio is 16 bit mono. Each block is coded independently, starts on a
+ * byte boundary and holds 'frames per block' frames, except the last,
+ * which holds the rest. See {@link BlockEncoder} for the block layout.
+ */
+public final class LosslessFormat {
+
+    /** File name extension for lossless recordings */
+    public static final String EXTENSION = ".ylac";
+
+    static final int MAGIC = 0x43414c59; // "YLAC", little-endian
+    static final int VERSION = 1;
+    static final int HEADER_LEN = 28;
+    static final int DEFAULT_BLOCK_SIZE = 4096;
+
+    // block types
+    static final int BLOCK_VERBATIM = 0;
+    static final int BLOCK_CONSTANT = 1;
+    static final int BLOCK_FIXED = 2;
+    static final int BLOCK_LPC = 3;
+
+    static final int MAX_FIXED_ORDER = 4;
+    static final int MAX_LPC_ORDER = 8;
+    /** Bits per quantized LPC coefficient */
+    static final int LPC_PRECISION = 12;
+    static final int MAX_LPC_SHIFT = 15;
+    static final int MAX_PARTITION_ORDER = 8;
+    static final int MAX_RICE_PARAM = 30;
+
+    private LosslessFormat() {}
+}
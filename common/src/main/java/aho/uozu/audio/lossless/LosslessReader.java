@@ -0,0 +1,172 @@
+package aho.uozu.audio.lossless;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static aho.uozu.audio.lossless.LosslessFormat.*;
+
+/**
+ * Reader for lossless recordings (see {@link LosslessFormat}). The file
+ * is memory mapped, and the seek table is used to find the blocks that
+ * cover any requested region, so only those blocks are decoded.
+ *
+ * Whole blocks can be decoded in parallel by passing an executor to
+ * {@link #read(int, short[], int, int, ExecutorService)}. Instances are
+ * not otherwise thread safe.
+ */
+public class LosslessReader implements Closeable {
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer data;
+    private final int sampleRate;
+    private final int numFrames;
+    private final int blockSize;
+    private final int[] seekTable;
+    private final int seekTableOffset;
+    /** For blocks only partly inside a requested region */
+    private final short[] scratch;
+
+    /**
+     * Open the given file and read its header and seek table.
+     *
+     * @throws IOException if the file can't be read or isn't a valid
+     *                     lossless recording
+     */
+    public LosslessReader(String path) throws IOException {
+        file = new RandomAccessFile(new File(path), "r");
+        try {
+            FileChannel channel = file.getChannel();
+            long size = channel.size();
+            if (size < HEADER_LEN || size > Integer.MAX_VALUE)
+                throw new IOException("Not a lossless recording: " + path);
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            data.order(ByteOrder.LITTLE_ENDIAN);
+
+            if (data.getInt(0) != MAGIC)
+                throw new IOException("Not a lossless recording: " + path);
+            if (data.get(4) != VERSION)
+                throw new IOException("Unsupported lossless format version: " + data.get(4));
+            sampleRate = data.getInt(8);
+            numFrames = data.getInt(12);
+            blockSize = data.getInt(16);
+            int numBlocks = data.getInt(20);
+            seekTableOffset = data.getInt(24);
+
+            if (numFrames < 0 || blockSize <= 0
+                    || numBlocks != (int) (((long) numFrames + blockSize - 1) / blockSize)
+                    || seekTableOffset < HEADER_LEN
+                    || seekTableOffset + 4L * numBlocks > size)
+                throw new IOException("Corrupt lossless recording header: " + path);
+
+            seekTable = new int[numBlocks];
+            int last = HEADER_LEN;
+            for (int b = 0; b < numBlocks; b++) {
+                int offset = data.getInt(seekTableOffset + 4 * b);
+                if (offset < last || offset > seekTableOffset)
+                    throw new IOException("Corrupt lossless seek table: " + path);
+                seekTable[b] = last = offset;
+            }
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        scratch = new short[blockSize];
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getNumFrames() {
+        return numFrames;
+    }
+
+    /**
+     * Decode a region of frames into the given buffer, on the calling
+     * thread.
+     *
+     * @see #read(int, short[], int, int, ExecutorService)
+     */
+    public int read(int startFrame, short[] dst, int off, int len) throws IOException {
+        return read(startFrame, dst, off, len, null);
+    }
+
+    /**
+     * Decode a region of frames into the given buffer.
+     *
+     * @param startFrame index of the first frame to read
+     * @param dst buffer to decode frames into
+     * @param off index in dst of the first frame to write
+     * @param len maximum number of frames to read
+     * @param executor used to decode blocks in parallel, or null to
+     *                 decode on the calling thread
+     * @return number of frames read. Less than len if the end of the
+     *         audio data is reached.
+     * @throws IOException if the file is corrupt
+     */
+    public int read(int startFrame, final short[] dst, int off, int len,
+                    ExecutorService executor) throws IOException {
+        if (startFrame < 0 || startFrame > numFrames)
+            throw new IndexOutOfBoundsException("Frame " + startFrame);
+        if (off < 0 || len < 0 || off + len > dst.length)
+            throw new IndexOutOfBoundsException();
+
+        int count = Math.min(len, numFrames - startFrame);
+        int end = startFrame + count;
+        List<Future<?>> futures = new ArrayList<>();
+        for (int b = startFrame / blockSize; (long) b * blockSize < end; b++) {
+            final int block = b;
+            int blockStart = b * blockSize;
+            final int blockLen = Math.min(blockSize, numFrames - blockStart);
+            final int dstIdx = off + blockStart - startFrame;
+            if (blockStart >= startFrame && blockStart + blockLen <= end) {
+                // whole block inside the region - decode straight into dst
+                if (executor == null) {
+                    decodeBlock(block, dst, dstIdx, blockLen);
+                }
+                else {
+                    futures.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws IOException {
+                            decodeBlock(block, dst, dstIdx, blockLen);
+                            return null;
+                        }
+                    }));
+                }
+            }
+            else {
+                decodeBlock(block, scratch, 0, blockLen);
+                int from = Math.max(startFrame, blockStart);
+                int to = Math.min(end, blockStart + blockLen);
+                System.arraycopy(scratch, from - blockStart, dst, off + from - startFrame, to - from);
+            }
+        }
+        LosslessWriter.awaitAll(futures);
+        return count;
+    }
+
+    private void decodeBlock(int block, short[] dst, int off, int len) throws IOException {
+        int start = seekTable[block];
+        int end = block + 1 < seekTable.length ? seekTable[block + 1] : seekTableOffset;
+        BlockDecoder.decode(new BitReader(data, start, end), dst, off, len);
+    }
+
+    /**
+     * Close the underlying file. The mapping remains valid until it is
+     * garbage collected.
+     */
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,233 @@
+package aho.uozu.audio.lossless;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static aho.uozu.audio.lossless.LosslessFormat.*;
+
+/**
+ * Append-only writer for lossless recordings (see {@link LosslessFormat}).
+ * Frames are collected into a batch of blocks; when the batch is full its
+ * blocks are encoded, in parallel if an executor is given, and written
+ * to the file in order. The header and seek table are written when the
+ * writer is closed.
+ *
+ * Writes 16 bit mono audio.
+ */
+public class LosslessWriter implements Closeable {
+
+    /** Blocks encoded together. Each can go to a different thread. */
+    private static final int BATCH_BLOCKS = 8;
+
+    private final FileOutputStream stream;
+    private final FileChannel channel;
+    private final int sampleRate;
+    private final int blockSize;
+    private final ExecutorService executor;
+
+    private final short[][] batch;
+    private final BlockEncoder[] encoders;
+    private final BitWriter[] outputs;
+    /** Full blocks in the batch */
+    private int batchBlocks;
+    /** Frames in the block being filled */
+    private int blockFill;
+
+    private int[] seekTable = new int[64];
+    private int numBlocks;
+    private long filePos = HEADER_LEN;
+    private long numFrames;
+    private boolean closed;
+
+    /**
+     * Create a new lossless recording at the given path, overwriting any
+     * existing file. Blocks are encoded on the calling thread.
+     *
+     * @param sampleRate sample rate in Hertz
+     */
+    public LosslessWriter(String path, int sampleRate) throws IOException {
+        this(path, sampleRate, null);
+    }
+
+    /**
+     * Create a new lossless recording at the given path, overwriting any
+     * existing file.
+     *
+     * @param sampleRate sample rate in Hertz
+     * @param executor used to encode blocks in parallel, or null to
+     *                 encode on the calling thread
+     */
+    public LosslessWriter(String path, int sampleRate, ExecutorService executor)
+            throws IOException {
+        this.sampleRate = sampleRate;
+        this.blockSize = DEFAULT_BLOCK_SIZE;
+        this.executor = executor;
+
+        batch = new short[BATCH_BLOCKS][blockSize];
+        encoders = new BlockEncoder[BATCH_BLOCKS];
+        outputs = new BitWriter[BATCH_BLOCKS];
+        for (int i = 0; i < BATCH_BLOCKS; i++) {
+            encoders[i] = new BlockEncoder(blockSize);
+            outputs[i] = new BitWriter(blockSize * 2);
+        }
+
+        stream = new FileOutputStream(new File(path));
+        channel = stream.getChannel();
+        channel.position(HEADER_LEN);
+    }
+
+    /**
+     * Append frames to the file.
+     *
+     * @param src buffer containing the frames
+     * @param off index in src of the first frame to write
+     * @param len number of frames to write
+     */
+    public void writeFrames(short[] src, int off, int len) throws IOException {
+        if (closed)
+            throw new IOException("Writer is closed");
+        if (off < 0 || len < 0 || off + len > src.length)
+            throw new IndexOutOfBoundsException();
+
+        int written = 0;
+        while (written < len) {
+            int n = Math.min(len - written, blockSize - blockFill);
+            System.arraycopy(src, off + written, batch[batchBlocks], blockFill, n);
+            blockFill += n;
+            written += n;
+            if (blockFill == blockSize) {
+                blockFill = 0;
+                batchBlocks++;
+                if (batchBlocks == BATCH_BLOCKS) {
+                    flushBatch(BATCH_BLOCKS, blockSize);
+                }
+            }
+        }
+        numFrames += len;
+    }
+
+    /** Get the number of frames written so far */
+    public int getNumFrames() {
+        return (int) numFrames;
+    }
+
+    /**
+     * Encode and write the first count blocks of the batch.
+     *
+     * @param lastLen number of frames in the last block
+     */
+    private void flushBatch(int count, final int lastLen) throws IOException {
+        if (executor == null || count == 1) {
+            for (int i = 0; i < count; i++) {
+                encode(i, i == count - 1 ? lastLen : blockSize);
+            }
+        }
+        else {
+            List<Future<?>> futures = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                final int idx = i;
+                final int len = i == count - 1 ? lastLen : blockSize;
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        encode(idx, len);
+                    }
+                }));
+            }
+            awaitAll(futures);
+        }
+
+        for (int i = 0; i < count; i++) {
+            BitWriter out = outputs[i];
+            if (filePos + out.length() > Integer.MAX_VALUE)
+                throw new IOException("File size limit exceeded");
+            if (numBlocks == seekTable.length)
+                seekTable = Arrays.copyOf(seekTable, seekTable.length * 2);
+            seekTable[numBlocks++] = (int) filePos;
+            writeFully(ByteBuffer.wrap(out.array(), 0, out.length()));
+            filePos += out.length();
+        }
+        batchBlocks = 0;
+    }
+
+    private void encode(int idx, int len) {
+        outputs[idx].reset();
+        encoders[idx].encode(batch[idx], 0, len, outputs[idx]);
+    }
+
+    /**
+     * Encode any remaining frames, write the seek table and header, and
+     * close the file. Subsequent calls have no effect.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            if (blockFill > 0)
+                flushBatch(batchBlocks + 1, blockFill);
+            else if (batchBlocks > 0)
+                flushBatch(batchBlocks, blockSize);
+
+            ByteBuffer table = ByteBuffer.allocate(numBlocks * 4).order(ByteOrder.LITTLE_ENDIAN);
+            table.asIntBuffer().put(seekTable, 0, numBlocks);
+            writeFully(table);
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LEN).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC)
+                    .put((byte) VERSION)
+                    .put((byte) 0).put((byte) 0).put((byte) 0)
+                    .putInt(sampleRate)
+                    .putInt((int) numFrames)
+                    .putInt(blockSize)
+                    .putInt(numBlocks)
+                    .putInt((int) filePos);
+            header.flip();
+            long pos = 0;
+            while (header.hasRemaining()) {
+                pos += channel.write(header, pos);
+            }
+        } finally {
+            channel.close();
+            stream.close();
+        }
+    }
+
+    /** Wait for all tasks, rethrowing the first failure */
+    static void awaitAll(List<Future<?>> futures) throws IOException {
+        try {
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    private void writeFully(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+}
@@ -3,8 +3,13 @@ package aho.uozu.audio.wav;
 import java.util.HashMap;
 import java.util.Map;
 
-enum Format {
-    PCM(1);
+/**
+ * 'WAVE' file audio format codes
+ */
+public enum Format {
+    PCM(1),
+    IEEE_FLOAT(3),
+    IMA_ADPCM(0x11);
 
     private final int code;
     private static final Map<Integer, Format> intToEnum = new HashMap<>();
@@ -28,6 +33,6 @@ enum Format {
     }
 
     public static Format fromShort (short formatCode) {
-        return fromInt((int) formatCode);
+        return fromInt(formatCode & 0xffff);
     }
 }
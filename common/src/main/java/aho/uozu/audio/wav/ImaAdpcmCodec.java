@@ -0,0 +1,191 @@
+package aho.uozu.audio.wav;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * IMA ADPCM ('WAVE' format 0x11) encoder and decoder. Compresses 16 bit
+ * samples to 4 bits each.
+ *
+ * Audio is coded in blocks of {@link #samplesPerBlock(int)} samples. Each
+ * block starts with a 4 byte header holding the first sample and the
+ * coder state, so blocks can be decoded independently. Only mono audio
+ * is supported.
+ *
+ * Encoding and decoding allocate nothing. An encoder instance carries
+ * state from one block to the next, so use one instance per stream.
+ */
+public class ImaAdpcmCodec {
+
+    private static final int BLOCK_HEADER_LEN = 4;
+
+    private static final int[] INDEX_TABLE = {
+            -1, -1, -1, -1, 2, 4, 6, 8,
+            -1, -1, -1, -1, 2, 4, 6, 8
+    };
+
+    private static final int[] STEP_TABLE = {
+            7, 8, 9, 10, 11, 12, 13, 14, 16, 17,
+            19, 21, 23, 25, 28, 31, 34, 37, 41, 45,
+            50, 55, 60, 66, 73, 80, 88, 97, 107, 118,
+            130, 143, 157, 173, 190, 209, 230, 253, 279, 307,
+            337, 371, 408, 449, 494, 544, 598, 658, 724, 796,
+            876, 963, 1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066,
+            2272, 2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871, 5358,
+            5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487, 12635, 13899,
+            15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
+    };
+
+    /** Step index carried between encoded blocks */
+    private int encoderStepIndex;
+
+    /** Number of samples in each block of the given size */
+    public static int samplesPerBlock(int blockAlign) {
+        return (blockAlign - BLOCK_HEADER_LEN) * 2 + 1;
+    }
+
+    /**
+     * Number of samples held by a (possibly partial) block of the given
+     * size. Partial blocks only occur at the end of a file.
+     */
+    public static int samplesInBlock(int numBytes) {
+        if (numBytes < BLOCK_HEADER_LEN)
+            return 0;
+        return samplesPerBlock(numBytes);
+    }
+
+    /**
+     * Get a suitable block size for the given sample rate, matching the
+     * sizes used by other encoders: 256 bytes at 11025 Hz, growing with
+     * the sample rate.
+     */
+    public static int blockAlignFor(int sampleRate) {
+        return 256 * Math.max(1, sampleRate / 11025);
+    }
+
+    /**
+     * Encode one block.
+     *
+     * @param src samples to encode
+     * @param off index in src of the first sample
+     * @param len number of samples, at most samplesPerBlock(blockAlign).
+     *            Short blocks are padded with the last sample.
+     * @param dst buffer to write the block to, at its current position.
+     *            Exactly blockAlign bytes are written.
+     */
+    public void encodeBlock(short[] src, int off, int len, ByteBuffer dst, int blockAlign) {
+        int samplesPerBlock = samplesPerBlock(blockAlign);
+        if (len < 1 || len > samplesPerBlock)
+            throw new IllegalArgumentException("Bad block length: " + len);
+
+        int predictor = src[off];
+        int stepIndex = encoderStepIndex;
+        dst.order(ByteOrder.LITTLE_ENDIAN);
+        dst.putShort((short) predictor);
+        dst.put((byte) stepIndex);
+        dst.put((byte) 0);
+
+        for (int i = 1; i < samplesPerBlock; i += 2) {
+            int packed = 0;
+            for (int n = 0; n < 2; n++) {
+                int idx = Math.min(i + n, len - 1);
+                int sample = src[off + idx];
+
+                int step = STEP_TABLE[stepIndex];
+                int diff = sample - predictor;
+                int nibble = 0;
+                if (diff < 0) {
+                    nibble = 8;
+                    diff = -diff;
+                }
+                int delta = step >> 3;
+                if (diff >= step) {
+                    nibble |= 4;
+                    diff -= step;
+                    delta += step;
+                }
+                step >>= 1;
+                if (diff >= step) {
+                    nibble |= 2;
+                    diff -= step;
+                    delta += step;
+                }
+                step >>= 1;
+                if (diff >= step) {
+                    nibble |= 1;
+                    delta += step;
+                }
+                predictor = clampSample((nibble & 8) != 0 ? predictor - delta : predictor + delta);
+                stepIndex = clampIndex(stepIndex + INDEX_TABLE[nibble]);
+
+                // first sample in the low nibble
+                packed |= nibble << (4 * n);
+            }
+            dst.put((byte) packed);
+        }
+        encoderStepIndex = stepIndex;
+    }
+
+    /**
+     * Decode the first len samples of a block.
+     *
+     * @param src buffer containing the block at its current position.
+     *            The position is advanced past the whole block.
+     * @param blockLen size of the block in bytes. Less than blockAlign
+     *                 for a partial block at the end of a file.
+     * @param dst buffer to decode samples into
+     * @param off index in dst of the first sample
+     * @param len maximum number of samples to decode
+     * @return number of samples decoded
+     */
+    public int decodeBlock(ByteBuffer src, int blockLen, short[] dst, int off, int len) {
+        int start = src.position();
+        int numSamples = Math.min(len, samplesInBlock(blockLen));
+        if (numSamples == 0) {
+            src.position(start + blockLen);
+            return 0;
+        }
+        src.order(ByteOrder.LITTLE_ENDIAN);
+        int predictor = src.getShort(start);
+        int stepIndex = clampIndex(src.get(start + 2));
+        dst[off] = (short) predictor;
+
+        for (int i = 1; i < numSamples; i++) {
+            int b = src.get(start + BLOCK_HEADER_LEN + (i - 1) / 2);
+            int nibble = ((i & 1) == 1) ? b & 0x0f : (b >> 4) & 0x0f;
+
+            int step = STEP_TABLE[stepIndex];
+            int delta = step >> 3;
+            if ((nibble & 4) != 0) delta += step;
+            if ((nibble & 2) != 0) delta += step >> 1;
+            if ((nibble & 1) != 0) delta += step >> 2;
+            predictor = clampSample((nibble & 8) != 0 ? predictor - delta : predictor + delta);
+            stepIndex = clampIndex(stepIndex + INDEX_TABLE[nibble]);
+
+            dst[off + i] = (short) predictor;
+        }
+        src.position(start + blockLen);
+        return numSamples;
+    }
+
+    /** Reset encoder state, ready for a new stream */
+    public void reset() {
+        encoderStepIndex = 0;
+    }
+
+    private static int clampSample(int sample) {
+        if (sample > Short.MAX_VALUE)
+            return Short.MAX_VALUE;
+        if (sample < Short.MIN_VALUE)
+            return Short.MIN_VALUE;
+        return sample;
+    }
+
+    private static int clampIndex(int index) {
+        if (index < 0)
+            return 0;
+        if (index > 88)
+            return 88;
+        return index;
+    }
+}
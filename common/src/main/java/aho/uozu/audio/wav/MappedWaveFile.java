@@ -0,0 +1,118 @@
+package aho.uozu.audio.wav;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read-only, memory mapped view of a 'WAVE' file. The data chunk is
+ * mapped into memory and exposed as a little-endian ShortBuffer, so
+ * opening a file costs the same regardless of its length, and any frame
+ * can be reached in constant time.
+ *
+ * Only supports 16 bit, 1 channel PCM wave files at the moment.
+ *
+ * Not thread safe - use {@link #getSamples()} to give each thread its
+ * own view.
+ */
+public class MappedWaveFile implements Closeable {
+
+    private final RandomAccessFile file;
+    private final WaveFileHeader header;
+    private final ShortBuffer samples;
+
+    /**
+     * Map the given wave file.
+     *
+     * @throws IOException if the file can't be read, or is in an
+     *                     unsupported format
+     */
+    public MappedWaveFile(String path) throws IOException {
+        file = new RandomAccessFile(new File(path), "r");
+        try {
+            FileChannel channel = file.getChannel();
+            header = WaveFileHeader.read(channel);
+            if (header.getFormat() != Format.PCM || header.getBitDepth() != 16
+                    || header.getNumChannels() != 1) {
+                throw new IOException("Unsupported wave format: " + header.getFormat() + ", "
+                        + header.getNumChannels() + " channel(s), "
+                        + header.getBitDepth() + " bit");
+            }
+
+            // don't map past the end of truncated files
+            long dataSize = Math.min(header.getAudioDataSize(),
+                    channel.size() - header.getDataOffset());
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY,
+                    header.getDataOffset(), Math.max(dataSize, 0));
+            data.order(ByteOrder.LITTLE_ENDIAN);
+            samples = data.asShortBuffer();
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Get a new read-only view of all samples in the file. Each view has
+     * its own position and limit.
+     */
+    public ShortBuffer getSamples() {
+        ShortBuffer view = samples.asReadOnlyBuffer();
+        view.rewind();
+        return view;
+    }
+
+    /** Get a single frame */
+    public short getFrame(int frameIdx) {
+        return samples.get(frameIdx);
+    }
+
+    /**
+     * Copy a region of frames into the given buffer.
+     *
+     * @param startFrame index of the first frame to copy
+     * @param dst buffer to copy frames into
+     * @param off index in dst of the first frame to write
+     * @param len maximum number of frames to copy
+     * @return number of frames copied. Less than len if the end of the
+     *         audio data is reached.
+     */
+    public int read(int startFrame, short[] dst, int off, int len) {
+        if (startFrame < 0 || startFrame > samples.limit())
+            throw new IndexOutOfBoundsException();
+        int numFrames = Math.min(len, samples.limit() - startFrame);
+        samples.position(startFrame);
+        samples.get(dst, off, numFrames);
+        return numFrames;
+    }
+
+    public int getNumChannels() {
+        return header.getNumChannels();
+    }
+
+    public int getBitsPerSample() {
+        return header.getBitDepth();
+    }
+
+    public int getSampleRate() {
+        return header.getSampleRate();
+    }
+
+    public int getNumFrames() {
+        return samples.limit();
+    }
+
+    /**
+     * Close the underlying file. The mapping, and any views obtained from
+     * {@link #getSamples()}, remain valid until they are garbage collected.
+     */
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
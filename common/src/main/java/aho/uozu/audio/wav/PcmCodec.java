@@ -0,0 +1,258 @@
+package aho.uozu.audio.wav;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Bulk converters between little-endian PCM bytes (as stored in 'WAVE'
+ * files) and 16 bit / floating point samples.
+ *
+ * Supported encodings are 8, 16, 24 and 32 bit integer {@link Format#PCM},
+ * and 32 bit {@link Format#IEEE_FLOAT}. Float samples are in the
+ * range [-1.0, 1.0).
+ *
+ * All methods read from / write to the given byte buffer starting at its
+ * current position, and advance the position past the bytes used. The
+ * byte buffer's order is set to little-endian.
+ */
+public final class PcmCodec {
+
+    private PcmCodec() {}
+
+    /** Returns true if the given encoding can be converted by this class */
+    public static boolean isSupported(Format format, int bitDepth) {
+        if (format == Format.PCM) {
+            return bitDepth == 8 || bitDepth == 16 || bitDepth == 24 || bitDepth == 32;
+        }
+        return format == Format.IEEE_FLOAT && bitDepth == 32;
+    }
+
+    /**
+     * Decode len samples from src into dst.
+     *
+     * @throws IllegalArgumentException if the encoding is unsupported
+     */
+    public static void toShorts(ByteBuffer src, Format format, int bitDepth,
+                                short[] dst, int off, int len) {
+        checkSupported(format, bitDepth);
+        src.order(ByteOrder.LITTLE_ENDIAN);
+        int pos = src.position();
+        if (format == Format.IEEE_FLOAT) {
+            FloatBuffer view = src.asFloatBuffer();
+            for (int i = 0; i < len; i++) {
+                dst[off + i] = floatToShort(view.get(i));
+            }
+        }
+        else if (bitDepth == 16) {
+            ShortBuffer view = src.asShortBuffer();
+            view.get(dst, off, len);
+        }
+        else if (bitDepth == 8) {
+            for (int i = 0; i < len; i++) {
+                dst[off + i] = (short) (((src.get(pos + i) & 0xff) - 128) << 8);
+            }
+        }
+        else if (bitDepth == 24) {
+            for (int i = 0, p = pos; i < len; i++, p += 3) {
+                // top two bytes of the sample
+                dst[off + i] = (short) ((src.get(p + 1) & 0xff) | (src.get(p + 2) << 8));
+            }
+        }
+        else {
+            IntBuffer view = src.asIntBuffer();
+            for (int i = 0; i < len; i++) {
+                dst[off + i] = (short) (view.get(i) >> 16);
+            }
+        }
+        src.position(pos + len * bitDepth / 8);
+    }
+
+    /**
+     * Decode numFrames interleaved frames from src into dst, mixing all
+     * channels down to a single channel. Only absolute gets are used on
+     * src, so nothing is allocated.
+     *
+     * @throws IllegalArgumentException if the encoding is unsupported
+     */
+    public static void toMonoShorts(ByteBuffer src, Format format, int bitDepth,
+                                    int numChannels, short[] dst, int off, int numFrames) {
+        checkSupported(format, bitDepth);
+        src.order(ByteOrder.LITTLE_ENDIAN);
+        int pos = src.position();
+        int bytesPerSample = bitDepth / 8;
+        int p = pos;
+        for (int f = 0; f < numFrames; f++) {
+            int sum = 0;
+            for (int c = 0; c < numChannels; c++, p += bytesPerSample) {
+                sum += shortAt(src, p, format, bitDepth);
+            }
+            dst[off + f] = (short) (sum / numChannels);
+        }
+        src.position(p);
+    }
+
+    /** Decode the sample at the given byte offset to 16 bits */
+    private static short shortAt(ByteBuffer src, int p, Format format, int bitDepth) {
+        if (format == Format.IEEE_FLOAT)
+            return floatToShort(src.getFloat(p));
+        switch (bitDepth) {
+            case 8:
+                return (short) (((src.get(p) & 0xff) - 128) << 8);
+            case 16:
+                return src.getShort(p);
+            case 24:
+                return (short) ((src.get(p + 1) & 0xff) | (src.get(p + 2) << 8));
+            default:
+                return (short) (src.getInt(p) >> 16);
+        }
+    }
+
+    /**
+     * Decode len samples from src into dst.
+     *
+     * @throws IllegalArgumentException if the encoding is unsupported
+     */
+    public static void toFloats(ByteBuffer src, Format format, int bitDepth,
+                                float[] dst, int off, int len) {
+        checkSupported(format, bitDepth);
+        src.order(ByteOrder.LITTLE_ENDIAN);
+        int pos = src.position();
+        if (format == Format.IEEE_FLOAT) {
+            FloatBuffer view = src.asFloatBuffer();
+            view.get(dst, off, len);
+        }
+        else if (bitDepth == 16) {
+            ShortBuffer view = src.asShortBuffer();
+            for (int i = 0; i < len; i++) {
+                dst[off + i] = view.get(i) / 32768f;
+            }
+        }
+        else if (bitDepth == 8) {
+            for (int i = 0; i < len; i++) {
+                dst[off + i] = ((src.get(pos + i) & 0xff) - 128) / 128f;
+            }
+        }
+        else if (bitDepth == 24) {
+            for (int i = 0, p = pos; i < len; i++, p += 3) {
+                int sample = (src.get(p) & 0xff)
+                        | ((src.get(p + 1) & 0xff) << 8)
+                        | (src.get(p + 2) << 16);
+                dst[off + i] = sample / 8388608f;
+            }
+        }
+        else {
+            IntBuffer view = src.asIntBuffer();
+            for (int i = 0; i < len; i++) {
+                dst[off + i] = view.get(i) / 2147483648f;
+            }
+        }
+        src.position(pos + len * bitDepth / 8);
+    }
+
+    /**
+     * Encode len samples from src into dst.
+     *
+     * @throws IllegalArgumentException if the encoding is unsupported
+     */
+    public static void fromShorts(short[] src, int off, int len,
+                                  ByteBuffer dst, Format format, int bitDepth) {
+        checkSupported(format, bitDepth);
+        dst.order(ByteOrder.LITTLE_ENDIAN);
+        int pos = dst.position();
+        if (format == Format.IEEE_FLOAT) {
+            FloatBuffer view = dst.asFloatBuffer();
+            for (int i = 0; i < len; i++) {
+                view.put(i, src[off + i] / 32768f);
+            }
+        }
+        else if (bitDepth == 16) {
+            ShortBuffer view = dst.asShortBuffer();
+            view.put(src, off, len);
+        }
+        else if (bitDepth == 8) {
+            for (int i = 0; i < len; i++) {
+                dst.put(pos + i, (byte) ((src[off + i] >> 8) + 128));
+            }
+        }
+        else if (bitDepth == 24) {
+            for (int i = 0, p = pos; i < len; i++, p += 3) {
+                short sample = src[off + i];
+                dst.put(p, (byte) 0);
+                dst.put(p + 1, (byte) sample);
+                dst.put(p + 2, (byte) (sample >> 8));
+            }
+        }
+        else {
+            IntBuffer view = dst.asIntBuffer();
+            for (int i = 0; i < len; i++) {
+                view.put(i, src[off + i] << 16);
+            }
+        }
+        dst.position(pos + len * bitDepth / 8);
+    }
+
+    /**
+     * Encode len samples from src into dst. Samples outside [-1.0, 1.0)
+     * are clipped.
+     *
+     * @throws IllegalArgumentException if the encoding is unsupported
+     */
+    public static void fromFloats(float[] src, int off, int len,
+                                  ByteBuffer dst, Format format, int bitDepth) {
+        checkSupported(format, bitDepth);
+        dst.order(ByteOrder.LITTLE_ENDIAN);
+        int pos = dst.position();
+        if (format == Format.IEEE_FLOAT) {
+            FloatBuffer view = dst.asFloatBuffer();
+            view.put(src, off, len);
+        }
+        else if (bitDepth == 16) {
+            ShortBuffer view = dst.asShortBuffer();
+            for (int i = 0; i < len; i++) {
+                view.put(i, floatToShort(src[off + i]));
+            }
+        }
+        else if (bitDepth == 8) {
+            for (int i = 0; i < len; i++) {
+                dst.put(pos + i, (byte) ((floatToShort(src[off + i]) >> 8) + 128));
+            }
+        }
+        else if (bitDepth == 24) {
+            for (int i = 0, p = pos; i < len; i++, p += 3) {
+                int sample = (int) clip(src[off + i] * 8388608.0, -8388608, 8388607);
+                dst.put(p, (byte) sample);
+                dst.put(p + 1, (byte) (sample >> 8));
+                dst.put(p + 2, (byte) (sample >> 16));
+            }
+        }
+        else {
+            IntBuffer view = dst.asIntBuffer();
+            for (int i = 0; i < len; i++) {
+                view.put(i, (int) clip(src[off + i] * 2147483648.0,
+                        Integer.MIN_VALUE, Integer.MAX_VALUE));
+            }
+        }
+        dst.position(pos + len * bitDepth / 8);
+    }
+
+    private static short floatToShort(float sample) {
+        return (short) clip(sample * 32768.0, Short.MIN_VALUE, Short.MAX_VALUE);
+    }
+
+    private static double clip(double val, double min, double max) {
+        if (val < min)
+            return min;
+        if (val > max)
+            return max;
+        return val;
+    }
+
+    private static void checkSupported(Format format, int bitDepth) {
+        if (!isSupported(format, bitDepth))
+            throw new IllegalArgumentException(
+                    "Unsupported encoding: " + format + ", " + bitDepth + " bit");
+    }
+}
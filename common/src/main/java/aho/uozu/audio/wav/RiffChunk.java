@@ -0,0 +1,36 @@
+package aho.uozu.audio.wav;
+
+/**
+ * Location of a single chunk within a RIFF file.
+ */
+class RiffChunk {
+    private final String id;
+    private final long offset;
+    private final long size;
+
+    RiffChunk(String id, long offset, long size) {
+        this.id = id;
+        this.offset = offset;
+        this.size = size;
+    }
+
+    /** Four character chunk id, eg. "fmt ", "data", "LIST" */
+    public String getId() {
+        return id;
+    }
+
+    /** Offset in the file of the chunk's data, ie. after the id and size fields */
+    public long getOffset() {
+        return offset;
+    }
+
+    /** Size of the chunk's data in bytes, excluding any padding */
+    public long getSize() {
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "'" + id + "' @" + offset + ", " + size + " bytes";
+    }
+}
@@ -2,16 +2,14 @@ package aho.uozu.audio.wav;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
 
 /**
  * An immutable wave file class for saving and
- * loading audio data to/from 'WAVE' files. Only supports
- * 16 bit, 1 channel PCM wave files at the moment.
+ * loading audio data to/from 'WAVE' files. Only writes
+ * 16 bit, 1 channel PCM wave files at the moment. Files in
+ * other formats are converted to 16 bit mono when loaded.
  */
 public class WaveFile {
 
@@ -20,23 +18,27 @@ public class WaveFile {
     private final short bitsPerSample;
     private final int sampleRate;
 
-    private final int audioDataSize;
     private final short[] audioData;
 
     private WaveFile(Builder builder) {
-        if (builder.numFrames == 0) {
-            numFrames = builder.audioData.length;
-        }
-        else {
-            numFrames = builder.numFrames;
-        }
-        numChannels = builder.numChannels;
-        bitsPerSample = builder.bitsPerSample;
-        sampleRate = builder.sampleRate;
+        this(builder.numFrames(), builder.numChannels, builder.bitsPerSample,
+                builder.sampleRate, copyOf(builder.audioData, builder.numFrames()));
+    }
 
-        audioDataSize =  numFrames * numChannels * bitsPerSample / 8;
-        audioData = new short[numFrames];
-        System.arraycopy(builder.audioData, 0, audioData, 0, numFrames);
+    /** Takes ownership of audioData - no copy is made. */
+    private WaveFile(int numFrames, short numChannels, short bitsPerSample,
+                     int sampleRate, short[] audioData) {
+        this.numFrames = numFrames;
+        this.numChannels = numChannels;
+        this.bitsPerSample = bitsPerSample;
+        this.sampleRate = sampleRate;
+        this.audioData = audioData;
+    }
+
+    private static short[] copyOf(short[] src, int len) {
+        short[] copy = new short[len];
+        System.arraycopy(src, 0, copy, 0, len);
+        return copy;
     }
 
     public static class Builder {
@@ -91,62 +93,97 @@ public class WaveFile {
         }
 
         public WaveFile build() { return new WaveFile(this); }
+
+        private int numFrames() {
+            return numFrames == 0 ? audioData.length : numFrames;
+        }
     }
 
     public void writeToFile(String path) throws IOException {
-        WaveFileHeader header = new WaveFileHeader.Builder()
-                .sampleRate(sampleRate)
-                .dataSize(audioDataSize)
-                .channels(numChannels)
-                .bitDepth(bitsPerSample)
-                .format(Format.PCM)
-                .build();
-        ByteBuffer headerBytes = header.asByteBuffer();
-
-        FileOutputStream os = new FileOutputStream(new File(path));
-        FileChannel fc = os.getChannel();
-        ByteBuffer audio = audioAsByteBuffer();
-        while (headerBytes.hasRemaining())
-            fc.write(headerBytes);
-        while (audio.hasRemaining())
-            fc.write(audio);
-        fc.close();
-        os.flush();
-        os.close();
+        WaveFileWriter writer = new WaveFileWriter(path, sampleRate, numChannels);
+        try {
+            writer.writeFrames(audioData, 0, numFrames);
+        } finally {
+            writer.close();
+        }
     }
 
     public static WaveFile fromFile(String path) throws IOException {
-        FileInputStream is = new FileInputStream(new File(path));
-        FileChannel fc = is.getChannel();
-
-        // get header
-        ByteBuffer headerBytes = ByteBuffer.allocate(WaveFileHeader.HEADER_LEN);
-        while (headerBytes.hasRemaining()) {
-            fc.read(headerBytes);
+        WaveFileReader reader = new WaveFileReader(path);
+        try {
+            // decode straight into the new WaveFile's storage
+            short[] audioData = new short[reader.getNumFrames()];
+            int numFrames = 0;
+            while (numFrames < audioData.length) {
+                int read = reader.readFrames(audioData, numFrames, audioData.length - numFrames);
+                if (read < 0)
+                    break;
+                numFrames += read;
+            }
+            // the reader converts everything to 16 bit mono
+            return new WaveFile(numFrames, (short) 1, (short) 16,
+                    reader.getSampleRate(), audioData);
+        } finally {
+            reader.close();
         }
-        headerBytes.flip();
-        WaveFileHeader header = WaveFileHeader.read(headerBytes);
+    }
 
-        // get audio data
-        ByteBuffer audioBytes = ByteBuffer.allocate(header.getAudioDataSize());
-        while (audioBytes.hasRemaining()) {
-            fc.read(audioBytes);
+    /**
+     * Read a region of a wave file, converted to 16 bit mono. Only the
+     * requested region is read from the file.
+     *
+     * @param startFrame index of the first frame to read
+     * @param frameCount maximum number of frames to read
+     * @param dst buffer to read frames into, starting at index 0
+     * @return number of frames read. Less than frameCount if the region
+     *         extends past the end of the file.
+     * @throws IOException if the file can't be read
+     */
+    public static int readRegion(String path, int startFrame, int frameCount, short[] dst)
+            throws IOException {
+        WaveFileReader reader = new WaveFileReader(path);
+        try {
+            reader.seekFrame(Math.min(startFrame, reader.getNumFrames()));
+            int numFrames = 0;
+            int result;
+            while (numFrames < frameCount
+                    && (result = reader.readFrames(dst, numFrames, frameCount - numFrames)) > 0) {
+                numFrames += result;
+            }
+            return numFrames;
+        } finally {
+            reader.close();
         }
-        fc.close();
-        audioBytes.flip();
+    }
 
-        audioBytes.order(ByteOrder.LITTLE_ENDIAN);
-        short[] audioData = new short[header.getNumSamples()];
-        for (int i = 0; i < header.getNumSamples(); i++) {
-            audioData[i] = audioBytes.getShort();
+    /**
+     * Read a wave file's header, without reading any audio data.
+     *
+     * @throws IOException if the file can't be read or isn't a wave file
+     */
+    public static WaveFileInfo probe(String path) throws IOException {
+        FileInputStream is = new FileInputStream(new File(path));
+        FileChannel fc = is.getChannel();
+        try {
+            WaveFileHeader header = WaveFileHeader.read(fc);
+            int frameSize = header.getNumChannels() * header.getBitDepth() / 8;
+            // don't count frames missing from truncated files
+            long dataSize = Math.min(header.getAudioDataSize(),
+                    fc.size() - header.getDataOffset());
+            int numFrames = frameSize > 0 ? (int) (Math.max(dataSize, 0) / frameSize) : 0;
+            if (header.isCompressed()) {
+                // frame count is stored in the 'fact' chunk
+                numFrames = dataSize < header.getAudioDataSize()
+                        ? Math.min(header.getNumSamples(), (int) (Math.max(dataSize, 0)
+                                / header.getBlockAlign() * header.getSamplesPerBlock()))
+                        : header.getNumSamples();
+            }
+            return new WaveFileInfo(header.getFormat(), numFrames, header.getSampleRate(),
+                    header.getNumChannels(), header.getBitDepth());
+        } finally {
+            fc.close();
+            is.close();
         }
-
-        return new Builder()
-                .bitDepth(header.getBitDepth())
-                .channels(header.getNumChannels())
-                .sampleRate(header.getSampleRate())
-                .data(audioData)
-                .build();
     }
 
     public int getNumChannels() {
@@ -167,19 +204,11 @@ public class WaveFile {
     public void getAudioData(short[] buffer) {
         if (buffer.length < numFrames)
             throw new IllegalArgumentException("Output buffer too small");
-        System.arraycopy(audioData, 0, buffer, 0, audioData.length);
+        System.arraycopy(audioData, 0, buffer, 0, numFrames);
     }
 
     public int getNumFrames() {
         return numFrames;
     }
 
-    private ByteBuffer audioAsByteBuffer() {
-        ByteBuffer audio = ByteBuffer.allocate(audioDataSize);
-        audio.order(ByteOrder.LITTLE_ENDIAN);
-        for (short s : audioData) { audio.putShort(s); }
-        audio.flip();
-        return audio;
-    }
-
 }
@@ -1,7 +1,14 @@
 package aho.uozu.audio.wav;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 
 class WaveFileHeader {
@@ -9,18 +16,56 @@ class WaveFileHeader {
     private final short numChannels;
     private final int sampleRate;
     private final short bitDepth;
+    /** Bytes per block of compressed formats. Same as frame size for PCM. */
+    private final short blockAlign;
+    /** Samples per block of compressed formats, or 0 for PCM */
+    private final int samplesPerBlock;
     private final int audioDataSize;
     private final int numSamples;
+    private final long dataOffset;
+    private final List<RiffChunk> chunks;
+    /** First chunk of each id */
+    private final Map<String, RiffChunk> chunkIndex;
 
+    /** Length of the canonical PCM header written by {@link #asByteBuffer()} */
     public static final int HEADER_LEN = 44;
+    /** Length of the IMA ADPCM header, with extended 'fmt ' and 'fact' chunks */
+    private static final int ADPCM_HEADER_LEN = 60;
+
+    /**
+     * Bytes fetched by the first read of {@link #read(FileChannel)}. Enough
+     * to cover the header chunks of most files in a single read.
+     */
+    private static final int READ_WINDOW_LEN = 512;
+    /** Longest 'fmt ' chunk we care about (WAVE_FORMAT_EXTENSIBLE) */
+    private static final int MAX_FMT_LEN = 40;
+    private static final int FORMAT_EXTENSIBLE = 0xFFFE;
 
     private WaveFileHeader(Builder b) {
         format = b.format;
         numChannels = b.numChannels;
         sampleRate = b.sampleRate;
         bitDepth = b.bitDepth;
+        samplesPerBlock = b.samplesPerBlock;
+        blockAlign = b.blockAlign > 0 ? b.blockAlign : getFrameSize();
         audioDataSize = b.audioDataSize;
-        numSamples = b.audioDataSize / getFrameSize();
+        if (b.numSamples >= 0) {
+            numSamples = b.numSamples;
+        }
+        else if (isCompressed()) {
+            numSamples = samplesInBlocks(b.audioDataSize);
+        }
+        else {
+            numSamples = getFrameSize() > 0 ? b.audioDataSize / getFrameSize() : 0;
+        }
+        dataOffset = b.dataOffset;
+        chunks = Collections.unmodifiableList(b.chunks);
+        chunkIndex = new HashMap<>();
+        for (RiffChunk chunk : chunks) {
+            if (!chunkIndex.containsKey(chunk.getId())) {
+                chunkIndex.put(chunk.getId(), chunk);
+            }
+        }
     }
 
     public static class Builder {
@@ -28,7 +73,12 @@ class WaveFileHeader {
         private short numChannels;
         private int sampleRate;
         private short bitDepth;
+        private short blockAlign;
+        private int samplesPerBlock;
         private int audioDataSize;
+        private int numSamples = -1;
+        private long dataOffset = HEADER_LEN;
+        private List<RiffChunk> chunks = new ArrayList<>();
 
         public Builder() {}
 
@@ -57,52 +107,240 @@ class WaveFileHeader {
             return this;
         }
 
+        /** Bytes per block. Only needed for compressed formats. */
+        public Builder blockAlign(int blockAlign) {
+            this.blockAlign = (short) blockAlign;
+            return this;
+        }
+
+        /** Samples per block. Only needed for compressed formats. */
+        public Builder samplesPerBlock(int samplesPerBlock) {
+            this.samplesPerBlock = samplesPerBlock;
+            return this;
+        }
+
+        /**
+         * [Optional]
+         * Set the number of samples per channel. If not set, this is
+         * calculated from the data size.
+         */
+        public Builder numSamples(int numSamples) {
+            this.numSamples = numSamples;
+            return this;
+        }
+
+        public Builder dataOffset(long offset) {
+            this.dataOffset = offset;
+            return this;
+        }
+
+        public Builder chunk(RiffChunk chunk) {
+            this.chunks.add(chunk);
+            return this;
+        }
+
         public WaveFileHeader build() {
             return new WaveFileHeader(this);
         }
     }
 
-    public static WaveFileHeader read(ByteBuffer buffer) {
-        Builder builder = new Builder();
+    /**
+     * Read a header from a buffer containing the start of a wave file.
+     *
+     * @throws IOException if the buffer doesn't contain a valid header
+     */
+    public static WaveFileHeader read(final ByteBuffer buffer) throws IOException {
         buffer.order(ByteOrder.LITTLE_ENDIAN);
-        // skip past unnecessary data
-        buffer.getInt(); // riff
-        buffer.getInt(); // size
-        buffer.getInt(); // wave
-        buffer.getInt(); // fmt
-        buffer.getInt(); // fmt length
-        builder.format(Format.fromShort(buffer.getShort()));
+        final int start = buffer.position();
+        return read(new ChunkSource() {
+            @Override
+            public ByteBuffer get(long pos, int len) {
+                ByteBuffer slice = buffer.duplicate();
+                slice.position((int) Math.min(start + pos, buffer.limit()));
+                slice.limit((int) Math.min(start + pos + len, buffer.limit()));
+                return slice.slice().order(ByteOrder.LITTLE_ENDIAN);
+            }
+
+            @Override
+            public long size() {
+                return buffer.limit() - start;
+            }
+        });
+    }
+
+    /**
+     * Read the header of a wave file, indexing every chunk in the file.
+     * Chunk contents other than 'fmt ' are never read - chunks are
+     * skipped by seeking past them. The channel's position is unchanged.
+     *
+     * @throws IOException if the file doesn't contain a valid header
+     */
+    public static WaveFileHeader read(final FileChannel channel) throws IOException {
+        final ByteBuffer window = ByteBuffer.allocate(READ_WINDOW_LEN);
+        readFully(channel, window, 0);
+        window.flip();
+        final ByteBuffer scratch = ByteBuffer.allocate(MAX_FMT_LEN);
+        final long size = channel.size();
+
+        return read(new ChunkSource() {
+            @Override
+            public ByteBuffer get(long pos, int len) throws IOException {
+                if (pos + len <= window.limit()) {
+                    ByteBuffer slice = window.duplicate();
+                    slice.position((int) pos);
+                    slice.limit((int) pos + len);
+                    return slice.slice().order(ByteOrder.LITTLE_ENDIAN);
+                }
+                scratch.clear();
+                scratch.limit(len);
+                readFully(channel, scratch, pos);
+                scratch.flip();
+                return scratch.order(ByteOrder.LITTLE_ENDIAN);
+            }
+
+            @Override
+            public long size() {
+                return size;
+            }
+        });
+    }
+
+    /** Random access to the bytes of a RIFF file */
+    private interface ChunkSource {
+        /**
+         * Get up to len bytes at the given position. The returned buffer
+         * is only valid until the next call.
+         */
+        ByteBuffer get(long pos, int len) throws IOException;
+
+        long size();
+    }
+
+    private static WaveFileHeader read(ChunkSource src) throws IOException {
+        ByteBuffer riff = src.get(0, 12);
+        if (riff.remaining() < 12 || !readId(riff).equals("RIFF")) {
+            throw new IOException("Not a RIFF file");
+        }
+        riff.getInt(); // size
+        if (!readId(riff).equals("WAVE")) {
+            throw new IOException("Not a WAVE file");
+        }
+
+        Builder builder = new Builder();
+        boolean haveFmt = false;
+        boolean haveFact = false;
+        boolean haveData = false;
+        long pos = 12;
+        while (pos + 8 <= src.size()) {
+            ByteBuffer chunkHeader = src.get(pos, 8);
+            String id = readId(chunkHeader);
+            long size = chunkHeader.getInt() & 0xffffffffL;
+            RiffChunk chunk = new RiffChunk(id, pos + 8, size);
+            builder.chunk(chunk);
+
+            if (id.equals("fmt ") && !haveFmt) {
+                readFmt(src.get(chunk.getOffset(), (int) Math.min(size, MAX_FMT_LEN)), builder);
+                haveFmt = true;
+            }
+            else if (id.equals("fact") && !haveFact && size >= 4) {
+                builder.numSamples(src.get(chunk.getOffset(), 4).getInt());
+                haveFact = true;
+            }
+            else if (id.equals("data") && !haveData) {
+                builder.dataOffset(chunk.getOffset());
+                builder.dataSize((int) Math.min(size, Integer.MAX_VALUE));
+                haveData = true;
+            }
+            // chunks are word aligned
+            pos = chunk.getOffset() + size + (size & 1);
+        }
+
+        if (!haveFmt || !haveData) {
+            throw new IOException("Missing 'fmt ' or 'data' chunk");
+        }
+        return builder.build();
+    }
+
+    private static void readFmt(ByteBuffer buffer, Builder builder) throws IOException {
+        if (buffer.remaining() < 16) {
+            throw new IOException("'fmt ' chunk too short");
+        }
+        int formatCode = buffer.getShort() & 0xffff;
         builder.channels(buffer.getShort());
         builder.sampleRate(buffer.getInt());
         buffer.getInt(); // byte rate
-        buffer.getShort(); // frame size
+        builder.blockAlign(buffer.getShort());
         builder.bitDepth(buffer.getShort());
-        buffer.getInt(); // 'data'
-        builder.dataSize(buffer.getInt());
-        return builder.build();
+        if (formatCode == Format.IMA_ADPCM.code() && buffer.remaining() >= 4) {
+            buffer.getShort(); // extension size
+            builder.samplesPerBlock(buffer.getShort() & 0xffff);
+        }
+        else if (formatCode == FORMAT_EXTENSIBLE && buffer.remaining() >= 24) {
+            buffer.getShort(); // extension size
+            buffer.getShort(); // valid bits per sample
+            buffer.getInt(); // channel mask
+            // the first two bytes of the sub format GUID are the format code
+            formatCode = buffer.getShort() & 0xffff;
+        }
+        builder.format(Format.fromShort((short) formatCode));
+    }
+
+    private static String readId(ByteBuffer buffer) {
+        char[] id = new char[4];
+        for (int i = 0; i < id.length; i++) {
+            id[i] = (char) (buffer.get() & 0xff);
+        }
+        return new String(id);
+    }
+
+    /** Fill buffer from the channel, or until end of file */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long pos)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, pos);
+            if (read < 0)
+                break;
+            pos += read;
+        }
     }
 
     public ByteBuffer asByteBuffer() {
-        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LEN);
+        ByteBuffer buffer = ByteBuffer.allocate(getHeaderLength());
         buffer.order(ByteOrder.LITTLE_ENDIAN);
         for (byte b : "RIFF".getBytes()) { buffer.put(b); }      // 00: RIFF
-        buffer.putInt(HEADER_LEN + audioDataSize - 8);           // 04: total size - 8
+        buffer.putInt(getHeaderLength() + audioDataSize - 8);    // 04: total size - 8
         for (byte b : "WAVE".getBytes()) { buffer.put(b); }      // 08: WAVE
         for (byte b : "fmt ".getBytes()) { buffer.put(b); }      // 12: fmt
-        buffer.putInt(16);                                       // 16: length of 'fmt' section - always 16
+        buffer.putInt(isCompressed() ? 20 : 16);                 // 16: length of 'fmt' section
         buffer.putShort((short) format.code());                  // 20: format
         buffer.putShort(numChannels);                            // 22: num channels
         buffer.putInt(sampleRate);                               // 24: sample rate
         buffer.putInt(getByteRate());                            // 28: byte rate
-        buffer.putShort(getFrameSize());                         // 32: frame size
+        buffer.putShort(blockAlign);                             // 32: frame / block size
         buffer.putShort(bitDepth);                               // 34: bit depth
-        for (byte b : "data".getBytes()) { buffer.put(b); }      // 36: data
-        buffer.putInt(audioDataSize);                            // 40: audio data size
+        if (isCompressed()) {
+            buffer.putShort((short) 2);                          // 36: extension size
+            buffer.putShort((short) samplesPerBlock);            // 38: samples per block
+            for (byte b : "fact".getBytes()) { buffer.put(b); }  // 40: fact
+            buffer.putInt(4);                                    // 44: length of 'fact' section
+            buffer.putInt(numSamples);                           // 48: samples per channel
+        }
+        for (byte b : "data".getBytes()) { buffer.put(b); }      // 36/52: data
+        buffer.putInt(audioDataSize);                            // 40/56: audio data size
         // flip buffer - now ready for reading (?)
         buffer.flip();
         return buffer;
     }
 
+    /** Get the length of the header written by {@link #asByteBuffer()} */
+    public int getHeaderLength() {
+        return isCompressed() ? ADPCM_HEADER_LEN : HEADER_LEN;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
     public int getNumChannels() {
         return numChannels;
     }
@@ -115,10 +353,26 @@ class WaveFileHeader {
         return bitDepth;
     }
 
+    /** Get the number of samples per channel, ie. the number of frames */
     public int getNumSamples() {
         return numSamples;
     }
 
+    /** Get the number of bytes per frame, or per block for compressed formats */
+    public int getBlockAlign() {
+        return blockAlign;
+    }
+
+    /** Get the number of samples per block, for compressed formats */
+    public int getSamplesPerBlock() {
+        return samplesPerBlock;
+    }
+
+    /** Returns true if the audio data is in blocks of compressed samples */
+    public boolean isCompressed() {
+        return format == Format.IMA_ADPCM;
+    }
+
     /**
      * Get the size of the audio data, in bytes
      */
@@ -126,10 +380,42 @@ class WaveFileHeader {
         return audioDataSize;
     }
 
+    /** Get the offset in the file of the first byte of audio data */
+    public long getDataOffset() {
+        return dataOffset;
+    }
+
+    /** Get all chunks in the file, in file order */
+    public List<RiffChunk> getChunks() {
+        return chunks;
+    }
+
+    /**
+     * Get the first chunk with the given id.
+     *
+     * @return the chunk, or null if there is no such chunk
+     */
+    public RiffChunk getChunk(String id) {
+        return chunkIndex.get(id);
+    }
+
     private int getByteRate() {
+        if (isCompressed()) {
+            return samplesPerBlock > 0
+                    ? (int) ((long) sampleRate * blockAlign / samplesPerBlock) : 0;
+        }
         return sampleRate * numChannels * bitDepth / 8;
     }
 
+    /** Number of samples contained in the given number of bytes of blocks */
+    private int samplesInBlocks(int numBytes) {
+        if (blockAlign <= 0)
+            return 0;
+        int fullBlocks = numBytes / blockAlign;
+        int partialBlockSamples = ImaAdpcmCodec.samplesInBlock(numBytes % blockAlign);
+        return fullBlocks * samplesPerBlock + partialBlockSamples;
+    }
+
     private short getFrameSize() {
         return (short) (numChannels * bitDepth / 8);
     }
@@ -165,15 +451,35 @@ class WaveFileHeader {
         assertIsTestHeader(header);
     }
 
-    private static void readSelfTest() {
+    private static void readSelfTest() throws IOException {
         WaveFileHeader header = buildTestHeader();
         WaveFileHeader header2 = WaveFileHeader.read(header.asByteBuffer());
         assertIsTestHeader(header2);
     }
 
-    public static void main(String[] args) {
+    private static void adpcmReadSelfTest() throws IOException {
+        WaveFileHeader header = new Builder()
+                .format(Format.IMA_ADPCM)
+                .bitDepth(4)
+                .channels(1)
+                .sampleRate(22050)
+                .blockAlign(512)
+                .samplesPerBlock(1017)
+                .numSamples(2000)
+                .dataSize(1024)
+                .build();
+        WaveFileHeader header2 = WaveFileHeader.read(header.asByteBuffer());
+        myAssert(header2.format == Format.IMA_ADPCM);
+        myAssert(header2.blockAlign == 512);
+        myAssert(header2.samplesPerBlock == 1017);
+        myAssert(header2.numSamples == 2000);
+        myAssert(header2.dataOffset == ADPCM_HEADER_LEN);
+    }
+
+    public static void main(String[] args) throws IOException {
         buildTest();
         readSelfTest();
+        adpcmReadSelfTest();
         System.out.println("tests passed");
     }
 }
@@ -0,0 +1,58 @@
+package aho.uozu.audio.wav;
+
+/**
+ * Summary of a wave file, as returned by {@link WaveFile#probe(String)}.
+ */
+public class WaveFileInfo {
+    private final Format format;
+    private final int numFrames;
+    private final int sampleRate;
+    private final int numChannels;
+    private final int bitDepth;
+
+    /**
+     * Describe audio from a source other than a wave file header, such as
+     * a recording in another container that decodes to the given format.
+     */
+    public WaveFileInfo(Format format, int numFrames, int sampleRate,
+                        int numChannels, int bitDepth) {
+        this.format = format;
+        this.numFrames = numFrames;
+        this.sampleRate = sampleRate;
+        this.numChannels = numChannels;
+        this.bitDepth = bitDepth;
+    }
+
+    /**
+     * Get the audio format.
+     *
+     * @return the format, or null if the format is not one known by {@link Format}
+     */
+    public Format getFormat() {
+        return format;
+    }
+
+    public int getNumFrames() {
+        return numFrames;
+    }
+
+    /** Get sample rate in Hertz */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getNumChannels() {
+        return numChannels;
+    }
+
+    public int getBitDepth() {
+        return bitDepth;
+    }
+
+    /** Get duration in milliseconds */
+    public long getDurationMs() {
+        if (sampleRate <= 0)
+            return 0;
+        return numFrames * 1000L / sampleRate;
+    }
+}
@@ -0,0 +1,293 @@
+package aho.uozu.audio.wav;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Pull-style reader for 'WAVE' files. Audio is decoded in fixed size
+ * chunks straight from the file into caller-supplied buffers, so a
+ * recording never has to be held in memory all at once.
+ *
+ * Header metadata is available as soon as the reader is opened.
+ * Any encoding supported by {@link PcmCodec} can be read, with any number
+ * of channels, as well as mono {@link Format#IMA_ADPCM}. Frames are always
+ * returned as 16 bit mono; multi-channel files are mixed down a chunk at
+ * a time as they are read.
+ */
+public class WaveFileReader implements Closeable {
+
+    /** Size of the reusable decode buffer */
+    private static final int CHUNK_SIZE_BYTES = 8192;
+
+    private final FileInputStream stream;
+    private final FileChannel channel;
+    private final WaveFileHeader header;
+    private final int frameSize;
+    /** True if no conversion is needed */
+    private final boolean isMono16;
+
+    /** Block decoder, or null for PCM */
+    private final ImaAdpcmCodec adpcm;
+    /** Last decoded block, for reads that don't end on a block boundary */
+    private final short[] decodedBlock;
+    private int decodedPos;
+    private int decodedLen;
+    /** Compressed frames not yet decoded */
+    private int framesRemaining;
+
+    /** Reused for every chunk read from the channel */
+    private final ByteBuffer chunk;
+    /** 16 bit view of {@link #chunk}, for files that need no conversion */
+    private final ShortBuffer chunkSamples;
+
+    /** Audio bytes not yet read from the data chunk */
+    private long bytesRemaining;
+
+    /**
+     * Open the given wave file and read its header.
+     *
+     * @throws IOException if the file can't be read, or is in an
+     *                     unsupported format
+     */
+    public WaveFileReader(String path) throws IOException {
+        stream = new FileInputStream(new File(path));
+        channel = stream.getChannel();
+        try {
+            header = WaveFileHeader.read(channel);
+            if (!isSupported(header)) {
+                throw new IOException("Unsupported wave format: " + header.getFormat() + ", "
+                        + header.getNumChannels() + " channel(s), "
+                        + header.getBitDepth() + " bit");
+            }
+            channel.position(header.getDataOffset());
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        frameSize = header.getNumChannels() * header.getBitDepth() / 8;
+        isMono16 = header.getFormat() == Format.PCM && header.getBitDepth() == 16
+                && header.getNumChannels() == 1;
+        bytesRemaining = header.getAudioDataSize();
+
+        int chunkSize = CHUNK_SIZE_BYTES;
+        if (header.isCompressed()) {
+            adpcm = new ImaAdpcmCodec();
+            decodedBlock = new short[header.getSamplesPerBlock()];
+            framesRemaining = header.getNumSamples();
+            // whole blocks only
+            chunkSize = Math.max(chunkSize - chunkSize % header.getBlockAlign(),
+                    header.getBlockAlign());
+        }
+        else {
+            adpcm = null;
+            decodedBlock = null;
+        }
+        chunk = ByteBuffer.allocateDirect(chunkSize);
+        chunk.order(ByteOrder.LITTLE_ENDIAN);
+        chunkSamples = chunk.asShortBuffer();
+        // nothing buffered yet
+        chunk.limit(0);
+    }
+
+    private static boolean isSupported(WaveFileHeader header) {
+        if (header.isCompressed()) {
+            return header.getNumChannels() == 1 && header.getBlockAlign() > 0
+                    && header.getSamplesPerBlock() > 0;
+        }
+        return PcmCodec.isSupported(header.getFormat(), header.getBitDepth())
+                && header.getNumChannels() >= 1;
+    }
+
+    /**
+     * Read up to len frames into the given buffer, converted to 16 bit mono.
+     *
+     * @param dst buffer to read frames into
+     * @param off index in dst of the first frame to write
+     * @param len maximum number of frames to read
+     * @return number of frames read, or -1 if the end of the audio data
+     *         has been reached
+     */
+    public int readFrames(short[] dst, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len > dst.length)
+            throw new IndexOutOfBoundsException();
+        if (adpcm != null)
+            return readAdpcmFrames(dst, off, len);
+        if (bytesRemaining < frameSize)
+            return len == 0 ? 0 : -1;
+
+        int framesRead = 0;
+        while (framesRead < len && bytesRemaining > 0) {
+            long wanted = Math.min((long) (len - framesRead) * frameSize, bytesRemaining);
+            int chunkBytes = (int) Math.min(wanted, chunk.capacity());
+            chunkBytes -= chunkBytes % frameSize;
+            if (chunkBytes == 0) {
+                // a partial frame at the end of the data is dropped
+                bytesRemaining = 0;
+                break;
+            }
+
+            chunk.clear();
+            chunk.limit(chunkBytes);
+            boolean truncated = false;
+            while (chunk.hasRemaining()) {
+                if (channel.read(chunk) < 0) {
+                    truncated = true;
+                    break;
+                }
+            }
+
+            int frames = chunk.position() / frameSize;
+            if (isMono16) {
+                chunkSamples.clear();
+                chunkSamples.get(dst, off + framesRead, frames);
+            }
+            else {
+                chunk.flip();
+                PcmCodec.toMonoShorts(chunk, header.getFormat(), header.getBitDepth(),
+                        header.getNumChannels(), dst, off + framesRead, frames);
+            }
+            framesRead += frames;
+            // a truncated file ends wherever the data runs out
+            bytesRemaining = truncated ? 0 : bytesRemaining - chunkBytes;
+        }
+        return framesRead;
+    }
+
+    private int readAdpcmFrames(short[] dst, int off, int len) throws IOException {
+        if (framesRemaining == 0 && decodedPos == decodedLen)
+            return len == 0 ? 0 : -1;
+
+        int framesRead = 0;
+        while (framesRead < len) {
+            if (decodedPos < decodedLen) {
+                int n = Math.min(len - framesRead, decodedLen - decodedPos);
+                System.arraycopy(decodedBlock, decodedPos, dst, off + framesRead, n);
+                decodedPos += n;
+                framesRead += n;
+            }
+            else if (framesRemaining == 0 || !chunkHasBlock()) {
+                break;
+            }
+            else if (len - framesRead >= Math.min(decodedBlock.length, framesRemaining)) {
+                // whole block wanted - decode straight into dst
+                framesRead += decodeBlock(dst, off + framesRead);
+            }
+            else {
+                decodedLen = decodeBlock(decodedBlock, 0);
+                decodedPos = 0;
+            }
+        }
+        return framesRead;
+    }
+
+    /** Decode the next block in the chunk buffer */
+    private int decodeBlock(short[] dst, int off) {
+        int blockLen = Math.min(header.getBlockAlign(), chunk.remaining());
+        int frames = adpcm.decodeBlock(chunk, blockLen, dst, off,
+                Math.min(decodedBlock.length, framesRemaining));
+        // a partial block at the end of the file holds all remaining frames
+        framesRemaining = blockLen < header.getBlockAlign() ? 0 : framesRemaining - frames;
+        return frames;
+    }
+
+    /**
+     * Returns true if the chunk buffer holds at least the start of a
+     * block, refilling it from the channel if necessary.
+     */
+    private boolean chunkHasBlock() throws IOException {
+        if (chunk.hasRemaining())
+            return true;
+        chunk.clear();
+        if (bytesRemaining < chunk.capacity())
+            chunk.limit((int) bytesRemaining);
+        while (chunk.hasRemaining()) {
+            if (channel.read(chunk) < 0) {
+                bytesRemaining = chunk.position();
+                break;
+            }
+        }
+        bytesRemaining -= chunk.position();
+        chunk.flip();
+        if (!chunk.hasRemaining()) {
+            // truncated file
+            framesRemaining = 0;
+        }
+        return chunk.hasRemaining();
+    }
+
+    /**
+     * Move to the given frame, so the next read starts there. For PCM
+     * files only the file position is changed. For compressed files, the
+     * block containing the frame is read and decoded.
+     *
+     * @param frameIdx index of the frame to move to, in [0, getNumFrames()]
+     */
+    public void seekFrame(int frameIdx) throws IOException {
+        if (frameIdx < 0 || frameIdx > getNumFrames())
+            throw new IndexOutOfBoundsException("Frame " + frameIdx);
+        if (adpcm == null) {
+            long offset = (long) frameIdx * frameSize;
+            channel.position(header.getDataOffset() + offset);
+            bytesRemaining = header.getAudioDataSize() - offset;
+            return;
+        }
+
+        int block = frameIdx / decodedBlock.length;
+        long offset = (long) block * header.getBlockAlign();
+        channel.position(header.getDataOffset() + offset);
+        bytesRemaining = Math.max(header.getAudioDataSize() - offset, 0);
+        framesRemaining = header.getNumSamples() - block * decodedBlock.length;
+        chunk.limit(0);
+        decodedPos = 0;
+        decodedLen = 0;
+
+        int skip = frameIdx % decodedBlock.length;
+        if (skip > 0 && chunkHasBlock()) {
+            decodedLen = decodeBlock(decodedBlock, 0);
+            decodedPos = Math.min(skip, decodedLen);
+        }
+    }
+
+    /** Get the audio format of the file */
+    public Format getFormat() {
+        return header.getFormat();
+    }
+
+    /** Get the number of channels in the file. Frames are always read as mono. */
+    public int getNumChannels() {
+        return header.getNumChannels();
+    }
+
+    /** Get the bit depth of the file. Frames are always read as 16 bit. */
+    public int getBitsPerSample() {
+        return header.getBitDepth();
+    }
+
+    public int getSampleRate() {
+        return header.getSampleRate();
+    }
+
+    /** Get the total number of frames in the file */
+    public int getNumFrames() {
+        return header.getNumSamples();
+    }
+
+    /** Get the number of frames not yet read */
+    public int getFramesRemaining() {
+        if (adpcm != null)
+            return framesRemaining + decodedLen - decodedPos;
+        return (int) (bytesRemaining / frameSize);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        stream.close();
+    }
+}
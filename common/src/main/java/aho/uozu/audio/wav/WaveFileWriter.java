@@ -0,0 +1,288 @@
+package aho.uozu.audio.wav;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Append-only writer for 'WAVE' files. Frames can be written in blocks
+ * as they become available; they are streamed to the file through a
+ * small reusable buffer, so memory use doesn't depend on the length of
+ * the recording. The header sizes are filled in when the writer is closed.
+ *
+ * Writes 16 bit PCM, or mono {@link Format#IMA_ADPCM} wave files.
+ */
+public class WaveFileWriter implements Closeable {
+
+    /** Size of the reusable encode buffer */
+    private static final int CHUNK_SIZE_BYTES = 8192;
+    private static final int BIT_DEPTH = 16;
+    private static final int ADPCM_BIT_DEPTH = 4;
+
+    private final FileOutputStream stream;
+    private final FileChannel channel;
+    private final Format format;
+    private final int sampleRate;
+    private final int numChannels;
+
+    /** Block encoder, or null for PCM */
+    private final ImaAdpcmCodec adpcm;
+    private final int blockAlign;
+    /** Samples waiting for a full block before they can be encoded */
+    private final short[] pendingBlock;
+    private int pendingLen;
+
+    /** Reused for every chunk written to the channel */
+    private final ByteBuffer chunk;
+    /** 16 bit view of {@link #chunk} */
+    private final ShortBuffer chunkSamples;
+
+    /** Audio bytes written so far */
+    private long audioDataSize;
+    private long numFrames;
+    private boolean closed;
+
+    /**
+     * Create a new wave file at the given path, overwriting any existing file.
+     *
+     * @param sampleRate sample rate in Hertz
+     * @param numChannels number of interleaved channels per frame
+     */
+    public WaveFileWriter(String path, int sampleRate, int numChannels) throws IOException {
+        this(path, sampleRate, numChannels, Format.PCM);
+    }
+
+    /**
+     * Create a new wave file at the given path, overwriting any existing file.
+     *
+     * @param sampleRate sample rate in Hertz
+     * @param numChannels number of interleaved channels per frame
+     * @param format {@link Format#PCM}, or {@link Format#IMA_ADPCM} for
+     *               mono audio compressed to 4 bits per sample
+     * @throws IllegalArgumentException if the format is unsupported
+     */
+    public WaveFileWriter(String path, int sampleRate, int numChannels, Format format)
+            throws IOException {
+        if (format == Format.IMA_ADPCM) {
+            if (numChannels != 1)
+                throw new IllegalArgumentException("IMA ADPCM is only supported for mono");
+            adpcm = new ImaAdpcmCodec();
+            blockAlign = ImaAdpcmCodec.blockAlignFor(sampleRate);
+            pendingBlock = new short[ImaAdpcmCodec.samplesPerBlock(blockAlign)];
+        }
+        else if (format == Format.PCM) {
+            adpcm = null;
+            blockAlign = 0;
+            pendingBlock = null;
+        }
+        else {
+            throw new IllegalArgumentException("Unsupported format: " + format);
+        }
+        this.format = format;
+        this.sampleRate = sampleRate;
+        this.numChannels = numChannels;
+
+        chunk = ByteBuffer.allocateDirect(CHUNK_SIZE_BYTES);
+        chunk.order(ByteOrder.LITTLE_ENDIAN);
+        chunkSamples = chunk.asShortBuffer();
+
+        stream = new FileOutputStream(new File(path));
+        channel = stream.getChannel();
+        // placeholder header, patched on close
+        writeFully(buildHeader().asByteBuffer());
+    }
+
+    /**
+     * Append frames to the file.
+     *
+     * @param src buffer containing interleaved frames
+     * @param off index in src of the first frame to write
+     * @param len number of frames to write
+     */
+    public void writeFrames(short[] src, int off, int len) throws IOException {
+        if (closed)
+            throw new IOException("Writer is closed");
+        int offSamples = off * numChannels;
+        int lenSamples = len * numChannels;
+        if (offSamples < 0 || lenSamples < 0 || offSamples + lenSamples > src.length)
+            throw new IndexOutOfBoundsException();
+        if (audioDataSize + (long) lenSamples * 2 > Integer.MAX_VALUE - WaveFileHeader.HEADER_LEN)
+            throw new IOException("Wave file size limit exceeded");
+
+        if (adpcm != null) {
+            writeAdpcm(src, off, len);
+            numFrames += len;
+            return;
+        }
+        int written = 0;
+        while (written < lenSamples) {
+            int samples = Math.min(lenSamples - written, chunkSamples.capacity());
+            chunkSamples.clear();
+            chunkSamples.put(src, offSamples + written, samples);
+            chunk.clear();
+            chunk.limit(samples * 2);
+            writeFully(chunk);
+            written += samples;
+        }
+        audioDataSize += lenSamples * 2;
+        numFrames += len;
+    }
+
+    /**
+     * Append the 16 bit samples between the position and limit of src, in
+     * src's byte order, to the file. The position is advanced past them.
+     * Little-endian PCM is written to the file as it is, so a direct
+     * buffer goes to the channel without being copied onto the heap.
+     *
+     * @param src interleaved frames
+     * @throws IllegalArgumentException if src doesn't hold whole frames
+     */
+    public void writeFrames(ByteBuffer src) throws IOException {
+        if (closed)
+            throw new IOException("Writer is closed");
+        int lenSamples = src.remaining() / 2;
+        if (src.remaining() % 2 != 0 || lenSamples % numChannels != 0)
+            throw new IllegalArgumentException("Partial frame");
+        if (audioDataSize + (long) lenSamples * 2 > Integer.MAX_VALUE - WaveFileHeader.HEADER_LEN)
+            throw new IOException("Wave file size limit exceeded");
+        int len = lenSamples / numChannels;
+
+        if (adpcm == null && src.order() == ByteOrder.LITTLE_ENDIAN) {
+            writeFully(src);
+            audioDataSize += lenSamples * 2;
+            numFrames += len;
+            return;
+        }
+        ShortBuffer samples = src.asShortBuffer();
+        if (adpcm != null) {
+            // collect whole blocks for the encoder
+            while (samples.hasRemaining()) {
+                int n = Math.min(samples.remaining(), pendingBlock.length - pendingLen);
+                samples.get(pendingBlock, pendingLen, n);
+                pendingLen += n;
+                if (pendingLen == pendingBlock.length) {
+                    encodeBlock(pendingBlock, 0, pendingLen);
+                    pendingLen = 0;
+                }
+            }
+        }
+        else {
+            // swap to little-endian through the chunk buffer
+            while (samples.hasRemaining()) {
+                ShortBuffer part = samples.duplicate();
+                part.limit(part.position() + Math.min(part.remaining(), chunkSamples.capacity()));
+                chunkSamples.clear();
+                chunkSamples.put(part);
+                chunk.clear();
+                chunk.limit(chunkSamples.position() * 2);
+                writeFully(chunk);
+                samples.position(part.position());
+            }
+            audioDataSize += lenSamples * 2;
+        }
+        src.position(src.limit());
+        numFrames += len;
+    }
+
+    /**
+     * Encode mono samples a block at a time. Encoded blocks are collected
+     * in the chunk buffer, which is written out when full.
+     */
+    private void writeAdpcm(short[] src, int off, int len) throws IOException {
+        int samplesPerBlock = pendingBlock.length;
+        int i = 0;
+        while (i < len) {
+            if (pendingLen == 0 && len - i >= samplesPerBlock) {
+                // whole block available - encode straight from src
+                encodeBlock(src, off + i, samplesPerBlock);
+                i += samplesPerBlock;
+            }
+            else {
+                int n = Math.min(len - i, samplesPerBlock - pendingLen);
+                System.arraycopy(src, off + i, pendingBlock, pendingLen, n);
+                pendingLen += n;
+                i += n;
+                if (pendingLen == samplesPerBlock) {
+                    encodeBlock(pendingBlock, 0, samplesPerBlock);
+                    pendingLen = 0;
+                }
+            }
+        }
+    }
+
+    private void encodeBlock(short[] src, int off, int len) throws IOException {
+        if (chunk.remaining() < blockAlign) {
+            flushChunk();
+        }
+        adpcm.encodeBlock(src, off, len, chunk, blockAlign);
+        audioDataSize += blockAlign;
+    }
+
+    private void flushChunk() throws IOException {
+        chunk.flip();
+        writeFully(chunk);
+        chunk.clear();
+    }
+
+    /** Get the number of frames written so far */
+    public int getNumFrames() {
+        return (int) numFrames;
+    }
+
+    /**
+     * Fill in the header sizes and close the file. Subsequent calls
+     * have no effect.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            if (adpcm != null) {
+                if (pendingLen > 0) {
+                    encodeBlock(pendingBlock, 0, pendingLen);
+                    pendingLen = 0;
+                }
+                flushChunk();
+            }
+            ByteBuffer header = buildHeader().asByteBuffer();
+            long pos = 0;
+            while (header.hasRemaining()) {
+                pos += channel.write(header, pos);
+            }
+        } finally {
+            channel.close();
+            stream.close();
+        }
+    }
+
+    private WaveFileHeader buildHeader() {
+        WaveFileHeader.Builder builder = new WaveFileHeader.Builder()
+                .sampleRate(sampleRate)
+                .dataSize((int) audioDataSize)
+                .channels(numChannels)
+                .format(format);
+        if (adpcm != null) {
+            builder.bitDepth(ADPCM_BIT_DEPTH)
+                    .blockAlign(blockAlign)
+                    .samplesPerBlock(pendingBlock.length)
+                    .numSamples((int) numFrames);
+        }
+        else {
+            builder.bitDepth(BIT_DEPTH);
+        }
+        return builder.build();
+    }
+
+    private void writeFully(ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+}
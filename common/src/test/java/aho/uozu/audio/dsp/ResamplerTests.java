@@ -0,0 +1,108 @@
+package aho.uozu.audio.dsp;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+public class ResamplerTests {
+
+    @Test
+    public void outputLengthMatchesRatio() {
+        for (Resampler.Quality quality : Resampler.Quality.values()) {
+            for (double ratio : new double[] { 0.333, 0.5, 1.0, 1.5, 3.0 }) {
+                short[] out = resample(new short[10000], 22050 * ratio, 22050, quality);
+                Assert.assertEquals(quality + " " + ratio, Math.ceil(10000 / ratio), out.length, 1);
+            }
+        }
+    }
+
+    @Test
+    public void unityRatioPreservesSignal() {
+        short[] in = sine(4000, 440, 22050, 10000);
+        short[] out = resample(in, 22050, 22050, Resampler.Quality.HIGH);
+        Assert.assertEquals(in.length, out.length);
+        // ignore the edges, where the filter sees silence
+        Assert.assertTrue(snrDb(in, out, 100) > 60);
+    }
+
+    @Test
+    public void upsampledToneKeepsItsPitch() {
+        short[] in = sine(1000, 440, 8000, 10000);
+        for (Resampler.Quality quality : Resampler.Quality.values()) {
+            short[] out = resample(in, 8000, 44100, quality);
+            short[] expected = sine(out.length, 440, 44100, 10000);
+            Assert.assertTrue(quality.toString(), snrDb(expected, out, 500) > 30);
+        }
+    }
+
+    @Test
+    public void speedChangeShiftsPitch() {
+        // a clip played at 1.5x speed, rendered at the original rate
+        short[] in = sine(22050, 440, 22050, 10000);
+        short[] out = resample(in, 22050 * 1.5, 22050, Resampler.Quality.MEDIUM);
+        short[] expected = sine(out.length, 660, 22050, 10000);
+        Assert.assertTrue(snrDb(expected, out, 500) > 30);
+    }
+
+    @Test
+    public void downsamplingRemovesContentAboveNyquist() {
+        // 15 kHz is above the 11025 Hz Nyquist frequency of the output
+        short[] in = sine(44100, 15000, 44100, 10000);
+        short[] out = resample(in, 44100, 22050, Resampler.Quality.HIGH);
+        double peak = 0;
+        for (int i = 1000; i < out.length - 1000; i++) {
+            peak = Math.max(peak, Math.abs(out[i]));
+        }
+        Assert.assertTrue("peak " + peak, peak < 100);
+    }
+
+    @Test
+    public void blockSizeDoesNotChangeOutput() {
+        short[] in = sine(30000, 440, 22050, 10000);
+        Resampler resampler = new Resampler(22050 * 0.7, 22050, Resampler.Quality.MEDIUM);
+        short[] whole = resample(in, 22050 * 0.7, 22050, Resampler.Quality.MEDIUM);
+
+        short[] blocks = new short[whole.length + 10];
+        int len = 0;
+        for (int i = 0; i < in.length; i += 333) {
+            len += resampler.process(in, i, Math.min(333, in.length - i), blocks, len);
+        }
+        len += resampler.flush(blocks, len);
+        Assert.assertEquals(whole.length, len);
+        for (int i = 0; i < len; i++) {
+            Assert.assertEquals(whole[i], blocks[i]);
+        }
+    }
+
+    private static short[] resample(short[] in, double inRate, double outRate,
+                                    Resampler.Quality quality) {
+        Resampler resampler = new Resampler(inRate, outRate, quality);
+        short[] out = new short[resampler.getMaxOutputLength(in.length)
+                + resampler.getMaxOutputLength(0)];
+        int len = resampler.process(in, 0, in.length, out, 0);
+        len += resampler.flush(out, len);
+        return Arrays.copyOf(out, len);
+    }
+
+    private static short[] sine(int len, double freq, double sampleRate, int amplitude) {
+        short[] samples = new short[len];
+        for (int i = 0; i < len; i++) {
+            samples[i] = (short) (amplitude * Math.sin(2 * Math.PI * freq * i / sampleRate));
+        }
+        return samples;
+    }
+
+    /** Signal to noise ratio, ignoring margin samples at each end */
+    private static double snrDb(short[] signal, short[] copy, int margin) {
+        double signalPower = 0;
+        double noisePower = 0;
+        int len = Math.min(signal.length, copy.length);
+        for (int i = margin; i < len - margin; i++) {
+            double noise = copy[i] - signal[i];
+            signalPower += (double) signal[i] * signal[i];
+            noisePower += noise * noise;
+        }
+        return 10 * Math.log10(signalPower / noisePower);
+    }
+}
@@ -0,0 +1,137 @@
+package aho.uozu.audio.lossless;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class LosslessCodecTests {
+
+    private static final String TEST_FILE_PATH = "/tmp/asdf" + LosslessFormat.EXTENSION;
+
+    @Test
+    public void roundTripIsExact() throws IOException {
+        short[] audio = testSignal(50000);
+        writeInBlocks(audio, null);
+
+        LosslessReader reader = new LosslessReader(TEST_FILE_PATH);
+        Assert.assertEquals(22050, reader.getSampleRate());
+        Assert.assertEquals(audio.length, reader.getNumFrames());
+        short[] audioIn = new short[audio.length];
+        Assert.assertEquals(audio.length, reader.read(0, audioIn, 0, audioIn.length));
+        reader.close();
+        Assert.assertArrayEquals(audio, audioIn);
+    }
+
+    @Test
+    public void compressesBetterThanPcm() throws IOException {
+        short[] audio = testSignal(50000);
+        writeInBlocks(audio, null);
+        Assert.assertTrue(new File(TEST_FILE_PATH).length() < audio.length * 2 * 3 / 4);
+    }
+
+    @Test
+    public void extremeValuesRoundTrip() throws IOException {
+        // full scale square wave and noise, which don't predict well
+        short[] audio = new short[10000];
+        Random random = new Random(1);
+        for (int i = 0; i < audio.length; i++) {
+            audio[i] = i < 5000
+                    ? ((i / 7) % 2 == 0 ? Short.MAX_VALUE : Short.MIN_VALUE)
+                    : (short) random.nextInt();
+        }
+        writeInBlocks(audio, null);
+
+        LosslessReader reader = new LosslessReader(TEST_FILE_PATH);
+        short[] audioIn = new short[audio.length];
+        reader.read(0, audioIn, 0, audioIn.length);
+        reader.close();
+        Assert.assertArrayEquals(audio, audioIn);
+    }
+
+    @Test
+    public void parallelMatchesSerial() throws IOException {
+        short[] audio = testSignal(100000);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            writeInBlocks(audio, null);
+            byte[] serial = readBytes(TEST_FILE_PATH);
+            writeInBlocks(audio, executor);
+            Assert.assertArrayEquals(serial, readBytes(TEST_FILE_PATH));
+
+            LosslessReader reader = new LosslessReader(TEST_FILE_PATH);
+            short[] audioIn = new short[audio.length];
+            Assert.assertEquals(audio.length,
+                    reader.read(0, audioIn, 0, audioIn.length, executor));
+            reader.close();
+            Assert.assertArrayEquals(audio, audioIn);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void readRegion() throws IOException {
+        short[] audio = testSignal(30000);
+        writeInBlocks(audio, null);
+
+        LosslessReader reader = new LosslessReader(TEST_FILE_PATH);
+        short[] region = new short[9000];
+        // spans partial, whole and partial blocks
+        Assert.assertEquals(9000, reader.read(3000, region, 0, region.length));
+        for (int i = 0; i < region.length; i++) {
+            Assert.assertEquals(audio[3000 + i], region[i]);
+        }
+        Assert.assertEquals(100, reader.read(audio.length - 100, region, 5, 500));
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(audio[audio.length - 100 + i], region[5 + i]);
+        }
+        Assert.assertEquals(0, reader.read(audio.length, region, 0, 10));
+        reader.close();
+    }
+
+    @Test
+    public void emptyFile() throws IOException {
+        writeInBlocks(new short[0], null);
+        LosslessReader reader = new LosslessReader(TEST_FILE_PATH);
+        Assert.assertEquals(0, reader.getNumFrames());
+        Assert.assertEquals(0, reader.read(0, new short[10], 0, 10));
+        reader.close();
+    }
+
+    private static void writeInBlocks(short[] audio, ExecutorService executor) throws IOException {
+        LosslessWriter writer = new LosslessWriter(TEST_FILE_PATH, 22050, executor);
+        for (int i = 0; i < audio.length; i += 1000) {
+            writer.writeFrames(audio, i, Math.min(1000, audio.length - i));
+        }
+        Assert.assertEquals(audio.length, writer.getNumFrames());
+        writer.close();
+    }
+
+    private static byte[] readBytes(String path) throws IOException {
+        java.io.RandomAccessFile f = new java.io.RandomAccessFile(path, "r");
+        byte[] bytes = new byte[(int) f.length()];
+        f.readFully(bytes);
+        f.close();
+        return bytes;
+    }
+
+    /** Two tones with some noise, and a stretch of silence */
+    private static short[] testSignal(int len) {
+        short[] samples = new short[len];
+        Random random = new Random(0);
+        for (int i = 0; i < len; i++) {
+            if (i > len / 3 && i < len / 2)
+                continue;
+            double t = i / 22050.0;
+            samples[i] = (short) (8000 * Math.sin(2 * Math.PI * 440 * t)
+                    + 3000 * Math.sin(2 * Math.PI * 1250 * t)
+                    + random.nextInt(200) - 100);
+        }
+        return samples;
+    }
+}
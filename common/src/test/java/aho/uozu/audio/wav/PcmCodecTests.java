@@ -0,0 +1,64 @@
+package aho.uozu.audio.wav;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class PcmCodecTests {
+
+    private static final short[] SAMPLES = {
+            0, 1, -1, 256, -256, 12345, -12345, Short.MAX_VALUE, Short.MIN_VALUE };
+
+    @Test
+    public void shortsRoundTripLossless() {
+        roundTrip(Format.PCM, 16, 0);
+        roundTrip(Format.PCM, 24, 0);
+        roundTrip(Format.PCM, 32, 0);
+        roundTrip(Format.IEEE_FLOAT, 32, 0);
+    }
+
+    @Test
+    public void shortsRoundTrip8Bit() {
+        // only the top 8 bits survive
+        roundTrip(Format.PCM, 8, 255);
+    }
+
+    @Test
+    public void floatsRoundTrip() {
+        float[] floats = { 0f, 0.5f, -0.5f, -1f, 0.25f };
+        for (int bitDepth : new int[] { 8, 16, 24, 32 }) {
+            ByteBuffer bytes = ByteBuffer.allocate(floats.length * bitDepth / 8);
+            PcmCodec.fromFloats(floats, 0, floats.length, bytes, Format.PCM, bitDepth);
+            Assert.assertEquals(0, bytes.remaining());
+            bytes.flip();
+            float[] decoded = new float[floats.length];
+            PcmCodec.toFloats(bytes, Format.PCM, bitDepth, decoded, 0, floats.length);
+            Assert.assertArrayEquals(floats, decoded, 1f / 128);
+        }
+    }
+
+    @Test
+    public void positionIsAdvanced() {
+        ByteBuffer bytes = ByteBuffer.allocate(100);
+        bytes.position(10);
+        PcmCodec.fromShorts(SAMPLES, 2, 3, bytes, Format.PCM, 24);
+        Assert.assertEquals(19, bytes.position());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unsupportedEncoding() {
+        PcmCodec.toShorts(ByteBuffer.allocate(10), Format.IEEE_FLOAT, 16, new short[5], 0, 5);
+    }
+
+    private static void roundTrip(Format format, int bitDepth, int tolerance) {
+        ByteBuffer bytes = ByteBuffer.allocateDirect(SAMPLES.length * bitDepth / 8);
+        PcmCodec.fromShorts(SAMPLES, 0, SAMPLES.length, bytes, format, bitDepth);
+        bytes.flip();
+        short[] decoded = new short[SAMPLES.length];
+        PcmCodec.toShorts(bytes, format, bitDepth, decoded, 0, SAMPLES.length);
+        for (int i = 0; i < SAMPLES.length; i++) {
+            Assert.assertEquals(format + " " + bitDepth + " bit", SAMPLES[i], decoded[i], tolerance);
+        }
+    }
+}
@@ -3,7 +3,11 @@ package aho.uozu.audio.wav;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 import aho.uozu.audio.wav.WaveFile;
 
@@ -39,6 +43,337 @@ public class WaveFileTests {
         short[] audioIn = new short[audio.length];
         wavIn.getAudioData(audioIn);
         Assert.assertArrayEquals(sineWave(len_s, 440, sampleRate), audioIn);
+
+        WaveFileInfo info = WaveFile.probe(TEST_FILE_PATH);
+        Assert.assertEquals(Format.PCM, info.getFormat());
+        Assert.assertEquals(numSamples, info.getNumFrames());
+        Assert.assertEquals(sampleRate, info.getSampleRate());
+        Assert.assertEquals(len_s * 1000, info.getDurationMs());
+    }
+
+    @Test
+    public void readInChunks() throws IOException {
+        int sampleRate = 22050;
+        short[] audio = sineWave(1, 440, sampleRate);
+        new WaveFile.Builder()
+                .data(audio)
+                .sampleRate(sampleRate)
+                .bitDepth(16)
+                .channels(1)
+                .build()
+                .writeToFile(TEST_FILE_PATH);
+
+        WaveFileReader reader = new WaveFileReader(TEST_FILE_PATH);
+        Assert.assertEquals(sampleRate, reader.getSampleRate());
+        Assert.assertEquals(audio.length, reader.getNumFrames());
+
+        // odd read size, so reads don't line up with internal chunks
+        short[] audioIn = new short[audio.length];
+        int numRead = 0;
+        int result;
+        while ((result = reader.readFrames(audioIn, numRead,
+                Math.min(1001, audioIn.length - numRead))) > 0) {
+            numRead += result;
+        }
+        Assert.assertEquals(audio.length, numRead);
+        Assert.assertEquals(0, reader.getFramesRemaining());
+        Assert.assertEquals(-1, reader.readFrames(audioIn, 0, 1));
+        reader.close();
+        Assert.assertArrayEquals(audio, audioIn);
+    }
+
+    @Test
+    public void writeInBlocks() throws IOException {
+        int sampleRate = 16000;
+        short[] audio = sineWave(1, 440, sampleRate);
+
+        WaveFileWriter writer = new WaveFileWriter(TEST_FILE_PATH, sampleRate, 1);
+        int blockSize = 300;
+        for (int i = 0; i < audio.length; i += blockSize) {
+            writer.writeFrames(audio, i, Math.min(blockSize, audio.length - i));
+        }
+        Assert.assertEquals(audio.length, writer.getNumFrames());
+        writer.close();
+
+        WaveFile wavIn = WaveFile.fromFile(TEST_FILE_PATH);
+        Assert.assertEquals(sampleRate, wavIn.getSampleRate());
+        Assert.assertEquals(audio.length, wavIn.getNumFrames());
+        short[] audioIn = new short[audio.length];
+        wavIn.getAudioData(audioIn);
+        Assert.assertArrayEquals(audio, audioIn);
+    }
+
+    @Test
+    public void writeFromByteBuffers() throws IOException {
+        int sampleRate = 16000;
+        short[] audio = sineWave(1, 440, sampleRate);
+        ByteBuffer little = ByteBuffer.allocateDirect(audio.length * 2)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        little.asShortBuffer().put(audio);
+        ByteBuffer big = ByteBuffer.allocate(audio.length * 2).order(ByteOrder.BIG_ENDIAN);
+        big.asShortBuffer().put(audio);
+
+        WaveFileWriter writer = new WaveFileWriter(TEST_FILE_PATH, sampleRate, 1);
+        int half = audio.length / 2;
+        little.limit(half * 2);
+        writer.writeFrames(little);
+        Assert.assertEquals(half * 2, little.position());
+        big.position(half * 2);
+        writer.writeFrames(big);
+        Assert.assertFalse(big.hasRemaining());
+        Assert.assertEquals(audio.length, writer.getNumFrames());
+        writer.close();
+
+        WaveFile wavIn = WaveFile.fromFile(TEST_FILE_PATH);
+        short[] audioIn = new short[audio.length];
+        wavIn.getAudioData(audioIn);
+        Assert.assertArrayEquals(audio, audioIn);
+    }
+
+    @Test
+    public void readRegion() throws IOException {
+        int sampleRate = 22050;
+        short[] audio = sineWave(1, 440, sampleRate);
+        new WaveFile.Builder()
+                .data(audio)
+                .sampleRate(sampleRate)
+                .bitDepth(16)
+                .channels(1)
+                .build()
+                .writeToFile(TEST_FILE_PATH);
+
+        short[] region = new short[500];
+        Assert.assertEquals(500, WaveFile.readRegion(TEST_FILE_PATH, 20000, 500, region));
+        for (int i = 0; i < region.length; i++) {
+            Assert.assertEquals(audio[20000 + i], region[i]);
+        }
+        // past the end of the file
+        Assert.assertEquals(50, WaveFile.readRegion(TEST_FILE_PATH, audio.length - 50, 500, region));
+        Assert.assertEquals(0, WaveFile.readRegion(TEST_FILE_PATH, audio.length + 10, 500, region));
+    }
+
+    @Test
+    public void mappedRandomAccess() throws IOException {
+        int sampleRate = 22050;
+        short[] audio = sineWave(1, 440, sampleRate);
+        new WaveFile.Builder()
+                .data(audio)
+                .sampleRate(sampleRate)
+                .bitDepth(16)
+                .channels(1)
+                .build()
+                .writeToFile(TEST_FILE_PATH);
+
+        MappedWaveFile wav = new MappedWaveFile(TEST_FILE_PATH);
+        Assert.assertEquals(sampleRate, wav.getSampleRate());
+        Assert.assertEquals(audio.length, wav.getNumFrames());
+        Assert.assertEquals(audio[12345], wav.getFrame(12345));
+
+        short[] region = new short[100];
+        Assert.assertEquals(100, wav.read(1000, region, 0, 100));
+        for (int i = 0; i < region.length; i++) {
+            Assert.assertEquals(audio[1000 + i], region[i]);
+        }
+        // reads are clipped at the end of the data
+        Assert.assertEquals(50, wav.read(audio.length - 50, region, 0, 100));
+        Assert.assertEquals(audio.length, wav.getSamples().remaining());
+        wav.close();
+    }
+
+    @Test
+    public void readWithExtraChunks() throws IOException {
+        short[] audio = sineWave(1, 440, 8000);
+        // extensible 'fmt ', with LIST and (odd sized, padded) 'junk'
+        // chunks before the audio, and a trailing 'cue ' chunk
+        ByteBuffer file = ByteBuffer.allocate(200 + audio.length * 2);
+        file.order(ByteOrder.LITTLE_ENDIAN);
+        file.put("RIFF".getBytes()).putInt(0).put("WAVE".getBytes());
+        file.put("LIST".getBytes()).putInt(12).put("INFOISFT".getBytes()).putInt(0);
+        file.put("fmt ".getBytes()).putInt(40);
+        file.putShort((short) 0xFFFE).putShort((short) 1).putInt(8000).putInt(16000)
+                .putShort((short) 2).putShort((short) 16);
+        file.putShort((short) 22).putShort((short) 16).putInt(4).putShort((short) 1)
+                .put(new byte[14]);
+        file.put("junk".getBytes()).putInt(3).put(new byte[4]);
+        file.put("data".getBytes()).putInt(audio.length * 2);
+        int dataOffset = file.position();
+        for (short s : audio) {
+            file.putShort(s);
+        }
+        file.put("cue ".getBytes()).putInt(4).putInt(0);
+        file.flip();
+        FileOutputStream os = new FileOutputStream(TEST_FILE_PATH);
+        os.getChannel().write(file);
+        os.close();
+
+        RandomAccessFile raf = new RandomAccessFile(TEST_FILE_PATH, "r");
+        WaveFileHeader header = WaveFileHeader.read(raf.getChannel());
+        raf.close();
+        Assert.assertEquals(Format.PCM, header.getFormat());
+        Assert.assertEquals(dataOffset, header.getDataOffset());
+        Assert.assertEquals(5, header.getChunks().size());
+        Assert.assertEquals(4, header.getChunk("cue ").getSize());
+        Assert.assertNull(header.getChunk("fact"));
+
+        WaveFile wavIn = WaveFile.fromFile(TEST_FILE_PATH);
+        Assert.assertEquals(8000, wavIn.getSampleRate());
+        short[] audioIn = new short[audio.length];
+        wavIn.getAudioData(audioIn);
+        Assert.assertArrayEquals(audio, audioIn);
+
+        MappedWaveFile mapped = new MappedWaveFile(TEST_FILE_PATH);
+        Assert.assertEquals(audio.length, mapped.getNumFrames());
+        Assert.assertEquals(audio[0], mapped.getFrame(0));
+        mapped.close();
+    }
+
+    @Test
+    public void readOddSizedData() throws IOException {
+        // 16 bit mono, with a data chunk that ends in half a frame
+        ByteBuffer file = ByteBuffer.allocate(44 + 202);
+        file.order(ByteOrder.LITTLE_ENDIAN);
+        file.put("RIFF".getBytes()).putInt(36 + 202).put("WAVE".getBytes());
+        file.put("fmt ".getBytes()).putInt(16);
+        file.putShort((short) 1).putShort((short) 1).putInt(8000).putInt(16000)
+                .putShort((short) 2).putShort((short) 16);
+        file.put("data".getBytes()).putInt(201);
+        for (int i = 0; i < 100; i++) {
+            file.putShort((short) i);
+        }
+        file.put(new byte[2]);
+        file.flip();
+        FileOutputStream os = new FileOutputStream(TEST_FILE_PATH);
+        os.getChannel().write(file);
+        os.close();
+
+        for (int len : new int[] { 1, 7, 100, 500 }) {
+            WaveFileReader reader = new WaveFileReader(TEST_FILE_PATH);
+            short[] audioIn = new short[500];
+            int numRead = 0;
+            int result;
+            while ((result = reader.readFrames(audioIn, numRead,
+                    Math.min(len, audioIn.length - numRead))) > 0) {
+                numRead += result;
+            }
+            Assert.assertEquals(-1, result);
+            Assert.assertEquals(0, reader.getFramesRemaining());
+            reader.close();
+            Assert.assertEquals(100, numRead);
+            Assert.assertEquals(99, audioIn[99]);
+        }
+        short[] region = new short[50];
+        Assert.assertEquals(10, WaveFile.readRegion(TEST_FILE_PATH, 90, 50, region));
+        Assert.assertEquals(95, region[5]);
+    }
+
+    @Test
+    public void readMultiChannelFormats() throws IOException {
+        short[] audio = sineWave(1, 440, 8000);
+        for (Format format : new Format[] { Format.PCM, Format.IEEE_FLOAT }) {
+            for (int bitDepth : new int[] { 16, 24, 32 }) {
+                if (!PcmCodec.isSupported(format, bitDepth))
+                    continue;
+                writeStereo(TEST_FILE_PATH, audio, format, bitDepth);
+
+                WaveFileReader reader = new WaveFileReader(TEST_FILE_PATH);
+                Assert.assertEquals(2, reader.getNumChannels());
+                Assert.assertEquals(bitDepth, reader.getBitsPerSample());
+                Assert.assertEquals(audio.length, reader.getNumFrames());
+                short[] audioIn = new short[audio.length];
+                int numRead = 0;
+                int result;
+                while ((result = reader.readFrames(audioIn, numRead,
+                        Math.min(777, audioIn.length - numRead))) > 0) {
+                    numRead += result;
+                }
+                reader.close();
+                Assert.assertEquals(audio.length, numRead);
+                Assert.assertArrayEquals(format + " " + bitDepth, audio, audioIn);
+            }
+        }
+    }
+
+    @Test
+    public void adpcmRoundTrip() throws IOException {
+        int sampleRate = 22050;
+        // not a whole number of blocks
+        short[] audio = java.util.Arrays.copyOf(sineWave(1, 440, sampleRate), sampleRate - 123);
+
+        WaveFileWriter writer = new WaveFileWriter(TEST_FILE_PATH, sampleRate, 1, Format.IMA_ADPCM);
+        for (int i = 0; i < audio.length; i += 300) {
+            writer.writeFrames(audio, i, Math.min(300, audio.length - i));
+        }
+        writer.close();
+        // about a quarter of the 16 bit size
+        Assert.assertTrue(new java.io.File(TEST_FILE_PATH).length() < audio.length * 2 / 3);
+
+        WaveFileInfo info = WaveFile.probe(TEST_FILE_PATH);
+        Assert.assertEquals(Format.IMA_ADPCM, info.getFormat());
+        Assert.assertEquals(audio.length, info.getNumFrames());
+
+        WaveFileReader reader = new WaveFileReader(TEST_FILE_PATH);
+        Assert.assertEquals(audio.length, reader.getNumFrames());
+        short[] audioIn = new short[audio.length];
+        int numRead = 0;
+        int result;
+        while ((result = reader.readFrames(audioIn, numRead,
+                Math.min(777, audioIn.length - numRead))) > 0) {
+            numRead += result;
+        }
+        Assert.assertEquals(audio.length, numRead);
+        Assert.assertEquals(-1, reader.readFrames(audioIn, 0, 1));
+        // lossy, but should be well above 8 bit quality
+        Assert.assertTrue(snrDb(audio, audioIn) > 30);
+
+        // seeking decodes the same samples as reading from the start
+        short[] region = new short[500];
+        reader.seekFrame(12345);
+        Assert.assertEquals(500, reader.readFrames(region, 0, region.length));
+        for (int i = 0; i < region.length; i++) {
+            Assert.assertEquals(audioIn[12345 + i], region[i]);
+        }
+        reader.seekFrame(audio.length - 10);
+        Assert.assertEquals(10, reader.readFrames(region, 0, region.length));
+        reader.close();
+    }
+
+    /**
+     * Write a stereo file with both channels containing the given audio
+     */
+    private static void writeStereo(String path, short[] audio, Format format, int bitDepth)
+            throws IOException {
+        int dataSize = audio.length * 2 * bitDepth / 8;
+        ByteBuffer header = new WaveFileHeader.Builder()
+                .format(format)
+                .channels(2)
+                .sampleRate(8000)
+                .bitDepth(bitDepth)
+                .dataSize(dataSize)
+                .build()
+                .asByteBuffer();
+        short[] stereo = new short[audio.length * 2];
+        for (int i = 0; i < audio.length; i++) {
+            stereo[2 * i] = audio[i];
+            stereo[2 * i + 1] = audio[i];
+        }
+        ByteBuffer data = ByteBuffer.allocate(dataSize);
+        PcmCodec.fromShorts(stereo, 0, stereo.length, data, format, bitDepth);
+        data.flip();
+        FileOutputStream os = new FileOutputStream(path);
+        os.getChannel().write(new ByteBuffer[] { header, data });
+        os.close();
+    }
+
+    /** Signal to noise ratio of a lossy copy of the given signal */
+    private static double snrDb(short[] signal, short[] copy) {
+        double signalPower = 0;
+        double noisePower = 0;
+        for (int i = 0; i < signal.length; i++) {
+            double noise = copy[i] - signal[i];
+            signalPower += (double) signal[i] * signal[i];
+            noisePower += noise * noise;
+        }
+        return 10 * Math.log10(signalPower / noisePower);
     }
 
     /**